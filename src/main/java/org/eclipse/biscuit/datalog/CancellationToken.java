@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+/**
+ * Lets another thread stop an evaluation
+ *
+ * <p>the evaluation fails with {@link org.eclipse.biscuit.error.Error.Cancelled} the next time it
+ * checks its deadline after {@link #cancel()} is called
+ */
+public final class CancellationToken {
+  private volatile boolean cancelled = false;
+
+  public void cancel() {
+    this.cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return this.cancelled;
+  }
+}
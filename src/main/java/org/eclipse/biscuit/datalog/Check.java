@@ -41,6 +41,23 @@ public final class Check {
     return queries;
   }
 
+  /**
+   * Simplifies the expressions used to evaluate the queries, see {@link
+   * Rule#optimizeExpressions(SymbolTable)}
+   */
+  public void optimizeExpressions(SymbolTable symbolTable) {
+    for (Rule query : this.queries) {
+      query.optimizeExpressions(symbolTable);
+    }
+  }
+
+  /** Compiles the literal regex patterns of the queries into the shared regex cache */
+  public void precompileRegexes(SymbolTable symbolTable) {
+    for (Rule query : this.queries) {
+      query.precompileRegexes(symbolTable);
+    }
+  }
+
   public Schema.CheckV2 serialize() {
     Schema.CheckV2.Builder b = Schema.CheckV2.newBuilder();
 
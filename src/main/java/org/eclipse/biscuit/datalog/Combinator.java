@@ -6,25 +6,45 @@
 package org.eclipse.biscuit.datalog;
 
 import java.io.Serializable;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
-import java.util.Set;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import org.eclipse.biscuit.datalog.expressions.Expression;
+import org.eclipse.biscuit.error.Error;
 
 public final class Combinator implements Serializable, Iterator<Pair<Origin, Map<Long, Term>>> {
-  private MatchedVariables variables;
-  private final Supplier<Stream<Pair<Origin, Fact>>> allFacts;
+  private final Frame frame;
+  private final List<FactSource> allFacts;
   private final List<Predicate> predicates;
-  private final Iterator<Pair<Origin, Fact>> currentFacts;
-  private Combinator currentIt;
+  // slot of each term of each predicate, -1 for terms that are not variables
+  private final List<int[]> termSlots;
+  // tag and value of each constant term of each predicate, see Tuple
+  private final List<int[]> constantTags;
+  private final List<long[]> constantValues;
   private final SymbolTable symbolTable;
 
-  private Origin currentOrigin;
+  // lookup of the candidate facts of each predicate, with the variables bound by the previous
+  // predicates
+  private final FactSet.Probe[] probes;
+
+  // join state, one entry per predicate: the candidate facts and the position of the next one to
+  // try, the origin of the current fact, and the frame marker to undo the bindings made by the
+  // current fact
+  private final List<Pair<Origin, Tuple>>[] currentFacts;
+  private final int[] currentPositions;
+  private final Origin[] currentOrigins;
+  private final int[] marks;
+  private int depth;
+  // expressions checked as soon as the fact at each level is bound, null if there are none
+  private List<List<Expression>> filters;
 
   private Optional<Pair<Origin, Map<Long, Term>>> nextElement;
 
@@ -52,104 +72,195 @@ public final class Combinator implements Serializable, Iterator<Pair<Origin, Map
   }
 
   public Optional<Pair<Origin, Map<Long, Term>>> getNext() {
-    if (this.predicates.isEmpty()) {
-      final Optional<Map<Long, Term>> vOpt = this.variables.complete();
-      if (vOpt.isEmpty()) {
-        return Optional.empty();
-      } else {
-        Map<Long, Term> variables = vOpt.get();
-        // if there were no predicates,
-        // we should return a value, but only once. To prevent further
-        // successful calls, we create a set of variables that cannot
-        // possibly be completed, so the next call will fail
-        Set<Long> set = new HashSet<>();
-        set.add((long) 0);
-
-        this.variables = new MatchedVariables(set);
-        return Optional.of(new Pair<>(new Origin(), variables));
+    if (advance()) {
+      return Optional.of(new Pair<>(origin(), this.frame.toMap()));
+    } else {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Moves to the next set of facts matching all the predicates
+   *
+   * <p>the variables are then bound in the frame, until the next call
+   *
+   * @return false if there are no more matches
+   */
+  boolean advance() {
+    final int last = this.predicates.size() - 1;
+
+    // if there were no predicates, we should return a value, but only once
+    if (last < 0) {
+      if (this.depth == 0) {
+        this.depth = -1;
+        return this.frame.isComplete() && matchFilters(0);
       }
+      return false;
     }
 
-    while (true) {
-      if (this.currentIt == null) {
-        Predicate predicate = this.predicates.get(0);
-
-        while (true) {
-          // we iterate over the facts that match the current predicate
-          if (this.currentFacts.hasNext()) {
-            final Pair<Origin, Fact> t = this.currentFacts.next();
-            Origin currentOrigin = t._1.clone();
-            Fact fact = t._2;
-
-            // create a new MatchedVariables in which we fix variables we could unify from our first
-            // predicate and the current fact
-            MatchedVariables vars = this.variables.clone();
-            boolean matchTerms = true;
-
-            // we know the fact matches the predicate's format so they have the same number of terms
-            // fill the MatchedVariables before creating the next combinator
-            for (int i = 0; i < predicate.terms().size(); ++i) {
-              final Term term = predicate.terms().get(i);
-              if (term instanceof Term.Variable) {
-                final long key = ((Term.Variable) term).value();
-                final Term value = fact.predicate().terms().get(i);
-
-                if (!vars.insert(key, value)) {
-                  matchTerms = false;
-                }
-                if (!matchTerms) {
-                  break;
-                }
-              }
-            }
-
-            // the fact did not match the predicate, try the next one
-            if (!matchTerms) {
-              continue;
-            }
-
-            // there are no more predicates to check
-            if (this.predicates.size() == 1) {
-              final Optional<Map<Long, Term>> vOpt = vars.complete();
-              if (vOpt.isEmpty()) {
-                continue;
-              } else {
-                return Optional.of(new Pair<>(currentOrigin, vOpt.get()));
-              }
-            } else {
-              this.currentOrigin = currentOrigin;
-              // we found a matching fact, we create a new combinator over the rest of the
-              // predicates
-              // no need to copy all the expressions at all levels
-              this.currentIt =
-                  new Combinator(
-                      vars,
-                      predicates.subList(1, predicates.size()),
-                      this.allFacts,
-                      this.symbolTable);
-            }
-            break;
-
-          } else {
-            return Optional.empty();
-          }
+    while (this.depth >= 0) {
+      this.frame.undo(this.marks[this.depth]);
+
+      // we iterate over the facts that match the current predicate
+      final List<Pair<Origin, Tuple>> facts = this.currentFacts[this.depth];
+      if (this.currentPositions[this.depth] >= facts.size()) {
+        // backtrack to the previous predicate
+        this.currentFacts[this.depth] = null;
+        this.depth -= 1;
+        continue;
+      }
+
+      final Pair<Origin, Tuple> t = facts.get(this.currentPositions[this.depth]++);
+      // the fact did not match the predicate, try the next one
+      if (!bind(this.depth, t._2)) {
+        continue;
+      }
+      // the bound variables already fail an expression, no need to go deeper
+      if (!matchFilters(this.depth)) {
+        continue;
+      }
+      this.currentOrigins[this.depth] = t._1;
+
+      if (this.depth == last) {
+        // there are no more predicates to check
+        if (this.frame.isComplete()) {
+          return true;
         }
+      } else {
+        // we found a matching fact, we go on with the next predicate
+        this.depth += 1;
+        open(this.depth);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks expressions during the join instead of on complete matches
+   *
+   * <p>each expression is evaluated as soon as all the variables it reads are bound, and the
+   * partial matches for which it fails to evaluate or does not return true are dropped, along with
+   * every match that would extend them. Expressions reading a variable that no predicate binds are
+   * checked at the last level, see {@link VariableSlots#bindingLevel(Expression, List)}. Must be
+   * called before the first {@link #advance()}
+   */
+  void filter(List<Expression> expressions) {
+    final int levels = Math.max(1, this.predicates.size());
+    final List<List<Expression>> filters = new ArrayList<>(Collections.nCopies(levels, null));
+    for (Expression e : expressions) {
+      final int level = this.frame.slots().bindingLevel(e, this.termSlots);
+      if (filters.get(level) == null) {
+        filters.set(level, new ArrayList<>());
       }
+      filters.get(level).add(e);
+    }
+    this.filters = filters;
+  }
 
-      if (this.currentIt == null) {
-        return Optional.empty();
+  private boolean matchFilters(int level) {
+    if (this.filters == null || this.filters.get(level) == null) {
+      return true;
+    }
+    return matchExpressions(this.filters.get(level), this.frame, this.symbolTable);
+  }
+
+  /**
+   * Evaluates expressions with the variables of a frame
+   *
+   * @return false if an expression fails to evaluate or does not return true
+   */
+  static boolean matchExpressions(
+      List<Expression> expressions, Frame frame, SymbolTable symbolTable) {
+    frame.clearOthers();
+    final TemporarySymbolTable temporarySymbols = new TemporarySymbolTable(symbolTable);
+    for (Expression e : expressions) {
+      try {
+        final Term term = e.evaluate(frame, temporarySymbols);
+        if (!(term instanceof Term.Bool) || !((Term.Bool) term).value()) {
+          return false;
+        }
+      } catch (Error error) {
+        return false;
       }
+    }
+    return true;
+  }
 
-      Optional<Pair<Origin, Map<Long, Term>>> opt = this.currentIt.getNext();
+  /** Returns the union of the origins of the facts of the current match */
+  Origin origin() {
+    final Origin origin = new Origin();
+    for (int i = 0; i < this.predicates.size(); i++) {
+      origin.addAll(this.currentOrigins[i]);
+    }
+    return origin;
+  }
 
-      if (opt.isPresent()) {
-        Pair<Origin, Map<Long, Term>> t = opt.get();
-        return Optional.of(new Pair<>(t._1.union(currentOrigin), t._2));
-      } else {
-        currentOrigin = null;
-        currentIt = null;
+  Frame frame() {
+    return this.frame;
+  }
+
+  /**
+   * Matches a fact against a predicate and binds its variables, as {@link
+   * Fact#matchPredicate(Predicate)} then {@link Frame#bind(int, Term)} would
+   *
+   * <p>the terms are compared on their encoding, they are only decoded to bind a variable
+   */
+  private boolean bind(int index, Tuple tuple) {
+    final Predicate predicate = this.predicates.get(index);
+    final int[] slots = this.termSlots.get(index);
+    if (tuple.name() != predicate.name() || tuple.arity() != slots.length) {
+      return false;
+    }
+    final int[] tags = this.constantTags.get(index);
+    final long[] values = this.constantValues.get(index);
+    for (int i = 0; i < slots.length; i++) {
+      if (slots[i] < 0 && !matches(tuple, i, tags[i], values[i], predicate.terms().get(i))) {
+        return false;
+      }
+    }
+    for (int i = 0; i < slots.length; i++) {
+      if (slots[i] < 0) {
+        continue;
+      }
+      final Term current = this.frame.value(slots[i]);
+      if (current == null) {
+        this.frame.bind(slots[i], tuple.term(i));
+      } else if (!tuple.termEquals(i, current)) {
+        return false;
       }
     }
+    return true;
+  }
+
+  private static boolean matches(Tuple tuple, int i, int tag, long value, Term constant) {
+    if (tag != Tuple.REFERENCE) {
+      return tuple.matches(i, tag, value);
+    }
+    // a term stored inline only matches a set, array, map or bytes constant if it is a variable
+    final int termTag = tuple.tag(i);
+    if (termTag != Tuple.REFERENCE) {
+      return termTag == Tuple.VARIABLE;
+    }
+    return tuple.term(i).match(constant);
+  }
+
+  private void open(int index) {
+    this.marks[index] = this.frame.mark();
+    this.probes[index].bind(this.frame);
+    this.currentFacts[index] = this.allFacts.get(index).lookup(this.probes[index]);
+    this.currentPositions[index] = 0;
+  }
+
+  /** Source of the encoded facts a predicate is matched against */
+  interface FactSource {
+    /**
+     * Returns the candidate facts for the predicate of the probe, with its looked up variables
+     * replaced by their values
+     *
+     * <p>the source can return non matching facts, they are filtered by the combinator. The list
+     * must stay valid until the join is done
+     */
+    List<Pair<Origin, Tuple>> lookup(FactSet.Probe probe);
   }
 
   public Combinator(
@@ -157,14 +268,121 @@ public final class Combinator implements Serializable, Iterator<Pair<Origin, Map
       final List<Predicate> predicates,
       Supplier<Stream<Pair<Origin, Fact>>> allFacts,
       final SymbolTable symbolTable) {
-    this.variables = variables;
+    this(
+        variables,
+        predicates,
+        Collections.nCopies(predicates.size(), (pattern) -> allFacts.get()),
+        symbolTable);
+  }
+
+  /**
+   * Creates a combinator where each predicate is matched against its own source of facts
+   *
+   * <p>each source is called with the predicate where the variables already bound by the previous
+   * predicates are replaced by their values, so it can use them to only return the candidate facts
+   * (as an example by looking them up in an index). Sources can return non matching facts, they are
+   * filtered by the combinator
+   *
+   * @param allFacts one fact source per predicate, in the same order
+   */
+  public Combinator(
+      final MatchedVariables variables,
+      final List<Predicate> predicates,
+      final List<Function<Predicate, Stream<Pair<Origin, Fact>>>> allFacts,
+      final SymbolTable symbolTable) {
+    this(frame(variables, predicates), predicates, encode(allFacts), symbolTable);
+  }
+
+  /**
+   * Creates a combinator binding the variables in a frame
+   *
+   * <p>the frame must have a slot for each variable of the predicates. Each predicate is looked up
+   * with the variables bound before the join and by the previous predicates, through a probe
+   * reused for every lookup
+   *
+   * @param allFacts one source of encoded facts per predicate, as for {@link
+   *     #Combinator(MatchedVariables, List, List, SymbolTable)}
+   */
+  @SuppressWarnings("unchecked")
+  Combinator(
+      final Frame frame,
+      final List<Predicate> predicates,
+      final List<FactSource> allFacts,
+      final SymbolTable symbolTable) {
+    this.frame = frame;
     this.allFacts = allFacts;
-    this.currentIt = null;
     this.predicates = predicates;
-    this.currentFacts =
-        allFacts.get().filter((tuple) -> tuple._2.matchPredicate(predicates.get(0))).iterator();
     this.symbolTable = symbolTable;
-    this.currentOrigin = null;
+    this.termSlots = new ArrayList<>(predicates.size());
+    this.constantTags = new ArrayList<>(predicates.size());
+    this.constantValues = new ArrayList<>(predicates.size());
+    for (Predicate predicate : predicates) {
+      final List<Term> terms = predicate.terms();
+      final int[] tags = new int[terms.size()];
+      final long[] values = new long[terms.size()];
+      for (int i = 0; i < tags.length; i++) {
+        tags[i] = Tuple.tag(terms.get(i));
+        values[i] = Tuple.value(terms.get(i));
+      }
+      this.termSlots.add(frame.slots().slots(predicate));
+      this.constantTags.add(tags);
+      this.constantValues.add(values);
+    }
+
+    // the variables bound before each predicate is looked up do not depend on the facts
+    this.probes = new FactSet.Probe[predicates.size()];
+    final boolean[] bound = new boolean[frame.slots().size()];
+    for (int slot = 0; slot < bound.length; slot++) {
+      bound[slot] = frame.value(slot) != null;
+    }
+    for (int index = 0; index < predicates.size(); index++) {
+      final int[] slots = this.termSlots.get(index);
+      final int[] lookupSlots = new int[slots.length];
+      for (int i = 0; i < slots.length; i++) {
+        lookupSlots[i] = slots[i] >= 0 && bound[slots[i]] ? slots[i] : -1;
+      }
+      for (int slot : slots) {
+        if (slot >= 0) {
+          bound[slot] = true;
+        }
+      }
+      this.probes[index] = new FactSet.Probe(predicates.get(index), lookupSlots);
+    }
+
+    this.currentFacts = new List[predicates.size()];
+    this.currentPositions = new int[predicates.size()];
+    this.currentOrigins = new Origin[predicates.size()];
+    this.marks = new int[predicates.size()];
+    this.depth = 0;
+    if (!predicates.isEmpty()) {
+      open(0);
+    }
     this.nextElement = null;
   }
+
+  /** Encodes the facts returned by fact sources, called with the bound predicates */
+  static List<FactSource> encode(List<Function<Predicate, Stream<Pair<Origin, Fact>>>> allFacts) {
+    final List<FactSource> encoded = new ArrayList<>(allFacts.size());
+    for (Function<Predicate, Stream<Pair<Origin, Fact>>> facts : allFacts) {
+      encoded.add(
+          (probe) ->
+              facts
+                  .apply(probe.pattern())
+                  .map(t -> new Pair<>(t._1, Tuple.of(t._2)))
+                  .collect(Collectors.toList()));
+    }
+    return encoded;
+  }
+
+  // the variables that are already set are bound before the join and never undone
+  private static Frame frame(MatchedVariables variables, List<Predicate> predicates) {
+    final Frame frame = new Frame(VariableSlots.of(variables.ids(), predicates));
+    for (Long id : variables.ids()) {
+      final Optional<Term> value = variables.get(id);
+      if (value.isPresent()) {
+        frame.bind(frame.slots().slot(id), value.get());
+      }
+    }
+    return frame;
+  }
 }
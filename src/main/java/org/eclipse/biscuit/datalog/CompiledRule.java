@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.biscuit.datalog.expressions.BatchExpression;
+import org.eclipse.biscuit.datalog.expressions.Expression;
+import org.eclipse.biscuit.error.Error;
+
+/**
+ * Specialized evaluator of a rule, built by {@link Rule#compile()}
+ *
+ * <p>for each join order, the body is turned once into a plan: for every predicate, the positions
+ * of the constants with their encoded value, the variables it binds and the ones it checks against
+ * previous bindings, the lookup pattern and the expressions that can be checked once it is matched.
+ * The join then works on the encoded facts of the {@link FactSet}, without building intermediate
+ * facts, streams or iterators: only the variables and the generated facts are decoded.
+ *
+ * <p>when a predicate has many candidate facts, the expressions checked at its level that have a
+ * {@link BatchExpression batch form} are evaluated on all the candidates at once, with the values
+ * of the variables read from the encoded facts into columns. The other expressions, and all of them
+ * when the columns mix types, are evaluated for each binding.
+ *
+ * <p>it generates the same facts, with the same origins, as the interpreter ({@link Combinator}),
+ * which stays in use for the rules that cannot be compiled: rules without body predicates, with
+ * bytes, sets, arrays or maps in their body, or with head variables missing from the body
+ */
+final class CompiledRule {
+  // minimum number of candidates for a batch evaluation of the expressions
+  static final int BATCH_SIZE = 32;
+
+  private final Predicate head;
+  private final List<Predicate> body;
+  private final List<Expression> expressions;
+  private final VariableSlots slots;
+  // slot of each head term, -1 for constants
+  private final int[] headSlots;
+  // plans by join order
+  private final ConcurrentHashMap<List<Integer>, Plan> plans = new ConcurrentHashMap<>();
+
+  private CompiledRule(
+      Predicate head, List<Predicate> body, List<Expression> expressions, VariableSlots slots) {
+    this.head = head;
+    this.body = body;
+    this.expressions = expressions;
+    this.slots = slots;
+    this.headSlots = slots.slots(head);
+  }
+
+  /** Returns null if the rule cannot be compiled */
+  static CompiledRule of(
+      Predicate head, List<Predicate> body, List<Expression> expressions, VariableSlots slots) {
+    if (body.isEmpty()) {
+      return null;
+    }
+    for (Predicate predicate : body) {
+      for (Term term : predicate.terms()) {
+        if (!(term instanceof Term.Variable) && Tuple.tag(term) == Tuple.REFERENCE) {
+          return null;
+        }
+      }
+    }
+    final int[] headSlots = slots.slots(head);
+    for (int i = 0; i < headSlots.length; i++) {
+      if (head.terms().get(i) instanceof Term.Variable && headSlots[i] < 0) {
+        return null;
+      }
+    }
+    return new CompiledRule(head, body, expressions, slots);
+  }
+
+  /**
+   * Applies the rule, passing each generated fact to the sink
+   *
+   * @param facts the facts each body predicate is matched against, in body order
+   * @param order the join order, see {@link JoinPlanner}
+   */
+  void apply(
+      FactSet[] facts,
+      int[] order,
+      TrustedOrigins scope,
+      Long ruleOrigin,
+      SymbolTable symbolTable,
+      FactSink sink)
+      throws Error {
+    final Plan plan = plan(order);
+    final Step[] steps = plan.steps;
+    final int last = steps.length - 1;
+    final Frame frame = new Frame(this.slots);
+
+    // candidate facts of each level, and the position of the next one to try
+    @SuppressWarnings("unchecked")
+    final List<Pair<Origin, Tuple>>[] candidates = new List[steps.length];
+    final int[] positions = new int[steps.length];
+    final Origin[] origins = new Origin[steps.length];
+    // results of the expressions evaluated on all the candidates of each level, see Step#batch
+    final boolean[][][] batches = new boolean[steps.length][][];
+
+    // the lookups of each level reuse the same probe
+    final FactSet.Probe[] probes = new FactSet.Probe[steps.length];
+    for (int i = 0; i < steps.length; i++) {
+      probes[i] = steps[i].probe();
+    }
+
+    int depth = 0;
+    candidates[0] = steps[0].lookup(facts[order[0]], scope, probes[0], frame);
+    batches[0] = steps[0].batch(candidates[0], frame, symbolTable);
+    while (depth >= 0) {
+      final List<Pair<Origin, Tuple>> levelCandidates = candidates[depth];
+      if (positions[depth] >= levelCandidates.size()) {
+        positions[depth] = 0;
+        candidates[depth] = null;
+        depth -= 1;
+        continue;
+      }
+
+      final int row = positions[depth]++;
+      final Pair<Origin, Tuple> candidate = levelCandidates.get(row);
+      final Step step = steps[depth];
+      if (!step.bind(candidate._2, frame)) {
+        continue;
+      }
+      if (step.filters != null && !step.matchFilters(batches[depth], row, frame, symbolTable)) {
+        continue;
+      }
+      origins[depth] = candidate._1;
+
+      if (depth == last) {
+        final Origin origin = new Origin();
+        for (Origin o : origins) {
+          origin.addAll(o);
+        }
+        origin.add(ruleOrigin);
+        if (!sink.accept(origin, new Fact(generateHead(frame)))) {
+          return;
+        }
+      } else {
+        depth += 1;
+        candidates[depth] = steps[depth].lookup(facts[order[depth]], scope, probes[depth], frame);
+        batches[depth] = steps[depth].batch(candidates[depth], frame, symbolTable);
+      }
+    }
+  }
+
+  private Predicate generateHead(Frame frame) {
+    final List<Term> terms = new ArrayList<>(this.head.terms());
+    for (int i = 0; i < this.headSlots.length; i++) {
+      if (this.headSlots[i] >= 0) {
+        terms.set(i, frame.value(this.headSlots[i]));
+      }
+    }
+    return new Predicate(this.head.name(), terms);
+  }
+
+  private Plan plan(int[] order) {
+    final Integer[] key = new Integer[order.length];
+    for (int i = 0; i < order.length; i++) {
+      key[i] = order[i];
+    }
+    return this.plans.computeIfAbsent(Arrays.asList(key), k -> new Plan(order));
+  }
+
+  /** The steps of the join, for one order of the body predicates */
+  private final class Plan {
+    private final Step[] steps;
+
+    Plan(int[] order) {
+      this.steps = new Step[order.length];
+      final Set<Integer> bound = new HashSet<>();
+      final List<int[]> levelSlots = new ArrayList<>(order.length);
+      for (int level = 0; level < order.length; level++) {
+        this.steps[level] = new Step(body.get(order[level]), bound);
+        levelSlots.add(slots.slots(body.get(order[level])));
+      }
+
+      // each expression is checked at the first level where all its variables are bound, as in
+      // Combinator#filter
+      for (Expression e : expressions) {
+        final int level = slots.bindingLevel(e, levelSlots);
+        if (this.steps[level].filters == null) {
+          this.steps[level].filters = new ArrayList<>();
+        }
+        this.steps[level].filters.add(e);
+      }
+      for (Step step : this.steps) {
+        step.prepareBatch();
+      }
+    }
+  }
+
+  /** Matching of one body predicate */
+  private final class Step {
+    private final Predicate predicate;
+    // positions, tags and values of the constants
+    private final int[] constantPositions;
+    private final int[] constantTags;
+    private final long[] constantValues;
+    // positions and slots of the variables bound by this predicate
+    private final int[] bindPositions;
+    private final int[] bindSlots;
+    // positions and slots of the variables bound before, or earlier in this predicate
+    private final int[] checkPositions;
+    private final int[] checkSlots;
+    // positions and slots of the variables bound by the previous predicates, used in lookups
+    private final int[] lookupPositions;
+    private final int[] lookupSlots;
+    private List<Expression> filters;
+    // batch form of each filter, null for the filters evaluated one binding at a time, or if
+    // no filter has a batch form
+    private BatchExpression[] batchFilters;
+
+    Step(Predicate predicate, Set<Integer> bound) {
+      this.predicate = predicate;
+      final List<Term> terms = predicate.terms();
+      final int[] termSlots = slots.slots(predicate);
+      final List<Integer> constants = new ArrayList<>();
+      final List<Integer> binds = new ArrayList<>();
+      final List<Integer> checks = new ArrayList<>();
+      final List<Integer> lookups = new ArrayList<>();
+      final Set<Integer> boundBefore = new HashSet<>(bound);
+
+      for (int i = 0; i < terms.size(); i++) {
+        if (termSlots[i] < 0) {
+          constants.add(i);
+        } else if (boundBefore.contains(termSlots[i])) {
+          lookups.add(i);
+          checks.add(i);
+        } else if (bound.add(termSlots[i])) {
+          binds.add(i);
+        } else {
+          checks.add(i);
+        }
+      }
+
+      this.constantPositions = toArray(constants);
+      this.constantTags = new int[constantPositions.length];
+      this.constantValues = new long[constantPositions.length];
+      for (int i = 0; i < constantPositions.length; i++) {
+        final Term term = terms.get(constantPositions[i]);
+        this.constantTags[i] = Tuple.tag(term);
+        this.constantValues[i] = Tuple.value(term);
+      }
+      this.bindPositions = toArray(binds);
+      this.bindSlots = slotsOf(this.bindPositions, termSlots);
+      this.checkPositions = toArray(checks);
+      this.checkSlots = slotsOf(this.checkPositions, termSlots);
+      this.lookupPositions = toArray(lookups);
+      this.lookupSlots = slotsOf(this.lookupPositions, termSlots);
+    }
+
+    /** Creates the probe of the lookups of this predicate, for one application of the rule */
+    FactSet.Probe probe() {
+      final int[] probeSlots = new int[this.predicate.terms().size()];
+      Arrays.fill(probeSlots, -1);
+      for (int i = 0; i < this.lookupPositions.length; i++) {
+        probeSlots[this.lookupPositions[i]] = this.lookupSlots[i];
+      }
+      return new FactSet.Probe(this.predicate, probeSlots);
+    }
+
+    List<Pair<Origin, Tuple>> lookup(
+        FactSet facts, TrustedOrigins scope, FactSet.Probe probe, Frame frame) {
+      probe.bind(frame);
+      return facts.tuples(scope, probe);
+    }
+
+    private void prepareBatch() {
+      if (this.filters == null) {
+        return;
+      }
+      final BatchExpression[] batchFilters = new BatchExpression[this.filters.size()];
+      boolean batched = false;
+      for (int i = 0; i < batchFilters.length; i++) {
+        batchFilters[i] = BatchExpression.of(this.filters.get(i)).orElse(null);
+        batched |= batchFilters[i] != null;
+      }
+      this.batchFilters = batched ? batchFilters : null;
+    }
+
+    /**
+     * Evaluates the filters that have a batch form on all the candidates at once, the values of
+     * the variables bound by this predicate are read in columns from the candidates
+     *
+     * @return the results of each filter for each candidate, null for the filters that must be
+     *     evaluated one binding at a time, or null if the batch evaluation is not worth it
+     */
+    boolean[][] batch(List<Pair<Origin, Tuple>> candidates, Frame frame, SymbolTable symbolTable) {
+      if (this.batchFilters == null || candidates.size() < BATCH_SIZE) {
+        return null;
+      }
+      final int rows = candidates.size();
+      final Map<Long, BatchExpression.Column> columns = new HashMap<>();
+      for (BatchExpression batchFilter : this.batchFilters) {
+        if (batchFilter == null) {
+          continue;
+        }
+        for (Long variable : batchFilter.variables()) {
+          if (!columns.containsKey(variable)) {
+            final BatchExpression.Column column = column(variable, candidates, frame);
+            if (column != null) {
+              columns.put(variable, column);
+            }
+          }
+        }
+      }
+
+      final TemporarySymbolTable temporarySymbols = new TemporarySymbolTable(symbolTable);
+      final boolean[][] results = new boolean[this.batchFilters.length][];
+      for (int i = 0; i < results.length; i++) {
+        if (this.batchFilters[i] != null) {
+          results[i] = this.batchFilters[i].evaluate(rows, columns, temporarySymbols);
+        }
+      }
+      return results;
+    }
+
+    // null if the values do not fit in a column
+    private BatchExpression.Column column(
+        long variable, List<Pair<Origin, Tuple>> candidates, Frame frame) {
+      final int slot = slots.slot(variable);
+      if (slot < 0) {
+        return null;
+      }
+      int position = -1;
+      for (int i = 0; i < this.bindSlots.length; i++) {
+        if (this.bindSlots[i] == slot) {
+          position = this.bindPositions[i];
+        }
+      }
+      // bound by a previous predicate
+      if (position < 0) {
+        return BatchExpression.Column.constant(frame.value(slot), candidates.size()).orElse(null);
+      }
+
+      final int tag = candidates.get(0)._2.tag(position);
+      final long[] values = new long[candidates.size()];
+      for (int i = 0; i < values.length; i++) {
+        final Tuple tuple = candidates.get(i)._2;
+        if (tuple.tag(position) != tag) {
+          return null;
+        }
+        values[i] = tuple.value(position);
+      }
+      switch (tag) {
+        case Tuple.INTEGER:
+          return BatchExpression.Column.integers(values);
+        case Tuple.DATE:
+          return BatchExpression.Column.dates(values);
+        case Tuple.BOOL:
+          return BatchExpression.Column.booleans(values);
+        case Tuple.STR:
+          return BatchExpression.Column.strings(values);
+        default:
+          return null;
+      }
+    }
+
+    /**
+     * Checks the filters for a candidate, in order, with the batch results if there are some
+     *
+     * @param batch the results of {@link #batch(List, Frame, SymbolTable)}
+     */
+    boolean matchFilters(boolean[][] batch, int row, Frame frame, SymbolTable symbolTable) {
+      if (batch == null) {
+        return Combinator.matchExpressions(this.filters, frame, symbolTable);
+      }
+      TemporarySymbolTable temporarySymbols = null;
+      for (int i = 0; i < batch.length; i++) {
+        if (batch[i] != null) {
+          if (!batch[i][row]) {
+            return false;
+          }
+          continue;
+        }
+        if (temporarySymbols == null) {
+          frame.clearOthers();
+          temporarySymbols = new TemporarySymbolTable(symbolTable);
+        }
+        try {
+          final Term term = this.filters.get(i).evaluate(frame, temporarySymbols);
+          if (!(term instanceof Term.Bool) || !((Term.Bool) term).value()) {
+            return false;
+          }
+        } catch (Error error) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // the lookup only returns facts with the same name and arity
+    boolean bind(Tuple tuple, Frame frame) {
+      for (int i = 0; i < this.constantPositions.length; i++) {
+        if (!tuple.matches(
+            this.constantPositions[i], this.constantTags[i], this.constantValues[i])) {
+          return false;
+        }
+      }
+      for (int i = 0; i < this.bindPositions.length; i++) {
+        frame.set(this.bindSlots[i], tuple.term(this.bindPositions[i]));
+      }
+      for (int i = 0; i < this.checkPositions.length; i++) {
+        if (!tuple.termEquals(this.checkPositions[i], frame.value(this.checkSlots[i]))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    final int[] array = new int[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+
+  private static int[] slotsOf(int[] positions, int[] termSlots) {
+    final int[] result = new int[positions.length];
+    for (int i = 0; i < positions.length; i++) {
+      result[i] = termSlots[positions[i]];
+    }
+    return result;
+  }
+}
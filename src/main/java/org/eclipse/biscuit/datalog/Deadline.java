@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+import java.time.Duration;
+import org.eclipse.biscuit.error.Error;
+
+/**
+ * Time limit of an evaluation, measured with {@link System#nanoTime()}
+ *
+ * <p>the evaluation is also stopped if its cancellation token is cancelled, or if the thread that
+ * created the deadline is interrupted (the interrupt flag is left set)
+ */
+public final class Deadline {
+  // number of calls to check between two reads of the clock
+  private static final int CHECK_INTERVAL = 64;
+
+  private final long start;
+  private final long maxNanos;
+  private final CancellationToken cancellationToken;
+  private final Thread owner;
+  // shared by the rules applied in parallel, a lost update only delays the next read
+  private int countdown;
+
+  private Deadline(Duration maxTime, CancellationToken cancellationToken) {
+    this.start = System.nanoTime();
+    this.maxNanos = nanos(maxTime);
+    this.cancellationToken = cancellationToken;
+    this.owner = Thread.currentThread();
+    this.countdown = 0;
+  }
+
+  public static Deadline of(RunLimits limits) {
+    return new Deadline(limits.getMaxTime(), limits.getCancellationToken().orElse(null));
+  }
+
+  public static Deadline after(Duration maxTime) {
+    return new Deadline(maxTime, null);
+  }
+
+  private static long nanos(Duration maxTime) {
+    try {
+      return Math.max(0, maxTime.toNanos());
+    } catch (ArithmeticException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Checks the deadline every {@value #CHECK_INTERVAL} calls, for loops where each step is cheap
+   *
+   * @throws Error.Timeout if the time limit is reached
+   * @throws Error.Cancelled if the evaluation was cancelled
+   */
+  public void check() throws Error {
+    if (--this.countdown > 0) {
+      return;
+    }
+    this.countdown = CHECK_INTERVAL;
+    checkNow();
+  }
+
+  /**
+   * Checks the deadline
+   *
+   * @throws Error.Timeout if the time limit is reached
+   * @throws Error.Cancelled if the evaluation was cancelled
+   */
+  public void checkNow() throws Error {
+    if ((this.cancellationToken != null && this.cancellationToken.isCancelled())
+        || this.owner.isInterrupted()) {
+      throw new Error.Cancelled();
+    }
+    if (System.nanoTime() - this.start >= this.maxNanos) {
+      throw new Error.Timeout();
+    }
+  }
+}
@@ -5,76 +5,300 @@
 
 package org.eclipse.biscuit.datalog;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
 import java.util.stream.Stream;
 
 public final class FactSet {
-  private final HashMap<Origin, HashSet<Fact>> facts;
+  // facts are stored by predicate name and arity first, then by origin, so that a rule body
+  // predicate only has to look at the facts that can match it. They are stored encoded as
+  // tuples, and decoded when they are read
+  private final HashMap<Key, HashMap<Origin, HashSet<Tuple>>> facts;
+  // facts from the trusted origins of each scope, created the first time a scope is looked up,
+  // then kept up to date as facts are added
+  private final HashMap<TrustedOrigins, View> views;
+  private int size;
+  // estimated memory retained by the facts, the views and indexes are not counted
+  private long memoryBytes;
+  // read only facts stored outside of the heap, see attach
+  private final List<MappedFacts> attached;
+  // name and arity of the attached facts, adding a fact only looks at the attached facts if they
+  // hold its predicate
+  private final HashSet<Key> attachedKeys;
 
   public FactSet() {
     facts = new HashMap<>();
+    views = new HashMap<>();
+    size = 0;
+    memoryBytes = 0;
+    attached = new ArrayList<>();
+    attachedKeys = new HashSet<>();
   }
 
   public FactSet(Origin o, HashSet<Fact> factSet) {
-    facts = new HashMap<>();
-    facts.put(o, factSet);
+    this();
+    for (Fact fact : factSet) {
+      add(o, fact);
+    }
+  }
+
+  /**
+   * Returns the facts grouped by origin
+   *
+   * <p>the facts are decoded in a new, unmodifiable map on each call, including every fact of the
+   * attached mapped fact bases. Prefer {@link #stream(TrustedOrigins)} to read them
+   */
+  public Map<Origin, Set<Fact>> facts() {
+    HashMap<Origin, Set<Fact>> byOrigin = new HashMap<>();
+    for (HashMap<Origin, HashSet<Tuple>> partitions : this.facts.values()) {
+      for (Map.Entry<Origin, HashSet<Tuple>> entry : partitions.entrySet()) {
+        Set<Fact> h = byOrigin.computeIfAbsent(entry.getKey(), k -> new HashSet<>());
+        for (Tuple tuple : entry.getValue()) {
+          h.add(tuple.toFact());
+        }
+      }
+    }
+    for (MappedFacts mapped : attached) {
+      Set<Fact> h = byOrigin.computeIfAbsent(mapped.origin(), k -> new HashSet<>());
+      mapped.stream().forEach(h::add);
+    }
+    byOrigin.replaceAll((origin, h) -> Collections.unmodifiableSet(h));
+    return Collections.unmodifiableMap(byOrigin);
   }
 
-  public HashMap<Origin, HashSet<Fact>> facts() {
-    return this.facts;
+  /**
+   * Adds the facts of a mapped fact base
+   *
+   * <p>they are returned by lookups and streams along with the other facts, but they are not
+   * copied: they are not counted by {@link #size()} and {@link #memoryBytes()}, and adding one of
+   * them with the same origin does nothing
+   */
+  void attach(MappedFacts mapped) {
+    attached.add(mapped);
+    attachedKeys.addAll(mapped.keys());
   }
 
-  public void add(Origin origin, Fact fact) {
-    if (!facts.containsKey(origin)) {
-      facts.put(origin, new HashSet<>());
+  /**
+   * Adds a fact
+   *
+   * @return true if the fact was not already present for this origin
+   */
+  public boolean add(Origin origin, Fact fact) {
+    return add(origin, Tuple.of(fact));
+  }
+
+  private boolean add(Origin origin, Tuple tuple) {
+    Key key = Key.of(tuple);
+    if (attachedKeys.contains(key)) {
+      for (MappedFacts mapped : attached) {
+        if (mapped.contains(origin, tuple)) {
+          return false;
+        }
+      }
+    }
+    HashSet<Tuple> partition =
+        facts
+            .computeIfAbsent(key, k -> new HashMap<>())
+            .computeIfAbsent(origin, o -> new HashSet<>());
+    if (partition.add(tuple)) {
+      size += 1;
+      memoryBytes += tuple.estimatedSize();
+      for (View view : views.values()) {
+        view.add(key, origin, tuple);
+      }
+      return true;
+    } else {
+      return false;
     }
-    facts.get(origin).add(fact);
   }
 
   public int size() {
+    return size;
+  }
+
+  /**
+   * Returns an estimate of the memory retained by the facts, in bytes
+   *
+   * <p>each fact is charged when it is inserted, according to the size of its terms
+   */
+  public long memoryBytes() {
+    return memoryBytes;
+  }
+
+  /** Returns the number of facts, across all origins, with the same name and arity */
+  public int size(Predicate predicate) {
     int size = 0;
-    for (HashSet<Fact> h : facts.values()) {
-      size += h.size();
+    for (MappedFacts mapped : attached) {
+      size += mapped.size(predicate);
+    }
+    HashMap<Origin, HashSet<Tuple>> partitions = facts.get(Key.of(predicate));
+    if (partitions == null) {
+      return size;
     }
 
+    for (HashSet<Tuple> h : partitions.values()) {
+      size += h.size();
+    }
     return size;
   }
 
   public FactSet clone() {
     FactSet newFacts = new FactSet();
 
-    for (Map.Entry<Origin, HashSet<Fact>> entry : this.facts.entrySet()) {
-      HashSet<Fact> h = new HashSet<>(entry.getValue());
-      newFacts.facts.put(entry.getKey(), h);
+    for (Map.Entry<Key, HashMap<Origin, HashSet<Tuple>>> entry : this.facts.entrySet()) {
+      HashMap<Origin, HashSet<Tuple>> partitions = new HashMap<>();
+      for (Map.Entry<Origin, HashSet<Tuple>> partition : entry.getValue().entrySet()) {
+        partitions.put(partition.getKey(), new HashSet<>(partition.getValue()));
+      }
+      newFacts.facts.put(entry.getKey(), partitions);
     }
+    newFacts.size = this.size;
+    newFacts.memoryBytes = this.memoryBytes;
+    newFacts.attached.addAll(this.attached);
+    newFacts.attachedKeys.addAll(this.attachedKeys);
 
     return newFacts;
   }
 
   public void merge(FactSet other) {
-    for (Map.Entry<Origin, HashSet<Fact>> entry : other.facts.entrySet()) {
-      if (!facts.containsKey(entry.getKey())) {
-        facts.put(entry.getKey(), entry.getValue());
-      } else {
-        facts.get(entry.getKey()).addAll(entry.getValue());
+    for (Map.Entry<Key, HashMap<Origin, HashSet<Tuple>>> entry : other.facts.entrySet()) {
+      HashMap<Origin, HashSet<Tuple>> partitions =
+          facts.computeIfAbsent(entry.getKey(), k -> new HashMap<>());
+      for (Map.Entry<Origin, HashSet<Tuple>> partition : entry.getValue().entrySet()) {
+        HashSet<Tuple> h = partitions.computeIfAbsent(partition.getKey(), o -> new HashSet<>());
+        for (Tuple tuple : partition.getValue()) {
+          if (h.add(tuple)) {
+            size += 1;
+            memoryBytes += tuple.estimatedSize();
+          }
+        }
+      }
+      // the views will be rebuilt on the next lookup
+      for (View view : views.values()) {
+        view.remove(entry.getKey());
       }
     }
   }
 
-  public Stream stream(TrustedOrigins blockIds) {
-    return facts.entrySet().stream()
+  /**
+   * Adds the facts from another set
+   *
+   * @return the facts that were not already present
+   */
+  FactSet mergeNew(FactSet other) {
+    FactSet added = new FactSet();
+    for (Map.Entry<Key, HashMap<Origin, HashSet<Tuple>>> entry : other.facts.entrySet()) {
+      for (Map.Entry<Origin, HashSet<Tuple>> partition : entry.getValue().entrySet()) {
+        for (Tuple tuple : partition.getValue()) {
+          if (add(partition.getKey(), tuple)) {
+            added.add(partition.getKey(), tuple);
+          }
+        }
+      }
+    }
+    return added;
+  }
+
+  public Stream<Pair<Origin, Fact>> stream(TrustedOrigins blockIds) {
+    return Stream.concat(
+        facts.values().stream().flatMap(partitions -> stream(partitions, blockIds)),
+        attached.stream().flatMap(mapped -> mapped.stream(blockIds)));
+  }
+
+  /**
+   * Returns the facts from trusted origins that have the same name and arity as the predicate
+   *
+   * <p>the facts are read from a view of the trusted facts, shared by all the lookups with equal
+   * trusted origins. If some of the predicate's terms are not variables, the facts are looked up in
+   * a hash index on those terms, created on the first lookup, and only the facts with equal terms,
+   * or holding variables there, are returned. Terms are not checked with {@link Term#match(Term)},
+   * this must still be done with {@link Fact#matchPredicate(Predicate)}
+   *
+   * <p>lookups can be made from several threads, as long as no facts are added at the same time
+   */
+  public Stream<Pair<Origin, Fact>> stream(TrustedOrigins blockIds, Predicate predicate) {
+    return decode(tuples(blockIds, new Probe(predicate)));
+  }
+
+  /**
+   * Same lookup as {@link #stream(TrustedOrigins, Predicate)}, for the predicate of the probe with
+   * its looked up variables replaced by their values, returning the encoded facts
+   *
+   * <p>looking up the facts stored in the set does not allocate once the view and the index exist.
+   * The attached facts are looked up with a predicate rebuilt from the probe, and are decoded when
+   * they are read from the list. The returned list must not be modified, and is only valid until
+   * facts are added
+   */
+  List<Pair<Origin, Tuple>> tuples(TrustedOrigins blockIds, Probe probe) {
+    if (attached.isEmpty() || !attachedKeys.contains(probe.key)) {
+      return heapTuples(blockIds, probe);
+    }
+    Predicate pattern = probe.pattern();
+    List<List<Pair<Origin, Tuple>>> parts = new ArrayList<>(attached.size() + 1);
+    parts.add(heapTuples(blockIds, probe));
+    for (MappedFacts mapped : attached) {
+      parts.add(mapped.tuples(blockIds, pattern));
+    }
+    return new Concatenation(parts);
+  }
+
+  private List<Pair<Origin, Tuple>> heapTuples(TrustedOrigins blockIds, Probe probe) {
+    Key key = probe.key;
+    HashMap<Origin, HashSet<Tuple>> partitions = facts.get(key);
+    if (partitions == null) {
+      return Collections.emptyList();
+    }
+
+    // views and indexes are created on lookup, lookups from rules applied in parallel are
+    // serialized. The returned lists are only modified when facts are added
+    List<Pair<Origin, Tuple>> trusted;
+    synchronized (views) {
+      View view = views.get(blockIds);
+      if (view == null) {
+        // the scope is copied since trusted origins can be modified
+        view = new View(blockIds.clone());
+        views.put(view.scope, view);
+      }
+
+      trusted = view.facts(key, partitions);
+      if (probe.positions != 0) {
+        trusted = view.index(key, probe.positions, trusted).get(probe.buffer);
+      }
+    }
+    return trusted;
+  }
+
+  private static Stream<Pair<Origin, Fact>> stream(
+      HashMap<Origin, HashSet<Tuple>> partitions, TrustedOrigins blockIds) {
+    return partitions.entrySet().stream()
         .filter(
             entry -> {
               Origin o = entry.getKey();
               return blockIds.contains(o);
             })
-        .flatMap(entry -> entry.getValue().stream().map(fact -> new Pair<>(entry.getKey(), fact)));
+        .flatMap(
+            entry ->
+                entry.getValue().stream().map(tuple -> new Pair<>(entry.getKey(), tuple.toFact())));
+  }
+
+  private static Stream<Pair<Origin, Fact>> decode(List<Pair<Origin, Tuple>> tuples) {
+    return tuples.stream().map(t -> new Pair<>(t._1, t._2.toFact()));
   }
 
   public Stream<Fact> stream() {
-    return facts.entrySet().stream().flatMap(entry -> entry.getValue().stream());
+    return Stream.concat(
+        facts.values().stream()
+            .flatMap(partitions -> partitions.values().stream())
+            .flatMap(h -> h.stream().map(Tuple::toFact)),
+        attached.stream().flatMap(MappedFacts::stream));
   }
 
   @Override
@@ -88,18 +312,18 @@ public final class FactSet {
 
     FactSet factSet = (FactSet) o;
 
-    return facts.equals(factSet.facts);
+    return facts.equals(factSet.facts) && attached.equals(factSet.attached);
   }
 
   @Override
   public int hashCode() {
-    return facts.hashCode();
+    return 31 * facts.hashCode() + attached.hashCode();
   }
 
   @Override
   public String toString() {
     StringBuilder res = new StringBuilder("FactSet {");
-    for (Map.Entry<Origin, HashSet<Fact>> entry : this.facts.entrySet()) {
+    for (Map.Entry<Origin, Set<Fact>> entry : this.facts().entrySet()) {
       res.append("\n\t").append(entry.getKey()).append("[");
       for (Fact fact : entry.getValue()) {
         res.append("\n\t\t").append(fact);
@@ -110,4 +334,393 @@ public final class FactSet {
 
     return res.toString();
   }
+
+  /** Facts from the origins trusted by a scope, by predicate name and arity */
+  private static final class View {
+    private final TrustedOrigins scope;
+    private final HashMap<Key, List<Pair<Origin, Tuple>>> facts;
+    // hash indexes on some of the terms of a predicate, created the first time a lookup
+    // binds those terms. A predicate is looked up with a handful of patterns, they are scanned
+    private final HashMap<Key, List<Index>> indexes;
+
+    View(TrustedOrigins scope) {
+      this.scope = scope;
+      this.facts = new HashMap<>();
+      this.indexes = new HashMap<>();
+    }
+
+    List<Pair<Origin, Tuple>> facts(Key key, HashMap<Origin, HashSet<Tuple>> partitions) {
+      List<Pair<Origin, Tuple>> trusted = facts.get(key);
+      if (trusted == null) {
+        trusted = new ArrayList<>();
+        for (Map.Entry<Origin, HashSet<Tuple>> partition : partitions.entrySet()) {
+          if (scope.contains(partition.getKey())) {
+            for (Tuple tuple : partition.getValue()) {
+              trusted.add(new Pair<>(partition.getKey(), tuple));
+            }
+          }
+        }
+        facts.put(key, trusted);
+      }
+      return trusted;
+    }
+
+    Index index(Key key, long positions, List<Pair<Origin, Tuple>> trusted) {
+      List<Index> predicateIndexes = indexes.get(key);
+      if (predicateIndexes == null) {
+        predicateIndexes = new ArrayList<>();
+        indexes.put(key, predicateIndexes);
+      }
+      for (int i = 0; i < predicateIndexes.size(); i++) {
+        if (predicateIndexes.get(i).positions == positions) {
+          return predicateIndexes.get(i);
+        }
+      }
+      Index index = new Index(positions, trusted);
+      predicateIndexes.add(index);
+      return index;
+    }
+
+    // keys that were not looked up yet are left for the next lookup
+    void add(Key key, Origin origin, Tuple tuple) {
+      List<Pair<Origin, Tuple>> trusted = facts.get(key);
+      if (trusted == null || !scope.contains(origin)) {
+        return;
+      }
+
+      Pair<Origin, Tuple> t = new Pair<>(origin, tuple);
+      trusted.add(t);
+      List<Index> predicateIndexes = indexes.get(key);
+      if (predicateIndexes != null) {
+        for (Index index : predicateIndexes) {
+          index.add(t);
+        }
+      }
+    }
+
+    void remove(Key key) {
+      facts.remove(key);
+      indexes.remove(key);
+    }
+  }
+
+  /**
+   * Maps the values of some of a predicate's terms to the facts holding them
+   *
+   * <p>a fact holding a variable at one of the indexed positions matches any value there, as with
+   * {@link Term#match(Term)}: it is kept apart and returned by every lookup
+   */
+  private static final class Index {
+    // the arity is limited to 63 to represent the indexed positions as a bit field
+    private static final int MAX_ARITY = 63;
+
+    private final long positions;
+    private final HashMap<IndexKey, List<Pair<Origin, Tuple>>> entries;
+    private final List<Pair<Origin, Tuple>> wildcards;
+
+    Index(long positions, List<Pair<Origin, Tuple>> tuples) {
+      this.positions = positions;
+      this.entries = new HashMap<>();
+      this.wildcards = new ArrayList<>();
+      for (Pair<Origin, Tuple> t : tuples) {
+        add(t);
+      }
+    }
+
+    void add(Pair<Origin, Tuple> t) {
+      IndexKey key = IndexKey.of(t._2, positions);
+      if (key == null) {
+        wildcards.add(t);
+        return;
+      }
+      entries.computeIfAbsent(key, k -> new ArrayList<>()).add(t);
+    }
+
+    List<Pair<Origin, Tuple>> get(IndexKey key) {
+      List<Pair<Origin, Tuple>> found = entries.get(key);
+      if (found == null) {
+        found = Collections.emptyList();
+      }
+      if (wildcards.isEmpty()) {
+        return found;
+      }
+      return new Concatenation(Arrays.asList(found, wildcards));
+    }
+  }
+
+  /**
+   * Encoded values of the indexed terms of a fact, compared as {@link Tuple} compares terms
+   *
+   * <p>the keys of an index are never modified, the buffer of a {@link Probe} is filled again
+   * before each lookup
+   */
+  private static final class IndexKey {
+    private final int[] tags;
+    private final long[] values;
+    // terms that are not stored inline, null at the other positions
+    private final Term[] references;
+
+    IndexKey(int size) {
+      this.tags = new int[size];
+      this.values = new long[size];
+      this.references = new Term[size];
+    }
+
+    /** Returns the key of a fact, null if it holds a variable at one of the positions */
+    static IndexKey of(Tuple tuple, long positions) {
+      IndexKey key = new IndexKey(Long.bitCount(positions));
+      int k = 0;
+      for (int i = 0; i < tuple.arity(); i++) {
+        if ((positions & (1L << i)) == 0) {
+          continue;
+        }
+        int tag = tuple.tag(i);
+        if (tag == Tuple.VARIABLE) {
+          return null;
+        } else if (tag == Tuple.REFERENCE) {
+          key.tags[k] = tag;
+          key.references[k] = tuple.term(i);
+        } else {
+          key.tags[k] = tag;
+          key.values[k] = tuple.value(i);
+        }
+        k += 1;
+      }
+      return key;
+    }
+
+    void set(int k, Term term) {
+      int tag = Tuple.tag(term);
+      tags[k] = tag;
+      if (tag == Tuple.REFERENCE) {
+        values[k] = 0;
+        references[k] = term;
+      } else {
+        values[k] = Tuple.value(term);
+        references[k] = null;
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      IndexKey key = (IndexKey) o;
+      if (tags.length != key.tags.length) {
+        return false;
+      }
+      for (int k = 0; k < tags.length; k++) {
+        if (tags[k] != key.tags[k]) {
+          return false;
+        }
+        if (tags[k] == Tuple.REFERENCE
+            ? !references[k].equals(key.references[k])
+            : values[k] != key.values[k]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = 0;
+      for (int k = 0; k < tags.length; k++) {
+        hash = 31 * hash + tags[k];
+        hash =
+            31 * hash
+                + (tags[k] == Tuple.REFERENCE
+                    ? references[k].hashCode()
+                    : Long.hashCode(values[k]));
+      }
+      return hash;
+    }
+  }
+
+  /**
+   * Lookup of the facts that can match a rule body predicate, see {@link #tuples(TrustedOrigins,
+   * Probe)}
+   *
+   * <p>the probe is created once for a join level: the constants of the predicate are encoded in
+   * its key buffer, and the values of the variables bound by the previous levels are written to the
+   * buffer before each lookup, so the facts are looked up in the index without building a predicate
+   * or a key. A probe is used by a single thread
+   */
+  static final class Probe {
+    private final Predicate predicate;
+    private final Key key;
+    // indexed positions (the constants and the looked up variables) as a bit field, 0 if the facts
+    // are not indexed
+    private final long positions;
+    // position and frame slot of each indexed term, the slot is -1 for constants
+    private final int[] termPositions;
+    private final int[] slots;
+    private final IndexKey buffer;
+    // values of the looked up variables, to rebuild the predicate
+    private final Term[] values;
+
+    /** Probe of a predicate without bound variables */
+    Probe(Predicate predicate) {
+      this(predicate, unbound(predicate.terms().size()));
+    }
+
+    /**
+     * @param slots for each term of the predicate, the frame slot holding the value the facts are
+     *     looked up with, -1 for the constants and for the variables that are not bound yet
+     */
+    Probe(Predicate predicate, int[] slots) {
+      this.predicate = predicate;
+      this.key = Key.of(predicate);
+      final List<Term> terms = predicate.terms();
+      long positions = 0;
+      if (terms.size() <= Index.MAX_ARITY) {
+        for (int i = 0; i < terms.size(); i++) {
+          if (!(terms.get(i) instanceof Term.Variable) || slots[i] >= 0) {
+            positions |= 1L << i;
+          }
+        }
+      }
+      this.positions = positions;
+
+      final int size = Long.bitCount(positions);
+      this.termPositions = new int[size];
+      this.slots = new int[size];
+      this.buffer = new IndexKey(size);
+      this.values = new Term[size];
+      int k = 0;
+      for (int i = 0; i < terms.size(); i++) {
+        if ((positions & (1L << i)) == 0) {
+          continue;
+        }
+        this.termPositions[k] = i;
+        if (terms.get(i) instanceof Term.Variable) {
+          this.slots[k] = slots[i];
+        } else {
+          this.slots[k] = -1;
+          this.buffer.set(k, terms.get(i));
+        }
+        k += 1;
+      }
+    }
+
+    private static int[] unbound(int arity) {
+      final int[] slots = new int[arity];
+      Arrays.fill(slots, -1);
+      return slots;
+    }
+
+    /** Reads the values of the looked up variables from the frame, before a lookup */
+    void bind(Frame frame) {
+      for (int k = 0; k < this.slots.length; k++) {
+        if (this.slots[k] >= 0) {
+          final Term value = frame.value(this.slots[k]);
+          this.values[k] = value;
+          this.buffer.set(k, value);
+        }
+      }
+    }
+
+    /** Returns the predicate with the looked up variables replaced by their values */
+    Predicate pattern() {
+      List<Term> terms = null;
+      for (int k = 0; k < this.slots.length; k++) {
+        if (this.slots[k] >= 0) {
+          if (terms == null) {
+            terms = new ArrayList<>(this.predicate.terms());
+          }
+          terms.set(this.termPositions[k], this.values[k]);
+        }
+      }
+      return terms == null ? this.predicate : new Predicate(this.predicate.name(), terms);
+    }
+  }
+
+  /** Lists read one after the other, without copying them */
+  private static final class Concatenation extends AbstractList<Pair<Origin, Tuple>>
+      implements RandomAccess {
+    private final List<List<Pair<Origin, Tuple>>> parts;
+    private final int size;
+
+    Concatenation(List<List<Pair<Origin, Tuple>>> parts) {
+      this.parts = parts;
+      int size = 0;
+      for (List<Pair<Origin, Tuple>> part : parts) {
+        size += part.size();
+      }
+      this.size = size;
+    }
+
+    @Override
+    public Pair<Origin, Tuple> get(int index) {
+      int i = index;
+      for (List<Pair<Origin, Tuple>> part : parts) {
+        if (i < part.size()) {
+          return part.get(i);
+        }
+        i -= part.size();
+      }
+      throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  /** Name and arity of a predicate, facts can only match a rule predicate with the same key */
+  static final class Key {
+    private final long name;
+    private final int arity;
+
+    private Key(long name, int arity) {
+      this.name = name;
+      this.arity = arity;
+    }
+
+    static Key of(Predicate predicate) {
+      return new Key(predicate.name(), predicate.terms().size());
+    }
+
+    static Key of(Tuple tuple) {
+      return new Key(tuple.name(), tuple.arity());
+    }
+
+    static Key of(long name, int arity) {
+      return new Key(name, arity);
+    }
+
+    long name() {
+      return name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      Key key = (Key) o;
+
+      return name == key.name && arity == key.arity;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Long.hashCode(name) + arity;
+    }
+
+    @Override
+    public String toString() {
+      return name + "/" + arity;
+    }
+  }
 }
@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+import org.eclipse.biscuit.error.Error;
+
+/** Receives the facts generated by a rule, as they are found */
+@FunctionalInterface
+interface FactSink {
+  /**
+   * @param origin the origins of the facts matched by the rule body, and the rule's origin
+   * @return false to stop the evaluation of the rule
+   */
+  boolean accept(Origin origin, Fact fact) throws Error;
+}
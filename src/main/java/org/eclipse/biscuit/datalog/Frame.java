@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Values of the variables of a rule, stored by slot (see {@link VariableSlots})
+ *
+ * <p>a frame is reused for all the matches of a rule: bindings are recorded so they can be undone
+ * when backtracking. The frame is also a map from variable to value, so it can be passed to
+ * expressions, keys that are not variables of the rule (closure parameters) are stored apart
+ */
+final class Frame extends AbstractMap<Long, Term> {
+  private final VariableSlots slots;
+  private final Term[] values;
+  // slots bound since the start, in order, so bindings can be undone
+  private final int[] trail;
+  private int trailSize;
+  private HashMap<Long, Term> others;
+
+  Frame(VariableSlots slots) {
+    this.slots = slots;
+    this.values = new Term[slots.size()];
+    this.trail = new int[slots.size()];
+    this.trailSize = 0;
+    this.others = null;
+  }
+
+  /**
+   * Binds a variable
+   *
+   * @return false if the variable is already bound to a different value
+   */
+  boolean bind(int slot, Term value) {
+    final Term current = values[slot];
+    if (current == null) {
+      values[slot] = value;
+      trail[trailSize++] = slot;
+      return true;
+    }
+    return current.equals(value);
+  }
+
+  /** Sets a variable, without recording it to be undone */
+  void set(int slot, Term value) {
+    values[slot] = value;
+  }
+
+  VariableSlots slots() {
+    return slots;
+  }
+
+  Term value(int slot) {
+    return values[slot];
+  }
+
+  /** Returns a marker to undo the bindings made after this call */
+  int mark() {
+    return trailSize;
+  }
+
+  void undo(int mark) {
+    while (trailSize > mark) {
+      values[trail[--trailSize]] = null;
+    }
+  }
+
+  boolean isComplete() {
+    for (Term value : values) {
+      if (value == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Removes the values that are not variables of the rule, before evaluating expressions */
+  void clearOthers() {
+    if (others != null) {
+      others.clear();
+    }
+  }
+
+  /** Returns a copy of the bound variables */
+  Map<Long, Term> toMap() {
+    final Map<Long, Term> map = new HashMap<>();
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        map.put(slots.variable(i), values[i]);
+      }
+    }
+    if (others != null) {
+      map.putAll(others);
+    }
+    return map;
+  }
+
+  @Override
+  public Term get(Object key) {
+    if (!(key instanceof Long)) {
+      return null;
+    }
+    final int slot = slots.slot((Long) key);
+    if (slot >= 0) {
+      return values[slot];
+    }
+    return others == null ? null : others.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public Term put(Long key, Term value) {
+    final int slot = slots.slot(key);
+    if (slot >= 0) {
+      final Term previous = values[slot];
+      values[slot] = value;
+      return previous;
+    }
+    if (others == null) {
+      others = new HashMap<>();
+    }
+    return others.put(key, value);
+  }
+
+  @Override
+  public Term remove(Object key) {
+    if (!(key instanceof Long)) {
+      return null;
+    }
+    final int slot = slots.slot((Long) key);
+    if (slot >= 0) {
+      final Term previous = values[slot];
+      values[slot] = null;
+      return previous;
+    }
+    return others == null ? null : others.remove(key);
+  }
+
+  @Override
+  public Set<Entry<Long, Term>> entrySet() {
+    return toMap().entrySet();
+  }
+}
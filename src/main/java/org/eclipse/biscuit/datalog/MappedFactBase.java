@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Read only set of facts stored in a memory mapped file
+ *
+ * <p>meant for large, static sets of facts (as an example access control lists) shared by many
+ * authorizers: the facts stay in the file, and are only decoded when a rule looks them up, so they
+ * do not use heap memory, and the pages can be shared by all the processes mapping the same file.
+ * The file is written by a {@link Builder}, and added to a world with {@link World#addFacts(Origin,
+ * MappedFactBase, SymbolTable)}.
+ *
+ * <p>the file has its own symbol dictionary, its strings get ids in the symbol table of a world
+ * without being copied in it. The facts of each predicate are sorted, the lookups where the first
+ * terms are known use a binary search. Only integers, dates, booleans, strings and null can
+ * be stored
+ *
+ * <p>file layout, all numbers are big endian:
+ *
+ * <pre>
+ * header:     magic (int), version (int), symbol count (int), predicate count (int)
+ * dictionary: symbol count + 1 string offsets (int), then the sorted UTF-8 strings
+ * directory:  for each predicate, name symbol (int), arity (int), fact count (int), offset (int)
+ * facts:      for each predicate, the sorted facts, each term as a tag (byte) and a value (long)
+ * </pre>
+ */
+public final class MappedFactBase {
+  private static final int MAGIC = 0x42464231;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int DIRECTORY_ENTRY_SIZE = 16;
+  private static final int TERM_SIZE = 1 + Long.BYTES;
+
+  private final ByteBuffer buffer;
+  private final int symbolCount;
+  private final int stringsOffset;
+  // the directory is small, it is read once
+  private final Map<PredicateKey, Partition> partitions;
+  private final int size;
+
+  // the sizes and offsets are checked before anything is read, a truncated or corrupted file
+  // fails to open instead of failing on lookups
+  private MappedFactBase(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    final long capacity = buffer.capacity();
+    if (capacity < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IOException("not a fact base file");
+    }
+    this.symbolCount = buffer.getInt(8);
+    final int predicateCount = buffer.getInt(12);
+    if (symbolCount < 0 || predicateCount < 0) {
+      throw new IOException("invalid fact base header");
+    }
+
+    final long stringsOffset = HEADER_SIZE + (symbolCount + 1L) * Integer.BYTES;
+    if (stringsOffset > capacity) {
+      throw new IOException("truncated fact base dictionary");
+    }
+    this.stringsOffset = (int) stringsOffset;
+    int previous = 0;
+    for (int i = 0; i <= symbolCount; i++) {
+      final int offset = stringOffset(i);
+      if (offset < previous || stringsOffset + offset > capacity) {
+        throw new IOException("invalid fact base dictionary");
+      }
+      previous = offset;
+    }
+
+    final long directoryOffset = stringsOffset + stringOffset(symbolCount);
+    if (directoryOffset + (long) predicateCount * DIRECTORY_ENTRY_SIZE > capacity) {
+      throw new IOException("truncated fact base directory");
+    }
+
+    this.partitions = new HashMap<>();
+    long size = 0;
+    for (int i = 0; i < predicateCount; i++) {
+      final int entry = (int) directoryOffset + i * DIRECTORY_ENTRY_SIZE;
+      final int name = buffer.getInt(entry);
+      final int arity = buffer.getInt(entry + 4);
+      final int count = buffer.getInt(entry + 8);
+      final int offset = buffer.getInt(entry + 12);
+      if (name < 0 || name >= symbolCount || arity < 0 || count < 0 || offset < 0) {
+        throw new IOException("invalid fact base directory");
+      }
+      if (offset + (long) count * arity * TERM_SIZE > capacity) {
+        throw new IOException("truncated fact base facts");
+      }
+      this.partitions.put(
+          new PredicateKey(symbol(name), arity), new Partition(arity, count, offset));
+      size += count;
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("invalid fact base directory");
+    }
+    this.size = (int) size;
+  }
+
+  /** Maps a file written by a {@link Builder} */
+  public static MappedFactBase open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("fact base files are limited to 2GB");
+      }
+      // the mapping stays valid once the channel is closed
+      return new MappedFactBase(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Number of facts */
+  public int size() {
+    return size;
+  }
+
+  int symbolCount() {
+    return symbolCount;
+  }
+
+  private int stringOffset(int index) {
+    return buffer.getInt(HEADER_SIZE + index * Integer.BYTES);
+  }
+
+  String symbol(int index) {
+    final int start = stringOffset(index);
+    final byte[] bytes = new byte[stringOffset(index + 1) - start];
+    final ByteBuffer b = buffer.duplicate();
+    b.position(stringsOffset + start);
+    b.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Index of a string in the dictionary, -1 if it is not present */
+  int symbolIndex(String symbol) {
+    int low = 0;
+    int high = symbolCount - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int comparison = symbol(middle).compareTo(symbol);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  Iterable<Map.Entry<PredicateKey, Partition>> partitions() {
+    return partitions.entrySet();
+  }
+
+  /** The sorted facts of a predicate */
+  final class Partition {
+    private final int arity;
+    private final int count;
+    private final int offset;
+
+    private Partition(int arity, int count, int offset) {
+      this.arity = arity;
+      this.count = count;
+      this.offset = offset;
+    }
+
+    int arity() {
+      return arity;
+    }
+
+    int count() {
+      return count;
+    }
+
+    int tag(int row, int term) {
+      return buffer.get(position(row, term));
+    }
+
+    long value(int row, int term) {
+      return buffer.getLong(position(row, term) + 1);
+    }
+
+    private int position(int row, int term) {
+      return offset + (row * arity + term) * TERM_SIZE;
+    }
+
+    /**
+     * First row whose first terms are greater than or equal to the values (if inclusive), or
+     * strictly greater (if not)
+     */
+    int bound(int[] tags, long[] values, int length, boolean inclusive) {
+      int low = 0;
+      int high = count;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        final int comparison = compare(middle, tags, values, length);
+        if (comparison < 0 || (!inclusive && comparison == 0)) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    private int compare(int row, int[] tags, long[] values, int length) {
+      for (int i = 0; i < length; i++) {
+        final int comparison = compareTerm(tag(row, i), value(row, i), tags[i], values[i]);
+        if (comparison != 0) {
+          return comparison;
+        }
+      }
+      return 0;
+    }
+  }
+
+  private static int compareTerm(int tag, long value, int otherTag, long otherValue) {
+    return tag != otherTag ? Integer.compare(tag, otherTag) : Long.compare(value, otherValue);
+  }
+
+  static final class PredicateKey {
+    private final String name;
+    private final int arity;
+
+    PredicateKey(String name, int arity) {
+      this.name = name;
+      this.arity = arity;
+    }
+
+    String name() {
+      return name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      PredicateKey that = (PredicateKey) o;
+      return arity == that.arity && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(name, arity);
+    }
+  }
+
+  /** Collects facts and writes them to a fact base file */
+  public static final class Builder {
+    private final SymbolTable symbolTable = new SymbolTable();
+    private final Map<PredicateKey, Set<List<Value>>> facts = new HashMap<>();
+
+    private Builder() {}
+
+    public Builder add(org.eclipse.biscuit.token.builder.Fact fact) {
+      return add(fact.convert(this.symbolTable), this.symbolTable);
+    }
+
+    /**
+     * Adds a fact
+     *
+     * @param symbolTable the symbol table of the fact's strings
+     * @throws IllegalArgumentException if a term cannot be stored
+     */
+    public Builder add(Fact fact, SymbolTable symbolTable) {
+      final Predicate predicate = fact.predicate();
+      final List<Value> values = new ArrayList<>(predicate.terms().size());
+      for (Term term : predicate.terms()) {
+        final int tag = Tuple.tag(term);
+        if (tag == Tuple.STR) {
+          values.add(new Value(tag, 0, string(((Term.Str) term).value(), symbolTable)));
+        } else if (tag == Tuple.INTEGER
+            || tag == Tuple.DATE
+            || tag == Tuple.BOOL
+            || tag == Tuple.NULL) {
+          values.add(new Value(tag, Tuple.value(term), null));
+        } else {
+          throw new IllegalArgumentException(
+              "only integers, dates, booleans, strings and null can be stored: " + term);
+        }
+      }
+      this.facts
+          .computeIfAbsent(
+              new PredicateKey(string(predicate.name(), symbolTable), values.size()),
+              k -> new HashSet<>())
+          .add(values);
+      return this;
+    }
+
+    private static String string(long id, SymbolTable symbolTable) {
+      return symbolTable
+          .getSymbol((int) id)
+          .orElseThrow(() -> new IllegalArgumentException("unknown symbol " + id));
+    }
+
+    /** Writes the facts added so far */
+    public void write(Path path) throws IOException {
+      // dictionary
+      final TreeSet<String> strings = new TreeSet<>();
+      for (Map.Entry<PredicateKey, Set<List<Value>>> entry : this.facts.entrySet()) {
+        strings.add(entry.getKey().name);
+        for (List<Value> values : entry.getValue()) {
+          for (Value value : values) {
+            if (value.string != null) {
+              strings.add(value.string);
+            }
+          }
+        }
+      }
+      final Map<String, Integer> indexes = new HashMap<>();
+      final List<byte[]> encoded = new ArrayList<>(strings.size());
+      int stringsSize = 0;
+      for (String s : strings) {
+        indexes.put(s, indexes.size());
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        encoded.add(bytes);
+        stringsSize += bytes.length;
+      }
+
+      // facts, encoded and sorted by predicate
+      final List<PredicateKey> keys = new ArrayList<>(this.facts.keySet());
+      keys.sort(
+          (a, b) ->
+              a.name.equals(b.name) ? Integer.compare(a.arity, b.arity) : a.name.compareTo(b.name));
+      final List<long[][]> rows = new ArrayList<>(keys.size());
+      long factsSize = 0;
+      for (PredicateKey key : keys) {
+        final List<long[]> predicateRows = new ArrayList<>();
+        for (List<Value> values : this.facts.get(key)) {
+          // tag and value of each term
+          final long[] row = new long[2 * key.arity];
+          for (int i = 0; i < key.arity; i++) {
+            final Value value = values.get(i);
+            row[2 * i] = value.tag;
+            row[2 * i + 1] = value.string != null ? indexes.get(value.string) : value.value;
+          }
+          predicateRows.add(row);
+        }
+        predicateRows.sort(
+            (a, b) -> {
+              for (int i = 0; i < a.length; i += 2) {
+                final int comparison = compareTerm((int) a[i], a[i + 1], (int) b[i], b[i + 1]);
+                if (comparison != 0) {
+                  return comparison;
+                }
+              }
+              return 0;
+            });
+        rows.add(predicateRows.toArray(new long[0][]));
+        factsSize += (long) predicateRows.size() * key.arity * TERM_SIZE;
+      }
+
+      final long directoryOffset =
+          HEADER_SIZE + (long) (strings.size() + 1) * Integer.BYTES + stringsSize;
+      final long totalSize =
+          directoryOffset + (long) keys.size() * DIRECTORY_ENTRY_SIZE + factsSize;
+      if (totalSize > Integer.MAX_VALUE) {
+        throw new IOException("fact base files are limited to 2GB");
+      }
+
+      final ByteBuffer out = ByteBuffer.allocate((int) totalSize);
+      out.putInt(MAGIC).putInt(VERSION).putInt(strings.size()).putInt(keys.size());
+      int stringOffset = 0;
+      for (byte[] bytes : encoded) {
+        out.putInt(stringOffset);
+        stringOffset += bytes.length;
+      }
+      out.putInt(stringOffset);
+      for (byte[] bytes : encoded) {
+        out.put(bytes);
+      }
+      int factsOffset = (int) (directoryOffset + (long) keys.size() * DIRECTORY_ENTRY_SIZE);
+      for (int i = 0; i < keys.size(); i++) {
+        final PredicateKey key = keys.get(i);
+        out.putInt(indexes.get(key.name))
+            .putInt(key.arity)
+            .putInt(rows.get(i).length)
+            .putInt(factsOffset);
+        factsOffset += rows.get(i).length * key.arity * TERM_SIZE;
+      }
+      for (long[][] predicateRows : rows) {
+        for (long[] row : predicateRows) {
+          for (int i = 0; i < row.length; i += 2) {
+            out.put((byte) row[i]).putLong(row[i + 1]);
+          }
+        }
+      }
+
+      out.flip();
+      try (FileChannel channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE)) {
+        while (out.hasRemaining()) {
+          channel.write(out);
+        }
+      }
+    }
+  }
+
+  /** A term of a fact added to a builder, strings are kept until the dictionary is built */
+  private static final class Value {
+    private final int tag;
+    private final long value;
+    private final String string;
+
+    Value(int tag, long value, String string) {
+      this.tag = tag;
+      this.value = value;
+      this.string = string;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Value other = (Value) o;
+      return tag == other.tag && value == other.value && Objects.equals(string, other.string);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(tag, value, string);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The facts of a {@link MappedFactBase} added to a {@link FactSet}, with a single origin
+ *
+ * <p>strings are translated between the dictionary of the file and the ids of the symbol table of
+ * the world with a {@link SymbolTable.Dictionary}, the strings stay in the file. Rows are decoded
+ * when they are read from the lists returned by lookups
+ */
+final class MappedFacts {
+  private final MappedFactBase base;
+  private final Origin origin;
+  private final SymbolTable.Dictionary dictionary;
+  // the partitions of the file, by the name id and arity of their predicate
+  private final Map<FactSet.Key, MappedFactBase.Partition> partitions;
+
+  MappedFacts(MappedFactBase base, Origin origin, SymbolTable.Dictionary dictionary) {
+    this.base = base;
+    this.origin = origin;
+    this.dictionary = dictionary;
+    this.partitions = new HashMap<>();
+    for (Map.Entry<MappedFactBase.PredicateKey, MappedFactBase.Partition> entry :
+        base.partitions()) {
+      final long name = dictionary.id(base.symbolIndex(entry.getKey().name()));
+      this.partitions.put(FactSet.Key.of(name, entry.getValue().arity()), entry.getValue());
+    }
+  }
+
+  Origin origin() {
+    return origin;
+  }
+
+  /** Name and arity of the predicates of the file */
+  Set<FactSet.Key> keys() {
+    return partitions.keySet();
+  }
+
+  /** Number of facts with the same name and arity as the predicate */
+  int size(Predicate predicate) {
+    final MappedFactBase.Partition partition = partitions.get(FactSet.Key.of(predicate));
+    return partition == null ? 0 : partition.count();
+  }
+
+  /**
+   * Returns the facts matching the constants of the predicate, if the origin is trusted
+   *
+   * <p>the facts whose first terms are constants of the predicate are found with a binary search,
+   * then the other constants are compared. Variables of the predicate match any term. The returned
+   * list is a view of the matching rows, a row is decoded each time it is read
+   */
+  List<Pair<Origin, Tuple>> tuples(TrustedOrigins scope, Predicate predicate) {
+    if (!scope.contains(this.origin)) {
+      return Collections.emptyList();
+    }
+    final MappedFactBase.Partition partition = partitions.get(FactSet.Key.of(predicate));
+    if (partition == null) {
+      return Collections.emptyList();
+    }
+
+    // the constants, encoded as in the file
+    final int arity = partition.arity();
+    final boolean[] bound = new boolean[arity];
+    final int[] tags = new int[arity];
+    final long[] values = new long[arity];
+    for (int i = 0; i < arity; i++) {
+      final Term term = predicate.terms().get(i);
+      if (term instanceof Term.Variable) {
+        continue;
+      }
+      if (!encode(Tuple.tag(term), Tuple.value(term), i, tags, values)) {
+        // no fact of the file holds this term
+        return Collections.emptyList();
+      }
+      bound[i] = true;
+    }
+
+    int prefix = 0;
+    while (prefix < arity && bound[prefix]) {
+      prefix += 1;
+    }
+    final int start = prefix == 0 ? 0 : partition.bound(tags, values, prefix, true);
+    final int end = prefix == 0 ? partition.count() : partition.bound(tags, values, prefix, false);
+    boolean checks = false;
+    for (int i = prefix; i < arity; i++) {
+      checks |= bound[i];
+    }
+    if (!checks) {
+      return new Rows(predicate.name(), partition, start, end - start, null);
+    }
+
+    // only the row numbers are kept
+    int[] rows = new int[Math.min(end - start, 16)];
+    int count = 0;
+    for (int row = start; row < end; row++) {
+      if (matches(partition, row, bound, tags, values, prefix)) {
+        if (count == rows.length) {
+          rows = Arrays.copyOf(rows, 2 * count);
+        }
+        rows[count++] = row;
+      }
+    }
+    return new Rows(predicate.name(), partition, 0, count, rows);
+  }
+
+  /** Checks if the file holds the fact, for the same origin */
+  boolean contains(Origin origin, Tuple tuple) {
+    if (!this.origin.equals(origin)) {
+      return false;
+    }
+    final MappedFactBase.Partition partition = partitions.get(FactSet.Key.of(tuple));
+    if (partition == null) {
+      return false;
+    }
+    final int arity = tuple.arity();
+    final int[] tags = new int[arity];
+    final long[] values = new long[arity];
+    for (int i = 0; i < arity; i++) {
+      if (!encode(tuple.tag(i), tuple.value(i), i, tags, values)) {
+        return false;
+      }
+    }
+    return partition.bound(tags, values, arity, true) < partition.bound(tags, values, arity, false);
+  }
+
+  /** All the facts, if the origin is trusted */
+  Stream<Pair<Origin, Fact>> stream(TrustedOrigins scope) {
+    if (!scope.contains(this.origin)) {
+      return Stream.empty();
+    }
+    return stream().map(fact -> new Pair<>(this.origin, fact));
+  }
+
+  /** All the facts */
+  Stream<Fact> stream() {
+    return partitions.entrySet().stream()
+        .flatMap(
+            entry -> {
+              final long name = entry.getKey().name();
+              final MappedFactBase.Partition partition = entry.getValue();
+              return IntStream.range(0, partition.count())
+                  .mapToObj(row -> decode(name, partition, row).toFact());
+            });
+  }
+
+  private static boolean matches(
+      MappedFactBase.Partition partition,
+      int row,
+      boolean[] bound,
+      int[] tags,
+      long[] values,
+      int prefix) {
+    for (int i = prefix; i < bound.length; i++) {
+      if (bound[i] && (partition.tag(row, i) != tags[i] || partition.value(row, i) != values[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // false if no fact of the file can hold the term
+  private boolean encode(int tag, long value, int i, int[] tags, long[] values) {
+    if (tag == Tuple.REFERENCE || tag == Tuple.VARIABLE) {
+      return false;
+    }
+    tags[i] = tag;
+    if (tag == Tuple.STR) {
+      final int index = this.dictionary.index(value);
+      if (index < 0) {
+        return false;
+      }
+      values[i] = index;
+    } else {
+      values[i] = value;
+    }
+    return true;
+  }
+
+  private Tuple decode(long name, MappedFactBase.Partition partition, int row) {
+    final int[] tags = new int[partition.arity()];
+    final long[] values = new long[partition.arity()];
+    for (int i = 0; i < tags.length; i++) {
+      tags[i] = partition.tag(row, i);
+      values[i] = partition.value(row, i);
+      if (tags[i] == Tuple.STR) {
+        values[i] = this.dictionary.id((int) values[i]);
+      }
+    }
+    return Tuple.of(name, tags, values);
+  }
+
+  @Override
+  public String toString() {
+    return "MappedFacts{origin=" + origin + ", size=" + base.size() + '}';
+  }
+
+  /** Rows of a partition, decoded when they are read */
+  private final class Rows extends AbstractList<Pair<Origin, Tuple>> implements RandomAccess {
+    private final long name;
+    private final MappedFactBase.Partition partition;
+    private final int start;
+    private final int size;
+    // row numbers, null if the rows are consecutive
+    private final int[] rows;
+
+    Rows(long name, MappedFactBase.Partition partition, int start, int size, int[] rows) {
+      this.name = name;
+      this.partition = partition;
+      this.start = start;
+      this.size = size;
+      this.rows = rows;
+    }
+
+    @Override
+    public Pair<Origin, Tuple> get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+      }
+      final int row = rows == null ? start + index : rows[index];
+      return new Pair<>(origin, decode(name, partition, row));
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+}
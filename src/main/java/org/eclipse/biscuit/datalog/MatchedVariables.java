@@ -35,6 +35,10 @@ public final class MatchedVariables implements Serializable {
     return this.variables.get(key);
   }
 
+  Set<Long> ids() {
+    return this.variables.keySet();
+  }
+
   public boolean isComplete() {
     return this.variables.values().stream().allMatch((v) -> v.isPresent());
   }
@@ -80,7 +84,7 @@ public final class MatchedVariables implements Serializable {
         if (!(term instanceof Term.Bool)) {
           throw new Error.InvalidType();
         }
-        if (!term.equals(new Term.Bool(true))) {
+        if (!term.equals(Term.Bool.TRUE)) {
           return Optional.empty();
         }
       }
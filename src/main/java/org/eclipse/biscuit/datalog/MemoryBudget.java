@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.biscuit.error.Error;
+
+/**
+ * Memory limit of an iteration, charged as the generated facts are inserted
+ *
+ * <p>the generated facts are counted before they are merged, including the ones that are already
+ * known, so the estimate can only be above the memory retained once the iteration is done
+ */
+final class MemoryBudget {
+  // number of inserted facts between two reads of the memory estimate
+  private static final int CHECK_INTERVAL = 64;
+
+  private final long maxBytes;
+  private final long knownBytes;
+  // shared by the rules applied in parallel
+  private final AtomicLong generatedBytes;
+
+  private MemoryBudget(long maxBytes, long knownBytes) {
+    this.maxBytes = maxBytes;
+    this.knownBytes = knownBytes;
+    this.generatedBytes = new AtomicLong();
+  }
+
+  /**
+   * Budget of an iteration
+   *
+   * @param facts the facts known before the iteration
+   */
+  static MemoryBudget of(RunLimits limits, FactSet facts) {
+    return new MemoryBudget(limits.getMaxMemoryBytes(), facts.memoryBytes());
+  }
+
+  /** Returns the tracker of a fact set receiving generated facts, used by a single thread */
+  Tracker track(FactSet generated) {
+    return new Tracker(generated);
+  }
+
+  final class Tracker {
+    private final FactSet generated;
+    private long chargedBytes;
+    private int countdown;
+
+    private Tracker(FactSet generated) {
+      this.generated = generated;
+      this.chargedBytes = generated.memoryBytes();
+      this.countdown = 0;
+    }
+
+    /**
+     * Checks the budget every {@value MemoryBudget#CHECK_INTERVAL} calls, called after each
+     * insertion
+     *
+     * @throws Error.TooMuchMemory if the known and generated facts are over the limit
+     */
+    void check() throws Error.TooMuchMemory {
+      if (--this.countdown > 0) {
+        return;
+      }
+      this.countdown = CHECK_INTERVAL;
+      final long bytes = this.generated.memoryBytes();
+      final long total = generatedBytes.addAndGet(bytes - this.chargedBytes);
+      this.chargedBytes = bytes;
+      if (knownBytes + total > maxBytes) {
+        throw new Error.TooMuchMemory();
+      }
+    }
+  }
+}
@@ -8,24 +8,30 @@ package org.eclipse.biscuit.datalog;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Objects;
 import java.util.Set;
 
 public final class Origin {
-  private final HashSet<Long> blockIds;
+  // blocks 0 to 62 are stored as bits 0 to 62, the authorizer (Long.MAX_VALUE) as bit 63
+  private static final int MAX_BIT_BLOCK = 62;
+  private static final long AUTHORIZER_BIT = 1L << 63;
+
+  private long bits;
+  // other block ids, for tokens with more than 63 blocks, null if there are none
+  private HashSet<Long> overflow;
 
   public Origin() {
-    this.blockIds = new HashSet<>();
+    this.bits = 0;
+    this.overflow = null;
   }
 
   public Origin(Long i) {
-    this.blockIds = new HashSet<>();
-    this.blockIds.add(i);
+    this();
+    add(i);
   }
 
   public Origin(int i) {
-    this.blockIds = new HashSet<>();
-    this.blockIds.add((long) i);
+    this();
+    add(i);
   }
 
   public static Origin authorizer() {
@@ -33,31 +39,65 @@ public final class Origin {
   }
 
   public void add(int i) {
-    blockIds.add((long) i);
+    add((long) i);
   }
 
   public void add(long i) {
-    blockIds.add(i);
+    if (i >= 0 && i <= MAX_BIT_BLOCK) {
+      bits |= 1L << i;
+    } else if (i == Long.MAX_VALUE) {
+      bits |= AUTHORIZER_BIT;
+    } else {
+      if (overflow == null) {
+        overflow = new HashSet<>();
+      }
+      overflow.add(i);
+    }
   }
 
   public boolean addAll(final Collection<Long> newBlockIds) {
-    return this.blockIds.addAll(newBlockIds);
+    final long previousBits = bits;
+    final int previousOverflow = overflow == null ? 0 : overflow.size();
+    for (Long i : newBlockIds) {
+      add(i);
+    }
+    return bits != previousBits || (overflow != null && overflow.size() != previousOverflow);
+  }
+
+  /** Adds the block ids of another origin */
+  void addAll(Origin other) {
+    bits |= other.bits;
+    if (other.overflow != null) {
+      if (overflow == null) {
+        overflow = new HashSet<>();
+      }
+      overflow.addAll(other.overflow);
+    }
   }
 
   public Origin union(Origin other) {
     Origin o = this.clone();
-    o.blockIds.addAll(other.blockIds);
+    o.addAll(other);
     return o;
   }
 
   public boolean containsAll(Origin other) {
-    return this.blockIds.containsAll(other.blockIds);
+    if ((other.bits & ~this.bits) != 0) {
+      return false;
+    }
+    if (other.overflow == null) {
+      return true;
+    }
+    return this.overflow != null && this.overflow.containsAll(other.overflow);
   }
 
   @Override
   protected Origin clone() {
     final Origin newOrigin = new Origin();
-    newOrigin.addAll(this.blockIds);
+    newOrigin.bits = this.bits;
+    if (this.overflow != null) {
+      newOrigin.overflow = new HashSet<>(this.overflow);
+    }
     return newOrigin;
   }
 
@@ -72,20 +112,47 @@ public final class Origin {
 
     Origin origin = (Origin) o;
 
-    return Objects.equals(blockIds, origin.blockIds);
+    if (bits != origin.bits) {
+      return false;
+    }
+    if (overflow == null || origin.overflow == null) {
+      return overflow == origin.overflow;
+    }
+    return overflow.equals(origin.overflow);
   }
 
+  // same value as the hash code of the set of block ids
   @Override
   public int hashCode() {
-    return blockIds != null ? blockIds.hashCode() : 0;
+    int hash = 0;
+    for (long b = bits & ~AUTHORIZER_BIT; b != 0; b &= b - 1) {
+      hash += Long.numberOfTrailingZeros(b);
+    }
+    if ((bits & AUTHORIZER_BIT) != 0) {
+      hash += Long.hashCode(Long.MAX_VALUE);
+    }
+    if (overflow != null) {
+      hash += overflow.hashCode();
+    }
+    return hash;
   }
 
   @Override
   public String toString() {
-    return "Origin{inner=" + blockIds + '}';
+    return "Origin{inner=" + blockIds() + '}';
   }
 
   public Set<Long> blockIds() {
-    return Collections.unmodifiableSet(this.blockIds);
+    final HashSet<Long> blockIds = new HashSet<>();
+    for (long b = bits & ~AUTHORIZER_BIT; b != 0; b &= b - 1) {
+      blockIds.add((long) Long.numberOfTrailingZeros(b));
+    }
+    if ((bits & AUTHORIZER_BIT) != 0) {
+      blockIds.add(Long.MAX_VALUE);
+    }
+    if (overflow != null) {
+      blockIds.addAll(overflow);
+    }
+    return Collections.unmodifiableSet(blockIds);
   }
 }
@@ -8,13 +8,16 @@ package org.eclipse.biscuit.datalog;
 import biscuit.format.schema.Schema;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -28,6 +31,13 @@ public final class Rule implements Serializable {
   private final List<Predicate> body;
   private final List<Expression> expressions;
   private final List<Scope> scopes;
+  // body variable numbering, computed on first use
+  private transient volatile VariableSlots slots;
+  // expressions used for evaluation, see optimizeExpressions
+  private transient List<Expression> evaluatedExpressions;
+  private transient boolean neverMatches;
+  // specialized evaluator, see compile
+  private transient volatile CompiledRule compiled;
 
   public Predicate head() {
     return this.head;
@@ -45,56 +55,290 @@ public final class Rule implements Serializable {
     return scopes;
   }
 
+  /** Compiles the literal regex patterns of the expressions into the shared regex cache */
+  public void precompileRegexes(SymbolTable symbolTable) {
+    for (Expression e : this.expressions) {
+      e.precompileRegexes(symbolTable);
+    }
+  }
+
+  /**
+   * Simplifies the expressions used to evaluate the rule
+   *
+   * <p>constant sub-expressions are replaced by their value (see {@link
+   * Expression#simplify(SymbolTable)}), and expressions that are always true are not evaluated
+   * anymore. If an expression is always false, the rule cannot generate facts and its body is not
+   * matched. The evaluator trees of the remaining expressions are built (see {@link
+   * Expression#compile()}). {@link #expressions()} still returns the original expressions
+   *
+   * @param symbolTable the symbol table the rule will be evaluated with
+   */
+  public void optimizeExpressions(SymbolTable symbolTable) {
+    final List<Expression> simplified = new ArrayList<>();
+    boolean alwaysFalse = false;
+    for (Expression e : this.expressions) {
+      final Expression s = e.simplify(symbolTable);
+      if (s.getOps().size() == 1 && s.getOps().get(0) instanceof Term.Bool) {
+        if (((Term.Bool) s.getOps().get(0)).value()) {
+          continue;
+        }
+        alwaysFalse = true;
+      }
+      s.compile();
+      simplified.add(s);
+    }
+    this.evaluatedExpressions = simplified;
+    this.neverMatches = alwaysFalse;
+    if (this.compiled != null) {
+      compile();
+    }
+  }
+
+  /**
+   * Builds a specialized evaluator for the rule, used instead of the interpreter when the rule is
+   * applied to a {@link FactSet}
+   *
+   * <p>it is meant for rules that are applied many times, as in long lived authorizers. Rules that
+   * cannot be compiled keep using the interpreter, see {@link CompiledRule}
+   *
+   * @return true if the rule was compiled
+   */
+  public boolean compile() {
+    this.compiled = CompiledRule.of(this.head, this.body, evaluatedExpressions(), slots());
+    return this.compiled != null;
+  }
+
+  public boolean isCompiled() {
+    return this.compiled != null;
+  }
+
+  private List<Expression> evaluatedExpressions() {
+    return this.evaluatedExpressions != null ? this.evaluatedExpressions : this.expressions;
+  }
+
   public Stream<Result<Pair<Origin, Fact>, Error>> apply(
       final Supplier<Stream<Pair<Origin, Fact>>> factsSupplier,
       Long ruleOrigin,
       SymbolTable symbolTable) {
-    MatchedVariables variables = variablesSet();
+    return this.apply(
+        Collections.nCopies(this.body.size(), (pattern) -> factsSupplier.get()),
+        ruleOrigin,
+        symbolTable);
+  }
 
-    Combinator combinator = new Combinator(variables, this.body, factsSupplier, symbolTable);
-    Spliterator<Pair<Origin, Map<Long, Term>>> splitItr =
-        Spliterators.spliteratorUnknownSize(combinator, Spliterator.ORDERED);
-    Stream<Pair<Origin, Map<Long, Term>>> stream = StreamSupport.stream(splitItr, false);
-
-    return stream.flatMap(
-        t -> {
-          Origin origin = t._1;
-          Map<Long, Term> generatedVariables = t._2;
-          TemporarySymbolTable temporarySymbols = new TemporarySymbolTable(symbolTable);
-          for (Expression e : this.expressions) {
-            try {
-              Term term = e.evaluate(generatedVariables, temporarySymbols);
-
-              if (term instanceof Term.Bool) {
-                Term.Bool b = (Term.Bool) term;
-                if (!b.value()) {
-                  return Stream.empty();
-                }
-                // continue evaluating if true
+  /**
+   * Applies the rule with a separate fact source for each body predicate
+   *
+   * @param factsSources one fact source per body predicate, in the same order as {@link #body()},
+   *     see {@link Combinator}
+   */
+  public Stream<Result<Pair<Origin, Fact>, Error>> apply(
+      final List<Function<Predicate, Stream<Pair<Origin, Fact>>>> factsSources,
+      Long ruleOrigin,
+      SymbolTable symbolTable) {
+    return this.apply(this.body, Combinator.encode(factsSources), ruleOrigin, symbolTable);
+  }
+
+  /**
+   * Applies the rule, joining the body predicates in the order chosen by {@link JoinPlanner}, and
+   * passes each generated fact to the sink
+   *
+   * @param sizes number of facts each fact source can return, used to plan the join order
+   * @throws Error if a generated fact cannot be built, or if the sink fails
+   */
+  void apply(
+      final List<Combinator.FactSource> factsSources,
+      final int[] sizes,
+      Long ruleOrigin,
+      SymbolTable symbolTable,
+      FactSink sink)
+      throws Error {
+    // an expression is always false, every match would be discarded
+    if (this.neverMatches) {
+      return;
+    }
+
+    final int[] order = JoinPlanner.order(this.body, sizes);
+    final Frame frame = new Frame(slots());
+    final Combinator combinator =
+        join(frame, reorder(this.body, order), reorder(factsSources, order), symbolTable);
+    final int[] headSlots = slots().slots(this.head);
+
+    while (combinator.advance()) {
+      Result<Predicate, Error> head = generateHead(frame, headSlots);
+      if (head.isErr()) {
+        throw head.getErr();
+      }
+      Origin origin = combinator.origin();
+      origin.add(ruleOrigin);
+      if (!sink.accept(origin, new Fact(head.getOk()))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Applies the rule to facts from trusted origins, with the compiled evaluator if there is one
+   *
+   * @param facts the facts each body predicate is matched against, in body order
+   * @throws Error if a generated fact cannot be built, or if the sink fails
+   */
+  void apply(
+      final FactSet[] facts,
+      TrustedOrigins scope,
+      Long ruleOrigin,
+      SymbolTable symbolTable,
+      FactSink sink)
+      throws Error {
+    final int[] sizes = new int[this.body.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = facts[i].size(this.body.get(i));
+    }
+
+    final CompiledRule compiled = this.compiled;
+    if (compiled == null) {
+      final List<Combinator.FactSource> sources =
+          new ArrayList<>(facts.length);
+      for (FactSet f : facts) {
+        sources.add((probe) -> f.tuples(scope, probe));
+      }
+      apply(sources, sizes, ruleOrigin, symbolTable, sink);
+    } else if (!this.neverMatches) {
+      compiled.apply(
+          facts, JoinPlanner.order(this.body, sizes), scope, ruleOrigin, symbolTable, sink);
+    }
+  }
+
+  /**
+   * Applies the rule to facts from trusted origins, joining the body predicates in the order chosen
+   * by {@link JoinPlanner}
+   *
+   * <p>the rule is interpreted, and matches are only looked for as the stream is consumed
+   */
+  Stream<Result<Pair<Origin, Fact>, Error>> apply(
+      final FactSet facts, TrustedOrigins scope, Long ruleOrigin, SymbolTable symbolTable) {
+    final int[] order = JoinPlanner.order(this.body, factsSizes(facts));
+    return this.apply(
+        reorder(this.body, order),
+        reorder(factsSources(facts, scope), order),
+        ruleOrigin,
+        symbolTable);
+  }
+
+  /**
+   * Same facts for every body predicate, see {@link #apply(FactSet[], TrustedOrigins, Long,
+   * SymbolTable, FactSink)}
+   */
+  void apply(
+      final FactSet facts,
+      TrustedOrigins scope,
+      Long ruleOrigin,
+      SymbolTable symbolTable,
+      FactSink sink)
+      throws Error {
+    final FactSet[] sources = new FactSet[this.body.size()];
+    Arrays.fill(sources, facts);
+    apply(sources, scope, ruleOrigin, symbolTable, sink);
+  }
+
+  private Stream<Result<Pair<Origin, Fact>, Error>> apply(
+      final List<Predicate> body,
+      final List<Combinator.FactSource> factsSources,
+      Long ruleOrigin,
+      SymbolTable symbolTable) {
+    // an expression is always false, every match would be discarded
+    if (this.neverMatches) {
+      return Stream.empty();
+    }
+
+    final Frame frame = new Frame(slots());
+    final Combinator combinator = join(frame, body, factsSources, symbolTable);
+    final int[] headSlots = slots().slots(this.head);
+
+    return StreamSupport.stream(
+        new Spliterators.AbstractSpliterator<Result<Pair<Origin, Fact>, Error>>(
+            Long.MAX_VALUE, Spliterator.ORDERED) {
+          @Override
+          public boolean tryAdvance(Consumer<? super Result<Pair<Origin, Fact>, Error>> action) {
+            if (combinator.advance()) {
+              Result<Predicate, Error> head = generateHead(frame, headSlots);
+              if (head.isErr()) {
+                action.accept(Result.err(head.getErr()));
               } else {
-                return Stream.empty();
+                Origin origin = combinator.origin();
+                origin.add(ruleOrigin);
+                action.accept(Result.ok(new Pair<>(origin, new Fact(head.getOk()))));
               }
-            } catch (Error error) {
-              return Stream.empty();
+              return true;
             }
+            return false;
           }
+        },
+        false);
+  }
 
-          Predicate p = this.head.clone();
-          for (int index = 0; index < p.terms().size(); index++) {
-            if (p.terms().get(index) instanceof Term.Variable) {
-              Term.Variable var = (Term.Variable) p.terms().get(index);
-              if (!generatedVariables.containsKey(var.value())) {
-                // throw new Error("variables that appear in the head should appear in the body
-                // as well");
-                return Stream.of(Result.<Pair<Origin, Fact>, Error>err(new Error.InternalError()));
-              }
-              p.terms().set(index, generatedVariables.get(var.value()));
-            }
-          }
+  // the expressions are checked during the join
+  private Combinator join(
+      Frame frame,
+      List<Predicate> body,
+      List<Combinator.FactSource> factsSources,
+      SymbolTable symbolTable) {
+    final Combinator combinator = new Combinator(frame, body, factsSources, symbolTable);
+    combinator.filter(evaluatedExpressions());
+    return combinator;
+  }
 
-          origin.add(ruleOrigin);
-          return Stream.of(Result.<Pair<Origin, Fact>, Error>ok(new Pair<>(origin, new Fact(p))));
-        });
+  private Result<Predicate, Error> generateHead(Frame frame, int[] slots) {
+    final List<Term> terms = new ArrayList<>(this.head.terms());
+    for (int index = 0; index < terms.size(); index++) {
+      if (terms.get(index) instanceof Term.Variable) {
+        final Term value = slots[index] < 0 ? null : frame.value(slots[index]);
+        if (value == null) {
+          // throw new Error("variables that appear in the head should appear in the body
+          // as well");
+          return Result.err(new Error.InternalError());
+        }
+        terms.set(index, value);
+      }
+    }
+    return Result.ok(new Predicate(this.head.name(), terms));
+  }
+
+  // the body variables are numbered once, the rule is immutable
+  private VariableSlots slots() {
+    VariableSlots s = this.slots;
+    if (s == null) {
+      s = VariableSlots.of(Collections.emptyList(), this.body);
+      this.slots = s;
+    }
+    return s;
+  }
+
+  /**
+   * Creates one fact source per body predicate, looking up the facts from trusted origins that
+   * match the bound predicate
+   */
+  List<Combinator.FactSource> factsSources(
+      final FactSet facts, TrustedOrigins scope) {
+    return Collections.nCopies(
+        this.body.size(), (probe) -> facts.tuples(scope, probe));
+  }
+
+  /** Returns the number of facts with the same name and arity as each body predicate */
+  int[] factsSizes(final FactSet facts) {
+    final int[] sizes = new int[this.body.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = facts.size(this.body.get(i));
+    }
+    return sizes;
+  }
+
+  private static <T> List<T> reorder(List<T> list, int[] order) {
+    final List<T> reordered = new ArrayList<>(order.length);
+    for (int i : order) {
+      reordered.add(list.get(i));
+    }
+    return reordered;
   }
 
   private MatchedVariables variablesSet() {
@@ -117,23 +361,20 @@ public final class Rule implements Serializable {
     MatchedVariables variables = variablesSet();
 
     if (this.body.isEmpty()) {
-      return variables.checkExpressions(this.expressions, symbolTable).isPresent();
-    }
-
-    Supplier<Stream<Pair<Origin, Fact>>> factsSupplier = () -> facts.stream(scope);
-    var stream = this.apply(factsSupplier, origin, symbolTable);
-    var it = stream.iterator();
-
-    if (!it.hasNext()) {
-      return false;
+      return variables.checkExpressions(evaluatedExpressions(), symbolTable).isPresent();
     }
 
-    var next = it.next();
-    if (next.isOk()) {
-      return true;
-    } else {
-      throw next.getErr();
-    }
+    final boolean[] found = {false};
+    this.apply(
+        facts,
+        scope,
+        origin,
+        symbolTable,
+        (factOrigin, fact) -> {
+          found[0] = true;
+          return false;
+        });
+    return found[0];
   }
 
   // verifies that the expressions return true for every matching set of facts
@@ -142,22 +383,27 @@ public final class Rule implements Serializable {
     MatchedVariables variables = variablesSet();
 
     if (this.body.isEmpty()) {
-      return variables.checkExpressions(this.expressions, symbolTable).isPresent();
+      return variables.checkExpressions(evaluatedExpressions(), symbolTable).isPresent();
     }
 
-    Supplier<Stream<Pair<Origin, Fact>>> factsSupplier = () -> facts.stream(scope);
-    Combinator combinator = new Combinator(variables, this.body, factsSupplier, symbolTable);
+    final int[] order = JoinPlanner.order(this.body, factsSizes(facts));
+    final Frame frame = new Frame(slots());
+    final Combinator combinator =
+        new Combinator(
+            frame,
+            reorder(this.body, order),
+            reorder(factsSources(facts, scope), order),
+            symbolTable);
     boolean found = false;
 
-    for (Combinator it = combinator; it.hasNext(); ) {
-      Pair<Origin, Map<Long, Term>> t = it.next();
-      Map<Long, Term> generatedVariables = t._2;
+    while (combinator.advance()) {
       found = true;
+      frame.clearOthers();
 
       TemporarySymbolTable temporarySymbols = new TemporarySymbolTable(symbolTable);
-      for (Expression e : this.expressions) {
+      for (Expression e : evaluatedExpressions()) {
 
-        Term term = e.evaluate(generatedVariables, temporarySymbols);
+        Term term = e.evaluate(frame, temporarySymbols);
         if (term instanceof Term.Bool) {
           Term.Bool b = (Term.Bool) term;
           if (!b.value()) {
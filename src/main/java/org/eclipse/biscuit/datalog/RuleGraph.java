@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dependency graph between the predicates generated and used by rules
+ *
+ * <p>there is an edge from a rule's head predicate to each of its body predicates. Rules are
+ * grouped by strongly connected component of that graph: the rules of a component only need to be
+ * evaluated once all the components they depend on have reached their fixpoint, and a component
+ * where no rule uses a predicate generated by the component is not recursive and only needs to be
+ * evaluated once
+ */
+final class RuleGraph {
+  private final Map<FactSet.Key, List<ScopedRule>> rulesByHead;
+  private final Map<FactSet.Key, Set<FactSet.Key>> dependencies;
+
+  // Tarjan's algorithm state
+  private final Map<FactSet.Key, Integer> indexes = new HashMap<>();
+  private final Map<FactSet.Key, Integer> lowLinks = new HashMap<>();
+  private final Deque<FactSet.Key> stack = new ArrayDeque<>();
+  private final Set<FactSet.Key> onStack = new HashSet<>();
+  private final List<Component> components = new ArrayList<>();
+
+  private RuleGraph(RuleSet rules) {
+    this.rulesByHead = new LinkedHashMap<>();
+    for (Map.Entry<TrustedOrigins, List<Pair<Long, Rule>>> entry : rules.getRules().entrySet()) {
+      for (Pair<Long, Rule> t : entry.getValue()) {
+        rulesByHead
+            .computeIfAbsent(FactSet.Key.of(t._2.head()), k -> new ArrayList<>())
+            .add(new ScopedRule(entry.getKey(), t._1, t._2));
+      }
+    }
+
+    // predicates that are not generated by any rule have no incoming edge, they can be ignored
+    this.dependencies = new HashMap<>();
+    for (Map.Entry<FactSet.Key, List<ScopedRule>> entry : rulesByHead.entrySet()) {
+      Set<FactSet.Key> keys = new HashSet<>();
+      for (ScopedRule scopedRule : entry.getValue()) {
+        for (Predicate predicate : scopedRule.rule.body()) {
+          FactSet.Key key = FactSet.Key.of(predicate);
+          if (rulesByHead.containsKey(key)) {
+            keys.add(key);
+          }
+        }
+      }
+      dependencies.put(entry.getKey(), keys);
+    }
+  }
+
+  /**
+   * Groups rules by strongly connected component
+   *
+   * @return the components in evaluation order: a component comes after all the components that
+   *     generate the predicates used in its rules
+   */
+  static List<Component> components(RuleSet rules) {
+    RuleGraph graph = new RuleGraph(rules);
+    for (FactSet.Key key : graph.rulesByHead.keySet()) {
+      if (!graph.indexes.containsKey(key)) {
+        graph.connect(key);
+      }
+    }
+    return graph.components;
+  }
+
+  /**
+   * Groups the rules needed to generate the goal predicates by strongly connected component
+   *
+   * <p>only the rules generating a goal predicate, or a predicate used by one of those rules, and so
+   * on, are returned
+   *
+   * @return the components in evaluation order
+   */
+  static List<Component> components(RuleSet rules, Collection<Predicate> goals) {
+    RuleGraph graph = new RuleGraph(rules);
+    for (Predicate goal : goals) {
+      FactSet.Key key = FactSet.Key.of(goal);
+      if (graph.rulesByHead.containsKey(key) && !graph.indexes.containsKey(key)) {
+        graph.connect(key);
+      }
+    }
+    return graph.components;
+  }
+
+  // a component is only complete once all the components reachable from it are complete,
+  // so components are found in evaluation order
+  private void connect(FactSet.Key key) {
+    int index = indexes.size();
+    indexes.put(key, index);
+    lowLinks.put(key, index);
+    stack.push(key);
+    onStack.add(key);
+
+    for (FactSet.Key dependency : dependencies.get(key)) {
+      if (!indexes.containsKey(dependency)) {
+        connect(dependency);
+        lowLinks.put(key, Math.min(lowLinks.get(key), lowLinks.get(dependency)));
+      } else if (onStack.contains(dependency)) {
+        lowLinks.put(key, Math.min(lowLinks.get(key), indexes.get(dependency)));
+      }
+    }
+
+    if (lowLinks.get(key).equals(indexes.get(key))) {
+      Set<FactSet.Key> members = new HashSet<>();
+      FactSet.Key member;
+      do {
+        member = stack.pop();
+        onStack.remove(member);
+        members.add(member);
+      } while (!member.equals(key));
+
+      List<ScopedRule> componentRules = new ArrayList<>();
+      boolean recursive = false;
+      for (FactSet.Key head : members) {
+        componentRules.addAll(rulesByHead.get(head));
+        for (FactSet.Key dependency : dependencies.get(head)) {
+          if (members.contains(dependency)) {
+            recursive = true;
+          }
+        }
+      }
+      components.add(new Component(componentRules, recursive));
+    }
+  }
+
+  /** A rule with its origin and the origins it trusts */
+  static final class ScopedRule {
+    final TrustedOrigins scope;
+    final Long origin;
+    final Rule rule;
+
+    ScopedRule(TrustedOrigins scope, Long origin, Rule rule) {
+      this.scope = scope;
+      this.origin = origin;
+      this.rule = rule;
+    }
+  }
+
+  /** Rules generating mutually dependent predicates */
+  static final class Component {
+    final List<ScopedRule> rules;
+    final boolean recursive;
+
+    Component(List<ScopedRule> rules, boolean recursive) {
+      this.rules = rules;
+      this.recursive = recursive;
+    }
+  }
+}
@@ -19,11 +19,7 @@ public final class RuleSet {
   }
 
   public void add(Long origin, TrustedOrigins scope, Rule rule) {
-    if (!rules.containsKey(scope)) {
-      rules.put(scope, List.of(new Pair<>(origin, rule)));
-    } else {
-      rules.get(scope).add(new Pair<>(origin, rule));
-    }
+    rules.computeIfAbsent(scope, k -> new ArrayList<>()).add(new Pair<>(origin, rule));
   }
 
   public RuleSet clone() {
@@ -41,6 +37,15 @@ public final class RuleSet {
     return rules.entrySet().stream().flatMap(entry -> entry.getValue().stream().map(t -> t._2));
   }
 
+  /** Returns the number of rules, across all scopes */
+  public int size() {
+    int size = 0;
+    for (List<Pair<Long, Rule>> l : rules.values()) {
+      size += l.size();
+    }
+    return size;
+  }
+
   public void clear() {
     this.rules.clear();
   }
@@ -6,11 +6,17 @@
 package org.eclipse.biscuit.datalog;
 
 import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executor;
 
 public final class RunLimits {
   private int maxFacts = 1000;
   private int maxIterations = 100;
   private Duration maxTime = Duration.ofMillis(5);
+  private Executor executor = null;
+  private boolean demandDriven = false;
+  private CancellationToken cancellationToken = null;
+  private long maxMemoryBytes = Long.MAX_VALUE;
 
   public RunLimits() {}
 
@@ -20,6 +26,67 @@ public final class RunLimits {
     this.maxTime = maxTime;
   }
 
+  private RunLimits(RunLimits limits) {
+    this.maxFacts = limits.maxFacts;
+    this.maxIterations = limits.maxIterations;
+    this.maxTime = limits.maxTime;
+    this.executor = limits.executor;
+    this.demandDriven = limits.demandDriven;
+    this.cancellationToken = limits.cancellationToken;
+    this.maxMemoryBytes = limits.maxMemoryBytes;
+  }
+
+  /**
+   * Copy of these limits for a parallel evaluation
+   *
+   * <p>the rules of an iteration that do not depend on each other are applied as separate tasks
+   * on the executor (as an example {@link java.util.concurrent.ForkJoinPool#commonPool()}), and
+   * their results are merged once they are all done. The limits apply as in a sequential
+   * evaluation
+   *
+   * @param executor executor for a parallel evaluation, null to apply rules on the calling thread
+   */
+  public RunLimits withExecutor(Executor executor) {
+    final RunLimits limits = new RunLimits(this);
+    limits.executor = executor;
+    return limits;
+  }
+
+  /**
+   * Copy of these limits for an evaluation that can be restricted to the facts the queries need
+   *
+   * @param demandDriven if true, the authorizer only applies the rules needed to generate the
+   *     facts used by its checks and policies, or by the query. The other facts are not generated
+   */
+  public RunLimits withDemandDriven(boolean demandDriven) {
+    final RunLimits limits = new RunLimits(this);
+    limits.demandDriven = demandDriven;
+    return limits;
+  }
+
+  /**
+   * Copy of these limits for an evaluation that can be cancelled from another thread
+   *
+   * @param cancellationToken token stopping the evaluation once cancelled, null if there is none
+   */
+  public RunLimits withCancellationToken(CancellationToken cancellationToken) {
+    final RunLimits limits = new RunLimits(this);
+    limits.cancellationToken = cancellationToken;
+    return limits;
+  }
+
+  /**
+   * Copy of these limits including a memory budget
+   *
+   * @param maxMemoryBytes limit on the estimated memory retained by the facts, see {@link
+   *     FactSet#memoryBytes()}
+   */
+  public RunLimits withMaxMemoryBytes(long maxMemoryBytes) {
+    final RunLimits limits = new RunLimits(this);
+    limits.maxMemoryBytes = maxMemoryBytes;
+    return limits;
+  }
+
   public int getMaxFacts() {
     return this.maxFacts;
   }
@@ -31,4 +98,21 @@ public final class RunLimits {
   public Duration getMaxTime() {
     return this.maxTime;
   }
+
+  public long getMaxMemoryBytes() {
+    return this.maxMemoryBytes;
+  }
+
+  /** The executor rules are applied on, empty if they are applied on the calling thread */
+  public Optional<Executor> getExecutor() {
+    return Optional.ofNullable(this.executor);
+  }
+
+  public boolean isDemandDriven() {
+    return this.demandDriven;
+  }
+
+  public Optional<CancellationToken> getCancellationToken() {
+    return Optional.ofNullable(this.cancellationToken);
+  }
 }
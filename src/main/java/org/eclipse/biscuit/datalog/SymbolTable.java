@@ -11,6 +11,7 @@ import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -21,6 +22,8 @@ import org.eclipse.biscuit.token.builder.Utils;
 
 public final class SymbolTable implements Serializable {
   public static final short DEFAULT_SYMBOLS_OFFSET = 1024;
+  // first id given to the strings of mapped fact bases, see attach
+  static final int DICTIONARY_OFFSET = 1 << 30;
 
   private final DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ISO_INSTANT;
 
@@ -70,12 +73,19 @@ public final class SymbolTable implements Serializable {
 
   private final List<String> symbols;
   private final List<PublicKey> publicKeys;
+  // strings of the mapped fact bases used with this table, null if there are none. They are
+  // shared by the copies of the table, and are not serialized
+  private transient List<Dictionary> dictionaries;
 
   public long insert(final String symbol) {
     int index = this.DEFAULT_SYMBOLS.indexOf(symbol);
     if (index == -1) {
       index = this.symbols.indexOf(symbol);
       if (index == -1) {
+        final Optional<Long> mapped = dictionaryId(symbol);
+        if (mapped.isPresent()) {
+          return mapped.get();
+        }
         this.symbols.add(symbol);
         return this.symbols.size() - 1 + DEFAULT_SYMBOLS_OFFSET;
       } else {
@@ -119,7 +129,7 @@ public final class SymbolTable implements Serializable {
       // looking for symbol in usages defined symbols
       index = this.symbols.indexOf(symbol);
       if (index == -1) {
-        return Optional.empty();
+        return dictionaryId(symbol);
       } else {
         return Optional.of(index + DEFAULT_SYMBOLS_OFFSET);
       }
@@ -133,11 +143,91 @@ public final class SymbolTable implements Serializable {
       return Optional.of(this.DEFAULT_SYMBOLS.get(i));
     } else if (i >= DEFAULT_SYMBOLS_OFFSET && i < this.symbols.size() + DEFAULT_SYMBOLS_OFFSET) {
       return Optional.of(this.symbols.get(i - DEFAULT_SYMBOLS_OFFSET));
+    } else if (i >= DICTIONARY_OFFSET && this.dictionaries != null) {
+      for (Dictionary dictionary : this.dictionaries) {
+        if (dictionary.inRange(i)) {
+          return Optional.of(dictionary.base.symbol(i - dictionary.offset));
+        }
+      }
+      return Optional.empty();
     } else {
       return Optional.empty();
     }
   }
 
+  /**
+   * Gives ids to the strings of a mapped fact base
+   *
+   * <p>the strings are not copied in the table, they are read from the file when needed. Strings
+   * the table already holds keep their id, the other ones get an id above the ids of the symbols,
+   * from a range reserved for the base. Once the base is attached, inserting one of its strings
+   * returns its id instead of adding a symbol
+   *
+   * @return the translation between the dictionary of the base and the ids of this table
+   */
+  Dictionary attach(MappedFactBase base) {
+    if (this.dictionaries == null) {
+      this.dictionaries = new ArrayList<>();
+    }
+    long offset = DICTIONARY_OFFSET;
+    for (Dictionary dictionary : this.dictionaries) {
+      if (dictionary.base == base) {
+        return dictionary;
+      }
+      offset = dictionary.offset + dictionary.base.symbolCount();
+    }
+    if (offset + base.symbolCount() > Integer.MAX_VALUE) {
+      throw new IllegalStateException("too many strings in the mapped fact bases");
+    }
+
+    final HashMap<Integer, Long> known = new HashMap<>();
+    for (int i = 0; i < DEFAULT_SYMBOLS.size(); i++) {
+      final int index = base.symbolIndex(DEFAULT_SYMBOLS.get(i));
+      if (index >= 0) {
+        known.put(index, (long) i);
+      }
+    }
+    for (int i = 0; i < this.symbols.size(); i++) {
+      final int index = base.symbolIndex(this.symbols.get(i));
+      if (index >= 0) {
+        known.put(index, (long) i + DEFAULT_SYMBOLS_OFFSET);
+      }
+    }
+    // both dictionaries are sorted
+    for (Dictionary dictionary : this.dictionaries) {
+      int i = 0;
+      int j = 0;
+      while (i < base.symbolCount() && j < dictionary.base.symbolCount()) {
+        final int comparison = base.symbol(i).compareTo(dictionary.base.symbol(j));
+        if (comparison < 0) {
+          i += 1;
+        } else if (comparison > 0) {
+          j += 1;
+        } else {
+          known.putIfAbsent(i, dictionary.id(j));
+          i += 1;
+          j += 1;
+        }
+      }
+    }
+
+    final Dictionary dictionary = new Dictionary(base, (int) offset, known);
+    this.dictionaries.add(dictionary);
+    return dictionary;
+  }
+
+  private Optional<Long> dictionaryId(String symbol) {
+    if (this.dictionaries != null) {
+      for (Dictionary dictionary : this.dictionaries) {
+        final int index = dictionary.base.symbolIndex(symbol);
+        if (index >= 0) {
+          return Optional.of(dictionary.id(index));
+        }
+      }
+    }
+    return Optional.empty();
+  }
+
   public Optional<PublicKey> getPublicKey(int i) {
     if (i >= 0 && i < this.publicKeys.size()) {
       return Optional.of(this.publicKeys.get(i));
@@ -309,6 +399,9 @@ public final class SymbolTable implements Serializable {
     symbols.addAll(s.symbols);
     this.publicKeys = new ArrayList<>();
     publicKeys.addAll(s.publicKeys);
+    if (s.dictionaries != null) {
+      this.dictionaries = new ArrayList<>(s.dictionaries);
+    }
   }
 
   public SymbolTable(List<String> symbols) {
@@ -374,4 +467,52 @@ public final class SymbolTable implements Serializable {
   public boolean disjoint(final SymbolTable other) {
     return Collections.disjoint(this.symbols, other.symbols);
   }
+
+  /**
+   * Translation between the dictionary of a mapped fact base and the ids of a symbol table, see
+   * {@link #attach(MappedFactBase)}
+   *
+   * <p>the string at index i has the id offset + i, unless the table already held it when the base
+   * was attached. Only those strings are kept in memory, as a hash index in both directions
+   */
+  static final class Dictionary {
+    private final MappedFactBase base;
+    private final int offset;
+    // ids of the strings the table already held, by index
+    private final HashMap<Integer, Long> known;
+    private final HashMap<Long, Integer> knownIndexes;
+
+    private Dictionary(MappedFactBase base, int offset, HashMap<Integer, Long> known) {
+      this.base = base;
+      this.offset = offset;
+      this.known = known;
+      this.knownIndexes = new HashMap<>();
+      for (Map.Entry<Integer, Long> entry : known.entrySet()) {
+        this.knownIndexes.put(entry.getValue(), entry.getKey());
+      }
+    }
+
+    /** Id of the string at this index */
+    long id(int index) {
+      if (!this.known.isEmpty()) {
+        final Long id = this.known.get(index);
+        if (id != null) {
+          return id;
+        }
+      }
+      return (long) this.offset + index;
+    }
+
+    /** Index of the string with this id, -1 if the dictionary does not hold it */
+    int index(long id) {
+      if (inRange(id)) {
+        return (int) (id - this.offset);
+      }
+      return this.knownIndexes.getOrDefault(id, -1);
+    }
+
+    private boolean inRange(long id) {
+      return id >= this.offset && id - this.offset < this.base.symbolCount();
+    }
+  }
 }
@@ -23,12 +23,9 @@ public final class TemporarySymbolTable {
   }
 
   public Optional<String> getSymbol(int i) {
-    if (i >= this.offset) {
-      if (i - this.offset < this.symbols.size()) {
-        return Optional.of(this.symbols.get(i - this.offset));
-      } else {
-        return Optional.empty();
-      }
+    // ids above the temporary symbols can be strings of mapped fact bases
+    if (i >= this.offset && i - this.offset < this.symbols.size()) {
+      return Optional.of(this.symbols.get(i - this.offset));
     } else {
       return this.base.getSymbol(i);
     }
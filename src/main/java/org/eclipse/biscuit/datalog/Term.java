@@ -88,6 +88,9 @@ public abstract class Term extends Op implements Serializable {
   }
 
   public static final class Null extends Term implements Serializable {
+    /** shared instance, null values are all equal */
+    public static final Null INSTANCE = new Null();
+
     public boolean match(final Term other) {
       if (other instanceof Variable) {
         return true;
@@ -133,7 +136,7 @@ public abstract class Term extends Op implements Serializable {
         return Result.err(
             new Error.FormatError.DeserializationError("invalid Term kind, expected null"));
       } else {
-        return Result.ok(new Null());
+        return Result.ok(INSTANCE);
       }
     }
 
@@ -228,6 +231,24 @@ public abstract class Term extends Op implements Serializable {
       this.value = value;
     }
 
+    // shared instances of the integers most used in facts and expressions
+    private static final long CACHE_LOW = -128;
+    private static final Integer[] CACHE = new Integer[1024 - (int) CACHE_LOW];
+
+    static {
+      for (int i = 0; i < CACHE.length; i++) {
+        CACHE[i] = new Integer(CACHE_LOW + i);
+      }
+    }
+
+    /** Returns an integer, shared for small values */
+    public static Integer of(final long value) {
+      if (value >= CACHE_LOW && value < CACHE_LOW + CACHE.length) {
+        return CACHE[(int) (value - CACHE_LOW)];
+      }
+      return new Integer(value);
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) {
@@ -269,7 +290,7 @@ public abstract class Term extends Op implements Serializable {
         return Result.err(
             new Error.FormatError.DeserializationError("invalid Term kind, expected integer"));
       } else {
-        return Result.ok(new Integer(term.getInteger()));
+        return Result.ok(Integer.of(term.getInteger()));
       }
     }
 
@@ -278,7 +299,7 @@ public abstract class Term extends Op implements Serializable {
         return Result.err(
             new Error.FormatError.DeserializationError("invalid Term kind, expected integer"));
       } else {
-        return Result.ok(new Integer(term.getInteger()));
+        return Result.ok(Integer.of(term.getInteger()));
       }
     }
 
@@ -522,6 +543,14 @@ public abstract class Term extends Op implements Serializable {
       this.value = value;
     }
 
+    public static final Bool TRUE = new Bool(true);
+    public static final Bool FALSE = new Bool(false);
+
+    /** Returns the shared instance for this value */
+    public static Bool of(final boolean value) {
+      return value ? TRUE : FALSE;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) {
@@ -559,7 +588,7 @@ public abstract class Term extends Op implements Serializable {
         return Result.err(
             new Error.FormatError.DeserializationError("invalid Term kind, expected boolean"));
       } else {
-        return Result.ok(new Bool(term.getBool()));
+        return Result.ok(Bool.of(term.getBool()));
       }
     }
 
@@ -568,25 +597,30 @@ public abstract class Term extends Op implements Serializable {
     }
   }
 
+  /**
+   * An array of terms
+   *
+   * <p>the elements are copied on construction and cannot be modified, the hash code is computed
+   * once
+   */
   public static final class Array extends Term implements Serializable {
     private final List<Term> value;
+    private final int hash;
 
     public List<Term> value() {
-      return Collections.unmodifiableList(this.value);
+      return this.value;
     }
 
     public boolean match(final Term other) {
       if (other instanceof Variable) {
         return true;
       }
-      if (other instanceof Array) {
-        return this.value.equals(((Array) other).value);
-      }
-      return false;
+      return this.equals(other);
     }
 
     public Array(final List<Term> value) {
-      this.value = value;
+      this.value = Collections.unmodifiableList(new ArrayList<>(value));
+      this.hash = this.value.hashCode();
     }
 
     @Override
@@ -600,12 +634,12 @@ public abstract class Term extends Op implements Serializable {
 
       Array array = (Array) o;
 
-      return value.equals(array.value);
+      return hash == array.hash && value.size() == array.value.size() && value.equals(array.value);
     }
 
     @Override
     public int hashCode() {
-      return value.hashCode();
+      return hash;
     }
 
     @Override
@@ -670,10 +704,17 @@ public abstract class Term extends Op implements Serializable {
     }
   }
 
+  /**
+   * A map of terms
+   *
+   * <p>the entries are copied on construction and cannot be modified, the hash code is computed
+   * once
+   */
   public static final class Map extends Term implements Serializable {
-    private final HashMap<MapKey, Term> value;
+    private final java.util.Map<MapKey, Term> value;
+    private final int hash;
 
-    public HashMap<MapKey, Term> value() {
+    public java.util.Map<MapKey, Term> value() {
       return this.value;
     }
 
@@ -681,14 +722,12 @@ public abstract class Term extends Op implements Serializable {
       if (other instanceof Variable) {
         return true;
       }
-      if (other instanceof Map) {
-        return this.value.equals(((Map) other).value);
-      }
-      return false;
+      return this.equals(other);
     }
 
-    public Map(final HashMap<MapKey, Term> value) {
-      this.value = value;
+    public Map(final java.util.Map<MapKey, Term> value) {
+      this.value = Collections.unmodifiableMap(new HashMap<>(value));
+      this.hash = this.value.hashCode();
     }
 
     @Override
@@ -700,14 +739,14 @@ public abstract class Term extends Op implements Serializable {
         return false;
       }
 
-      Map array = (Map) o;
+      Map map = (Map) o;
 
-      return value.equals(array.value);
+      return hash == map.hash && value.size() == map.value.size() && value.equals(map.value);
     }
 
     @Override
     public int hashCode() {
-      return value.hashCode();
+      return hash;
     }
 
     @Override
@@ -737,7 +776,7 @@ public abstract class Term extends Op implements Serializable {
         return Result.err(
             new Error.FormatError.DeserializationError("invalid Term kind, expected map"));
       }
-      java.util.HashMap<MapKey, Term> values = new HashMap();
+      java.util.HashMap<MapKey, Term> values = new HashMap<>();
       Schema.Map s = term.getMap();
 
       for (Schema.MapEntry l : s.getEntriesList()) {
@@ -777,25 +816,243 @@ public abstract class Term extends Op implements Serializable {
     }
   }
 
+  /**
+   * A set of terms
+   *
+   * <p>the elements are copied on construction and cannot be modified, the hash code is computed
+   * once: facts holding large sets are hashed and compared on every insertion in a {@link FactSet}
+   *
+   * <p>a non empty set holding only integers, only dates or only strings is stored as a sorted
+   * array of their values: lookups use a binary search, intersections and unions merge the arrays,
+   * and the terms are only created if {@link #value()} is called
+   */
   public static final class Set extends Term implements Serializable {
-    private final HashSet<Term> value;
-
-    public HashSet<Term> value() {
-      return this.value;
+    // the elements, null if they are stored as sorted values
+    private final java.util.Set<Term> value;
+    // the type of all the elements and their distinct values in ascending order, or null
+    private final Class<? extends Term> type;
+    private final long[] sorted;
+    private final int hash;
+    // the elements of a set stored as sorted values, created on the first call to value()
+    private transient volatile java.util.Set<Term> terms;
+
+    public java.util.Set<Term> value() {
+      if (this.value != null) {
+        return this.value;
+      }
+      java.util.Set<Term> terms = this.terms;
+      if (terms == null) {
+        final HashSet<Term> elements = new HashSet<>();
+        for (long v : this.sorted) {
+          elements.add(element(this.type, v));
+        }
+        terms = Collections.unmodifiableSet(elements);
+        this.terms = terms;
+      }
+      return terms;
     }
 
     public boolean match(final Term other) {
       if (other instanceof Variable) {
         return true;
       }
-      if (other instanceof Set) {
-        return this.value.equals(((Set) other).value);
+      return this.equals(other);
+    }
+
+    public Set(final java.util.Set<Term> value) {
+      final Class<? extends Term> type = sortableType(value);
+      if (type == null) {
+        this.value = Collections.unmodifiableSet(new HashSet<>(value));
+        this.type = null;
+        this.sorted = null;
+        this.hash = this.value.hashCode();
+      } else {
+        final long[] sorted = new long[value.size()];
+        int n = 0;
+        for (Term term : value) {
+          sorted[n++] = sortableValue(term);
+        }
+        Arrays.sort(sorted);
+        this.value = null;
+        this.type = type;
+        this.sorted = sorted;
+        this.hash = hash(sorted, sorted.length);
+      }
+    }
+
+    // sorted must hold distinct values in ascending order, at least one
+    private Set(final Class<? extends Term> type, final long[] sorted) {
+      this.value = null;
+      this.type = type;
+      this.sorted = sorted;
+      this.hash = hash(sorted, sorted.length);
+    }
+
+    // a set of sorted values, which can have unused space at the end
+    private static Set of(final Class<? extends Term> type, final long[] sorted, int length) {
+      if (length == 0) {
+        return new Set(Collections.emptySet());
+      }
+      return new Set(type, length == sorted.length ? sorted : Arrays.copyOf(sorted, length));
+    }
+
+    public int size() {
+      return this.value != null ? this.value.size() : this.sorted.length;
+    }
+
+    public boolean contains(final Term term) {
+      if (this.value != null) {
+        return this.value.contains(term);
+      }
+      return term.getClass() == this.type
+          && Arrays.binarySearch(this.sorted, sortableValue(term)) >= 0;
+    }
+
+    /**
+     * Checks if the set holds the integer, date, string or boolean of this type with this value
+     *
+     * <p>no term is created for sets stored as sorted values
+     */
+    public boolean contains(final Class<? extends Term> type, final long value) {
+      if (this.value != null) {
+        return this.value.contains(element(type, value));
+      }
+      return type == this.type && Arrays.binarySearch(this.sorted, value) >= 0;
+    }
+
+    public boolean containsAll(final Set other) {
+      if (this.value != null || other.value != null) {
+        for (Term term : other.value()) {
+          if (!this.contains(term)) {
+            return false;
+          }
+        }
+        return true;
+      }
+      if (this.type != other.type) {
+        return false;
       }
-      return false;
+      int i = 0;
+      for (long v : other.sorted) {
+        while (i < this.sorted.length && this.sorted[i] < v) {
+          i += 1;
+        }
+        if (i == this.sorted.length || this.sorted[i] != v) {
+          return false;
+        }
+      }
+      return true;
     }
 
-    public Set(final HashSet<Term> value) {
-      this.value = value;
+    public Set intersection(final Set other) {
+      if (this.value != null || other.value != null) {
+        final HashSet<Term> result = new HashSet<>();
+        for (Term term : other.value()) {
+          if (this.contains(term)) {
+            result.add(term);
+          }
+        }
+        return new Set(result);
+      }
+      if (this.type != other.type) {
+        return new Set(Collections.emptySet());
+      }
+      final long[] a = this.sorted;
+      final long[] b = other.sorted;
+      final long[] result = new long[Math.min(a.length, b.length)];
+      int i = 0;
+      int j = 0;
+      int n = 0;
+      while (i < a.length && j < b.length) {
+        if (a[i] < b[j]) {
+          i += 1;
+        } else if (a[i] > b[j]) {
+          j += 1;
+        } else {
+          result[n++] = a[i];
+          i += 1;
+          j += 1;
+        }
+      }
+      return of(this.type, result, n);
+    }
+
+    public Set union(final Set other) {
+      if (this.value != null || other.value != null || this.type != other.type) {
+        final HashSet<Term> result = new HashSet<>(other.value());
+        result.addAll(this.value());
+        return new Set(result);
+      }
+      final long[] a = this.sorted;
+      final long[] b = other.sorted;
+      final long[] result = new long[a.length + b.length];
+      int i = 0;
+      int j = 0;
+      int n = 0;
+      while (i < a.length || j < b.length) {
+        if (j == b.length || (i < a.length && a[i] < b[j])) {
+          result[n++] = a[i++];
+        } else if (i == a.length || a[i] > b[j]) {
+          result[n++] = b[j++];
+        } else {
+          result[n++] = a[i];
+          i += 1;
+          j += 1;
+        }
+      }
+      return of(this.type, result, n);
+    }
+
+    // true if the elements are stored as sorted values
+    boolean isSorted() {
+      return this.sorted != null;
+    }
+
+    // the type shared by all the elements, if it can be stored as sorted values
+    private static Class<? extends Term> sortableType(java.util.Set<Term> elements) {
+      Class<? extends Term> type = null;
+      for (Term term : elements) {
+        if (type == null) {
+          type = term.getClass();
+          if (type != Integer.class && type != Date.class && type != Str.class) {
+            return null;
+          }
+        } else if (term.getClass() != type) {
+          return null;
+        }
+      }
+      return type;
+    }
+
+    private static long sortableValue(Term term) {
+      if (term instanceof Integer) {
+        return ((Integer) term).value();
+      } else if (term instanceof Date) {
+        return ((Date) term).value();
+      } else {
+        return ((Str) term).value();
+      }
+    }
+
+    private static Term element(Class<? extends Term> type, long value) {
+      if (type == Integer.class) {
+        return Integer.of(value);
+      } else if (type == Date.class) {
+        return new Date(value);
+      } else if (type == Str.class) {
+        return new Str(value);
+      } else {
+        return Bool.of(value != 0);
+      }
+    }
+
+    // same as the hash code of a java.util.Set of the elements
+    private static int hash(long[] values, int length) {
+      int h = 0;
+      for (int i = 0; i < length; i++) {
+        h += (int) (values[i] ^ (values[i] >>> 32));
+      }
+      return h;
     }
 
     @Override
@@ -809,16 +1066,24 @@ public abstract class Term extends Op implements Serializable {
 
       Set set = (Set) o;
 
-      return value.equals(set.value);
+      if (hash != set.hash || size() != set.size()) {
+        return false;
+      }
+      if (value != null && set.value != null) {
+        return value.equals(set.value);
+      }
+      // a set has a single representation
+      return type == set.type && Arrays.equals(sorted, set.sorted);
     }
 
     @Override
     public int hashCode() {
-      return value.hashCode();
+      return hash;
     }
 
     @Override
     public String toString() {
+      final java.util.Set<Term> value = value();
       if (value.size() == 0) {
         return "{,}";
       }
@@ -837,8 +1102,20 @@ public abstract class Term extends Op implements Serializable {
     public Schema.TermV2 serializeTerm() {
       Schema.TermSet.Builder s = Schema.TermSet.newBuilder();
 
-      for (Term l : this.value) {
-        s.addSet(l.serializeTerm());
+      if (this.value != null) {
+        for (Term l : this.value) {
+          s.addSet(l.serializeTerm());
+        }
+      } else {
+        for (long v : this.sorted) {
+          if (this.type == Integer.class) {
+            s.addSet(Schema.TermV2.newBuilder().setInteger(v));
+          } else if (this.type == Date.class) {
+            s.addSet(Schema.TermV2.newBuilder().setDate(v));
+          } else {
+            s.addSet(Schema.TermV2.newBuilder().setString(v));
+          }
+        }
       }
 
       return Schema.TermV2.newBuilder().setSet(s).build();
@@ -853,9 +1130,15 @@ public abstract class Term extends Op implements Serializable {
         return Result.err(
             new Error.FormatError.DeserializationError("invalid Term kind, expected set"));
       } else {
-        java.util.HashSet<Term> values = new HashSet<>();
         Schema.TermSet s = term.getSet();
 
+        final Set sorted = deserializeSorted(s);
+        if (sorted != null) {
+          return Result.ok(sorted);
+        }
+
+        java.util.HashSet<Term> values = new HashSet<>();
+
         for (Schema.TermV2 l : s.getSetList()) {
           var res = Term.deserializeEnumV2(l);
           if (res.isErr()) {
@@ -876,10 +1159,51 @@ public abstract class Term extends Op implements Serializable {
       }
     }
 
+    // reads a set of integers, dates or strings without creating terms, null for other sets
+    private static Set deserializeSorted(Schema.TermSet s) {
+      final int count = s.getSetCount();
+      if (count == 0) {
+        return null;
+      }
+      final Schema.TermV2.ContentCase kind = s.getSet(0).getContentCase();
+      if (kind != Schema.TermV2.ContentCase.INTEGER
+          && kind != Schema.TermV2.ContentCase.DATE
+          && kind != Schema.TermV2.ContentCase.STRING) {
+        return null;
+      }
+      final long[] values = new long[count];
+      for (int i = 0; i < count; i++) {
+        final Schema.TermV2 element = s.getSet(i);
+        if (element.getContentCase() != kind) {
+          return null;
+        }
+        if (kind == Schema.TermV2.ContentCase.INTEGER) {
+          values[i] = element.getInteger();
+        } else if (kind == Schema.TermV2.ContentCase.DATE) {
+          values[i] = element.getDate();
+        } else {
+          values[i] = element.getString();
+        }
+      }
+      Arrays.sort(values);
+      // duplicates are allowed in the serialized set
+      int n = 1;
+      for (int i = 1; i < count; i++) {
+        if (values[i] != values[n - 1]) {
+          values[n++] = values[i];
+        }
+      }
+      final Class<? extends Term> type =
+          kind == Schema.TermV2.ContentCase.INTEGER
+              ? Integer.class
+              : kind == Schema.TermV2.ContentCase.DATE ? Date.class : Str.class;
+      return of(type, values, n);
+    }
+
     public org.eclipse.biscuit.token.builder.Term toTerm(SymbolTable symbolTable) {
       HashSet<org.eclipse.biscuit.token.builder.Term> s = new HashSet<>();
 
-      for (Term i : this.value) {
+      for (Term i : this.value()) {
         s.add(i.toTerm(symbolTable));
       }
 
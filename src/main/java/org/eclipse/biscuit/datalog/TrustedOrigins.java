@@ -86,6 +86,25 @@ public final class TrustedOrigins {
     return this.origin.containsAll(factOrigin);
   }
 
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    TrustedOrigins that = (TrustedOrigins) o;
+
+    return origin.equals(that.origin);
+  }
+
+  @Override
+  public int hashCode() {
+    return origin.hashCode();
+  }
+
   @Override
   public String toString() {
     return "TrustedOrigins{inner=" + origin + '}';
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact encoding of a fact, used to store facts in a {@link FactSet}
+ *
+ * <p>the terms are encoded in an array of words: first the tags of all the terms, 4 bits per term,
+ * then one value word per term. Integers, dates, booleans, strings (symbol ids), variables and null
+ * are stored in the value word, the other terms (bytes, sets, arrays, maps) are stored in a separate
+ * array and the value word is their index in that array. Equality and hashing are array operations
+ */
+final class Tuple {
+  private static final int TAG_BITS = 4;
+  private static final int TAGS_PER_WORD = Long.SIZE / TAG_BITS;
+  private static final long TAG_MASK = (1L << TAG_BITS) - 1;
+
+  static final int INTEGER = 1;
+  static final int DATE = 2;
+  static final int BOOL = 3;
+  static final int STR = 4;
+  static final int VARIABLE = 5;
+  static final int NULL = 6;
+  static final int REFERENCE = 7;
+
+  // approximate object sizes, in bytes. A tuple is counted with the hash set entry storing it
+  private static final long TUPLE_SIZE = 40 + 36;
+  private static final long ARRAY_HEADER = 16;
+  private static final long REFERENCE_SIZE = 4;
+  private static final long TERM_SIZE = 24;
+  private static final long COLLECTION_SIZE = 48;
+  private static final long HASH_ENTRY_SIZE = 36;
+
+  private final long name;
+  private final int arity;
+  private final long[] words;
+  // terms that are not stored inline, null if there are none
+  private final Term[] references;
+  private final int hash;
+
+  private Tuple(long name, int arity, long[] words, Term[] references) {
+    this.name = name;
+    this.arity = arity;
+    this.words = words;
+    this.references = references;
+    this.hash =
+        31 * (31 * Long.hashCode(name) + Arrays.hashCode(words)) + Arrays.hashCode(references);
+  }
+
+  static Tuple of(Fact fact) {
+    final Predicate predicate = fact.predicate();
+    final List<Term> terms = predicate.terms();
+    final int arity = terms.size();
+    final int tagWords = tagWords(arity);
+    final long[] words = new long[tagWords + arity];
+    Term[] references = null;
+    int referenceCount = 0;
+
+    for (int i = 0; i < arity; i++) {
+      final Term term = terms.get(i);
+      final int tag = tag(term);
+      final long value;
+      if (tag != REFERENCE) {
+        value = value(term);
+      } else {
+        if (references == null) {
+          references = new Term[arity - i];
+        }
+        value = referenceCount;
+        references[referenceCount++] = term;
+      }
+      words[i / TAGS_PER_WORD] |= ((long) tag) << ((i % TAGS_PER_WORD) * TAG_BITS);
+      words[tagWords + i] = value;
+    }
+
+    if (references != null && referenceCount != references.length) {
+      references = Arrays.copyOf(references, referenceCount);
+    }
+    return new Tuple(predicate.name(), arity, words, references);
+  }
+
+  /**
+   * Encodes a fact from the tags and values of its terms
+   *
+   * @param tags the tags of the terms, none of them can be {@link #REFERENCE}
+   */
+  static Tuple of(long name, int[] tags, long[] values) {
+    final int arity = tags.length;
+    final int tagWords = tagWords(arity);
+    final long[] words = new long[tagWords + arity];
+    for (int i = 0; i < arity; i++) {
+      words[i / TAGS_PER_WORD] |= ((long) tags[i]) << ((i % TAGS_PER_WORD) * TAG_BITS);
+      words[tagWords + i] = values[i];
+    }
+    return new Tuple(name, arity, words, null);
+  }
+
+  /** Tag of the term, {@link #REFERENCE} if the term is not stored inline */
+  static int tag(Term term) {
+    if (term instanceof Term.Integer) {
+      return INTEGER;
+    } else if (term instanceof Term.Date) {
+      return DATE;
+    } else if (term instanceof Term.Bool) {
+      return BOOL;
+    } else if (term instanceof Term.Str) {
+      return STR;
+    } else if (term instanceof Term.Variable) {
+      return VARIABLE;
+    } else if (term instanceof Term.Null) {
+      return NULL;
+    } else {
+      return REFERENCE;
+    }
+  }
+
+  /** Value word of a term stored inline */
+  static long value(Term term) {
+    if (term instanceof Term.Integer) {
+      return ((Term.Integer) term).value();
+    } else if (term instanceof Term.Date) {
+      return ((Term.Date) term).value();
+    } else if (term instanceof Term.Bool) {
+      return ((Term.Bool) term).value() ? 1 : 0;
+    } else if (term instanceof Term.Str) {
+      return ((Term.Str) term).value();
+    } else if (term instanceof Term.Variable) {
+      return ((Term.Variable) term).value();
+    } else {
+      return 0;
+    }
+  }
+
+  private static int tagWords(int arity) {
+    return (arity + TAGS_PER_WORD - 1) / TAGS_PER_WORD;
+  }
+
+  /**
+   * Estimates the memory retained by the tuple, in bytes
+   *
+   * <p>the estimate assumes a 64 bits JVM with compressed references, it is only meant to bound
+   * the memory used by an evaluation
+   */
+  long estimatedSize() {
+    long size = TUPLE_SIZE + ARRAY_HEADER + Long.BYTES * (long) words.length;
+    if (references != null) {
+      size += ARRAY_HEADER + REFERENCE_SIZE * (long) references.length;
+      for (Term term : references) {
+        size += estimatedSize(term);
+      }
+    }
+    return size;
+  }
+
+  private static long estimatedSize(Term term) {
+    if (term instanceof Term.Bytes) {
+      return TERM_SIZE + ARRAY_HEADER + ((Term.Bytes) term).value().length;
+    } else if (term instanceof Term.Array) {
+      long size = TERM_SIZE + COLLECTION_SIZE;
+      for (Term t : ((Term.Array) term).value()) {
+        size += REFERENCE_SIZE + estimatedSize(t);
+      }
+      return size;
+    } else if (term instanceof Term.Set && ((Term.Set) term).isSorted()) {
+      return TERM_SIZE + ARRAY_HEADER + (long) Long.BYTES * ((Term.Set) term).size();
+    } else if (term instanceof Term.Set) {
+      long size = TERM_SIZE + COLLECTION_SIZE;
+      for (Term t : ((Term.Set) term).value()) {
+        size += HASH_ENTRY_SIZE + estimatedSize(t);
+      }
+      return size;
+    } else if (term instanceof Term.Map) {
+      long size = TERM_SIZE + COLLECTION_SIZE;
+      for (Map.Entry<MapKey, Term> entry : ((Term.Map) term).value().entrySet()) {
+        size += HASH_ENTRY_SIZE + estimatedSize(entry.getKey()) + estimatedSize(entry.getValue());
+      }
+      return size;
+    } else {
+      return TERM_SIZE;
+    }
+  }
+
+  long name() {
+    return name;
+  }
+
+  int arity() {
+    return arity;
+  }
+
+  int tag(int i) {
+    return (int) ((words[i / TAGS_PER_WORD] >>> ((i % TAGS_PER_WORD) * TAG_BITS)) & TAG_MASK);
+  }
+
+  long value(int i) {
+    return words[tagWords(arity) + i];
+  }
+
+  /**
+   * Checks if the fact's term matches a constant of a rule predicate, as {@link Term#match(Term)}
+   * would, without decoding the term
+   *
+   * @param tag the constant's tag, it must not be {@link #REFERENCE}
+   */
+  boolean matches(int i, int tag, long value) {
+    final int termTag = tag(i);
+    return termTag == VARIABLE || (termTag == tag && value(i) == value);
+  }
+
+  /** Checks if one of the terms is equal to a term, without decoding it */
+  boolean termEquals(int i, Term term) {
+    final int termTag = tag(i);
+    if (termTag == REFERENCE) {
+      return references[(int) value(i)].equals(term);
+    }
+    return termTag == tag(term) && value(i) == value(term);
+  }
+
+  /** Decodes one of the terms */
+  Term term(int i) {
+    final int tag = tag(i);
+    final long value = value(i);
+    switch (tag) {
+      case INTEGER:
+        return Term.Integer.of(value);
+      case DATE:
+        return new Term.Date(value);
+      case BOOL:
+        return Term.Bool.of(value != 0);
+      case STR:
+        return new Term.Str(value);
+      case VARIABLE:
+        return new Term.Variable(value);
+      case NULL:
+        return Term.Null.INSTANCE;
+      default:
+        return references[(int) value];
+    }
+  }
+
+  /** Decodes the fact */
+  Fact toFact() {
+    final List<Term> terms = new ArrayList<>(arity);
+    for (int i = 0; i < arity; i++) {
+      terms.add(term(i));
+    }
+    return new Fact(new Predicate(name, terms));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    Tuple tuple = (Tuple) o;
+
+    return hash == tuple.hash
+        && name == tuple.name
+        && Arrays.equals(words, tuple.words)
+        && Arrays.equals(references, tuple.references);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return toFact().toString();
+  }
+}
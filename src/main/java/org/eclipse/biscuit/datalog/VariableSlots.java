@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.biscuit.datalog.expressions.Expression;
+
+/**
+ * Numbers the variables of a rule body with dense indexes, so their values can be stored in a
+ * {@link Frame}
+ */
+final class VariableSlots {
+  private final long[] variables;
+
+  private VariableSlots(long[] variables) {
+    this.variables = variables;
+  }
+
+  /**
+   * Numbers the variables by order of first appearance, starting with the additional variables
+   *
+   * @param extra variables that do not appear in the predicates, that must be bound beforehand
+   */
+  static VariableSlots of(Collection<Long> extra, List<Predicate> predicates) {
+    final Map<Long, Integer> slots = new LinkedHashMap<>();
+    for (Long variable : extra) {
+      slots.putIfAbsent(variable, slots.size());
+    }
+    for (Predicate predicate : predicates) {
+      for (Term term : predicate.terms()) {
+        if (term instanceof Term.Variable) {
+          slots.putIfAbsent(((Term.Variable) term).value(), slots.size());
+        }
+      }
+    }
+
+    final long[] variables = new long[slots.size()];
+    for (Map.Entry<Long, Integer> entry : slots.entrySet()) {
+      variables[entry.getValue()] = entry.getKey();
+    }
+    return new VariableSlots(variables);
+  }
+
+  int size() {
+    return variables.length;
+  }
+
+  long variable(int slot) {
+    return variables[slot];
+  }
+
+  /** Returns the slot of a variable, or -1 if it is not a variable of the rule */
+  int slot(long variable) {
+    // rules have a handful of variables, a linear scan is faster than hashing a boxed key
+    for (int i = 0; i < variables.length; i++) {
+      if (variables[i] == variable) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the slot of each of the predicate's terms, or -1 for terms that are not variables */
+  int[] slots(Predicate predicate) {
+    final List<Term> terms = predicate.terms();
+    final int[] slots = new int[terms.size()];
+    for (int i = 0; i < slots.length; i++) {
+      final Term term = terms.get(i);
+      slots[i] = term instanceof Term.Variable ? slot(((Term.Variable) term).value()) : -1;
+    }
+    return slots;
+  }
+
+  /**
+   * Returns the first join level where an expression can be checked
+   *
+   * <p>that is the first level where all the variables it reads are bound, or the last level if it
+   * reads a variable no predicate binds. A closure parameter with the same id as a body variable
+   * must also wait for that variable to be bound: the closure call then fails with a shadowed
+   * variable error, as it does on a complete match, instead of binding the parameter in the empty
+   * slot
+   *
+   * @param levelSlots slots of the terms of the predicate matched at each level
+   */
+  int bindingLevel(Expression expression, List<int[]> levelSlots) {
+    final int last = Math.max(1, levelSlots.size()) - 1;
+    int level = 0;
+    for (Long variable : expression.variables()) {
+      final int slot = slot(variable);
+      level = Math.max(level, slot < 0 ? last : bindingLevel(slot, levelSlots, last));
+    }
+    for (Long parameter : expression.closureParameters()) {
+      final int slot = slot(parameter);
+      if (slot >= 0) {
+        level = Math.max(level, bindingLevel(slot, levelSlots, last));
+      }
+    }
+    return level;
+  }
+
+  // index of the first level binding the slot
+  private static int bindingLevel(int slot, List<int[]> levelSlots, int last) {
+    for (int i = 0; i < levelSlots.size(); i++) {
+      for (int s : levelSlots.get(i)) {
+        if (s == slot) {
+          return i;
+        }
+      }
+    }
+    return last;
+  }
+}
@@ -6,80 +6,297 @@
 package org.eclipse.biscuit.datalog;
 
 import java.io.Serializable;
-import java.time.Instant;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Supplier;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 import org.eclipse.biscuit.error.Error;
+import org.eclipse.biscuit.error.Result;
 
 public final class World implements Serializable {
   private final FactSet facts;
   private final RuleSet rules;
+  // facts added since the last run reached the fixpoint of all the rules, null if the next run
+  // must start over (the rules changed, or the last run failed or only applied some rules)
+  private FactSet pending;
+  // number of facts and rules the world should hold if it was only modified through addFact, to
+  // detect modifications made through getFacts() or getRules()
+  private int expectedFacts;
+  private int expectedRules;
 
   public void addFact(final Origin origin, final Fact fact) {
-    this.facts.add(origin, fact);
+    if (this.facts.add(origin, fact) && this.pending != null) {
+      this.pending.add(origin, fact);
+      this.expectedFacts += 1;
+    }
+  }
+
+  /**
+   * Adds the facts of a mapped fact base, without copying them
+   *
+   * <p>the strings of the base get ids in the symbol table without being copied in it (see {@link
+   * SymbolTable#attach(MappedFactBase)}), the world must then always be used with this symbol
+   * table, or a copy of it made after the call. The facts are not counted by the fact limit of
+   * {@link RunLimits}
+   */
+  public void addFacts(final Origin origin, MappedFactBase base, SymbolTable symbolTable) {
+    this.facts.attach(new MappedFacts(base, origin, symbolTable.attach(base)));
+    this.pending = null;
   }
 
   public void addRule(Long origin, TrustedOrigins scope, Rule rule) {
     this.rules.add(origin, scope, rule);
+    this.pending = null;
   }
 
   public void clearRules() {
     this.rules.clear();
+    this.pending = null;
   }
 
   public void run(final SymbolTable symbolTable) throws Error {
     this.run(new RunLimits(), symbolTable);
   }
 
+  /**
+   * Runs the rules until no new facts can be generated
+   *
+   * <p>rules are evaluated by strongly connected component of their predicate dependency graph,
+   * each component after the ones generating the predicates it uses. A non recursive component is
+   * applied once, and does not count towards the iteration limit. A recursive component uses
+   * semi-naive evaluation: the first iteration applies its rules to the whole fact set, then each
+   * following iteration only looks for rule matches where at least one body predicate is matched by
+   * a fact generated during the previous iteration
+   *
+   * <p>the estimated memory retained by the facts is checked against the limit before the first
+   * iteration, then during each iteration as the generated facts are inserted, see {@link
+   * MemoryBudget}, and after each iteration once they are merged
+   *
+   * <p>once a run has reached the fixpoint, the next run only looks for rule matches using at least
+   * one of the facts added with {@link #addFact(Origin, Fact)} since then, or generated from them.
+   * Adding a rule, or a failed run, makes the next run start over
+   */
   public void run(RunLimits limits, final SymbolTable symbolTable) throws Error {
+    final FactSet changes = pendingChanges();
+    this.pending = null;
+    this.run(limits, symbolTable, RuleGraph.components(this.rules), changes);
+
+    this.pending = new FactSet();
+    this.expectedFacts = this.facts.size();
+    this.expectedRules = this.rules.size();
+  }
+
+  /**
+   * Runs the rules needed to generate the facts matching the goal predicates, until no new such
+   * facts can be generated
+   *
+   * <p>only the rules generating a goal predicate, or a predicate used by one of those rules, and so
+   * on, are applied. The facts matching the goals, and their origins, are the same as with {@link
+   * #run(RunLimits, SymbolTable)}, but the other facts may not be generated, and errors and limits
+   * are only reached by the rules that are applied
+   */
+  public void run(RunLimits limits, final SymbolTable symbolTable, Collection<Predicate> goals)
+      throws Error {
+    this.pending = null;
+    this.run(limits, symbolTable, RuleGraph.components(this.rules, goals), null);
+  }
+
+  // the facts added since the last complete run, if it can be resumed from them
+  private FactSet pendingChanges() {
+    if (this.pending == null
+        || this.facts.size() != this.expectedFacts
+        || this.rules.size() != this.expectedRules) {
+      return null;
+    }
+    return this.pending;
+  }
+
+  /**
+   * Applies the rules of the components
+   *
+   * @param changes if the facts were at the fixpoint of the rules before these facts were added,
+   *     the facts that were added, null to apply the rules to all the facts
+   */
+  private void run(
+      RunLimits limits,
+      final SymbolTable symbolTable,
+      List<RuleGraph.Component> components,
+      FactSet changes)
+      throws Error {
     int iterations = 0;
-    Instant limit = Instant.now().plus(limits.getMaxTime());
-
-    while (true) {
-      final FactSet newFacts = new FactSet();
-
-      for (Map.Entry<TrustedOrigins, List<Pair<Long, Rule>>> entry :
-          this.rules.getRules().entrySet()) {
-        for (Pair<Long, Rule> t : entry.getValue()) {
-          Supplier<Stream<Pair<Origin, Fact>>> factsSupplier =
-              () -> this.facts.stream(entry.getKey());
-
-          var stream = t._2.apply(factsSupplier, t._1, symbolTable);
-          for (var it = stream.iterator(); it.hasNext(); ) {
-            var res = it.next();
-            if (Instant.now().compareTo(limit) >= 0) {
-              throw new Error.Timeout();
-            }
-
-            if (res.isOk()) {
-              Pair<Origin, Fact> t2 = res.getOk();
-              newFacts.add(t2._1, t2._2);
-            } else {
-              throw res.getErr();
-            }
+    final Deadline deadline = Deadline.of(limits);
+    checkMemory(limits);
+
+    for (RuleGraph.Component component : components) {
+      // the facts generated by the previous iteration, null on the first iteration. When resuming
+      // from a fixpoint, the first iteration only looks for matches using the changes
+      FactSet delta = changes;
+
+      while (true) {
+        final FactSet newFacts = new FactSet();
+        final MemoryBudget budget = MemoryBudget.of(limits, this.facts);
+        if (limits.getExecutor().isPresent() && component.rules.size() > 1) {
+          applyRules(
+              component.rules,
+              delta,
+              newFacts,
+              deadline,
+              budget,
+              symbolTable,
+              limits.getExecutor().get());
+        } else {
+          for (RuleGraph.ScopedRule scopedRule : component.rules) {
+            applyRule(scopedRule, delta, newFacts, deadline, budget, symbolTable);
           }
         }
-      }
 
-      final int len = this.facts.size();
-      this.facts.merge(newFacts);
+        final FactSet generated = this.facts.mergeNew(newFacts);
+
+        if (generated.size() == 0) {
+          break;
+        }
+
+        if (this.facts.size() >= limits.getMaxFacts()) {
+          throw new Error.TooManyFacts();
+        }
+        checkMemory(limits);
+
+        // the next components must use the facts generated by this one
+        if (changes != null) {
+          changes.merge(generated);
+        }
+
+        if (!component.recursive) {
+          break;
+        }
 
-      if (this.facts.size() == len) {
-        return;
+        iterations += 1;
+        if (iterations >= limits.getMaxIterations()) {
+          throw new Error.TooManyIterations();
+        }
+
+        delta = generated;
       }
+    }
+  }
+
+  private void checkMemory(RunLimits limits) throws Error.TooMuchMemory {
+    if (this.facts.memoryBytes() > limits.getMaxMemoryBytes()) {
+      throw new Error.TooMuchMemory();
+    }
+  }
+
+  /**
+   * Applies the rules of an iteration as separate tasks, each one generating its own fact set
+   *
+   * <p>the tasks only read the fact sets, the results are merged once they are all done. If a rule
+   * fails, the tasks of the following rules that have not started yet are skipped, while the
+   * previous rules are still applied, so the error of the first failing rule (in rule order) is
+   * thrown
+   */
+  private void applyRules(
+      List<RuleGraph.ScopedRule> rules,
+      FactSet delta,
+      FactSet newFacts,
+      Deadline deadline,
+      MemoryBudget budget,
+      SymbolTable symbolTable,
+      Executor executor)
+      throws Error {
+    // index of the first rule known to fail, the following rules do not need to be applied
+    final AtomicInteger firstFailed = new AtomicInteger(Integer.MAX_VALUE);
+    final List<CompletableFuture<FactSet>> tasks = new ArrayList<>(rules.size());
+    for (int i = 0; i < rules.size(); i++) {
+      final int index = i;
+      final RuleGraph.ScopedRule scopedRule = rules.get(i);
+      tasks.add(
+          CompletableFuture.supplyAsync(
+              () -> {
+                if (firstFailed.get() < index) {
+                  return null;
+                }
+                final FactSet ruleFacts = new FactSet();
+                try {
+                  applyRule(scopedRule, delta, ruleFacts, deadline, budget, symbolTable);
+                } catch (Error e) {
+                  firstFailed.accumulateAndGet(index, Math::min);
+                  throw new CompletionException(e);
+                } catch (RuntimeException e) {
+                  firstFailed.accumulateAndGet(index, Math::min);
+                  throw e;
+                }
+                return ruleFacts;
+              },
+              executor));
+    }
 
-      if (this.facts.size() >= limits.getMaxFacts()) {
-        throw new Error.TooManyFacts();
+    // every task must be done before the fact set can be modified again
+    Throwable error = null;
+    for (CompletableFuture<FactSet> task : tasks) {
+      try {
+        final FactSet ruleFacts = task.join();
+        if (ruleFacts != null && error == null) {
+          newFacts.merge(ruleFacts);
+        }
+      } catch (CompletionException e) {
+        if (error == null) {
+          error = e.getCause() != null ? e.getCause() : e;
+        }
       }
+    }
+
+    if (error instanceof Error) {
+      throw (Error) error;
+    } else if (error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    } else if (error != null) {
+      throw new CompletionException(error);
+    }
+  }
 
-      iterations += 1;
-      if (iterations >= limits.getMaxIterations()) {
-        throw new Error.TooManyIterations();
+  private void applyRule(
+      RuleGraph.ScopedRule scopedRule,
+      FactSet delta,
+      FactSet newFacts,
+      Deadline deadline,
+      MemoryBudget budget,
+      SymbolTable symbolTable)
+      throws Error {
+    final Rule rule = scopedRule.rule;
+    final TrustedOrigins scope = scopedRule.scope;
+    final MemoryBudget.Tracker memory = budget.track(newFacts);
+    final FactSink sink =
+        (origin, fact) -> {
+          deadline.check();
+          newFacts.add(origin, fact);
+          memory.check();
+          return true;
+        };
+
+    if (delta == null) {
+      rule.apply(this.facts, scope, scopedRule.origin, symbolTable, sink);
+      return;
+    }
+
+    // a rule without predicates in its body cannot generate anything new after
+    // the first iteration
+    final FactSet[] sources = new FactSet[rule.body().size()];
+    for (int i = 0; i < sources.length; i++) {
+      if (delta.size(rule.body().get(i)) == 0) {
+        continue;
       }
+
+      Arrays.fill(sources, this.facts);
+      sources[i] = delta;
+      rule.apply(sources, scope, scopedRule.origin, symbolTable, sink);
     }
   }
 
@@ -94,24 +311,29 @@ public final class World implements Serializable {
   public FactSet queryRule(
       final Rule rule, Long origin, TrustedOrigins scope, SymbolTable symbolTable) throws Error {
     final FactSet newFacts = new FactSet();
-
-    Supplier<Stream<Pair<Origin, Fact>>> factsSupplier = () -> this.facts.stream(scope);
-
-    var stream = rule.apply(factsSupplier, origin, symbolTable);
-    for (var it = stream.iterator(); it.hasNext(); ) {
-      var res = it.next();
-
-      if (res.isOk()) {
-        Pair<Origin, Fact> t2 = res.getOk();
-        newFacts.add(t2._1, t2._2);
-      } else {
-        throw res.getErr();
-      }
-    }
-
+    rule.apply(
+        this.facts,
+        scope,
+        origin,
+        symbolTable,
+        (factOrigin, fact) -> {
+          newFacts.add(factOrigin, fact);
+          return true;
+        });
     return newFacts;
   }
 
+  /**
+   * Returns the facts generated by the rule, found as the stream is consumed
+   *
+   * <p>unlike {@link #queryRule(Rule, Long, TrustedOrigins, SymbolTable)}, the same fact can be
+   * returned more than once. The world must not be modified until the stream is no longer used
+   */
+  public Stream<Result<Pair<Origin, Fact>, Error>> queryRuleStream(
+      final Rule rule, Long origin, TrustedOrigins scope, SymbolTable symbolTable) {
+    return rule.apply(this.facts, scope, origin, symbolTable);
+  }
+
   public boolean queryMatch(
       final Rule rule, Long origin, TrustedOrigins scope, SymbolTable symbolTable) throws Error {
     return rule.findMatch(this.facts, origin, scope, symbolTable);
@@ -140,13 +362,16 @@ public final class World implements Serializable {
   public World(World w) {
     this.facts = w.facts.clone();
     this.rules = w.rules.clone();
+    this.pending = w.pending == null ? null : w.pending.clone();
+    this.expectedFacts = w.expectedFacts;
+    this.expectedRules = w.expectedRules;
   }
 
   public String print(SymbolTable symbolTable) {
     StringBuilder s = new StringBuilder();
 
     s.append("World {\n\t\tfacts: [");
-    for (Map.Entry<Origin, HashSet<Fact>> entry : this.facts.facts().entrySet()) {
+    for (Map.Entry<Origin, Set<Fact>> entry : this.facts.facts().entrySet()) {
       s.append("\n\t\t\t" + entry.getKey() + ":");
       for (Fact f : entry.getValue()) {
         s.append("\n\t\t\t\t");
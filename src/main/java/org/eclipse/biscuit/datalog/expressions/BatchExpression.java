@@ -0,0 +1,665 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog.expressions;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.eclipse.biscuit.datalog.TemporarySymbolTable;
+import org.eclipse.biscuit.datalog.Term;
+
+/**
+ * Evaluates an expression over columns of variable values, one row per set of bindings
+ *
+ * <p>integers, dates, booleans and strings (symbol ids) are stored in {@code long[]} columns, and
+ * each operation runs over whole columns. Comparisons, arithmetic, boolean operations, equality,
+ * {@code contains} on a set and the string operations {@code contains}, {@code starts_with} and
+ * {@code ends_with} are supported, along with lazy boolean operations whose right side is a closure
+ * without parameters. Other expressions have no batch form.
+ *
+ * <p>a row is true if the interpreter would evaluate the expression to true with the same values.
+ * Errors in a row, such as an overflow or an unknown string, make that row false, as they make
+ * {@link Expression#evaluate(Map, TemporarySymbolTable)} fail. If the types of the columns do not
+ * match the operations, as an example with columns mixing integers and dates, the batch is not
+ * evaluated and the expressions must be evaluated one binding at a time
+ */
+public final class BatchExpression {
+  private static final int INTEGER = 0;
+  private static final int DATE = 1;
+  private static final int BOOL = 2;
+  private static final int STR = 3;
+  private static final int SET = 4;
+
+  private final Node root;
+  private final Set<Long> variables;
+
+  private BatchExpression(Node root, Set<Long> variables) {
+    this.root = root;
+    this.variables = variables;
+  }
+
+  /** Returns the batch form of an expression, if all its operations have one */
+  public static Optional<BatchExpression> of(Expression expression) {
+    final Node root = compile(expression.getOps());
+    if (root == null || root instanceof Thunk) {
+      return Optional.empty();
+    }
+    return Optional.of(new BatchExpression(root, expression.variables()));
+  }
+
+  /** The variables the expression reads */
+  public Set<Long> variables() {
+    return variables;
+  }
+
+  /**
+   * Evaluates the expression for each row
+   *
+   * @param rows number of rows, every column must have at least this size
+   * @param columns the values of the variables, by variable id
+   * @return for each row, true if the expression evaluates to true, or null if the columns do not
+   *     allow a batch evaluation
+   */
+  public boolean[] evaluate(
+      int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+    final Column result = root.evaluate(rows, columns, temporarySymbolTable);
+    if (result == null || result.type != BOOL) {
+      return null;
+    }
+    final boolean[] matches = new boolean[rows];
+    for (int i = 0; i < rows; i++) {
+      matches[i] = result.values[i] != 0;
+    }
+    if (result.errors != null) {
+      for (int i = 0; i < rows; i++) {
+        matches[i] &= !result.errors[i];
+      }
+    }
+    return matches;
+  }
+
+  /** Values of a variable, or of a sub-expression, for each row */
+  public static final class Column {
+    private final int type;
+    private final long[] values;
+    // rows where the evaluation failed, null if there are none
+    private final boolean[] errors;
+    // only for sets
+    private final Term.Set set;
+
+    private Column(int type, long[] values, boolean[] errors) {
+      this.type = type;
+      this.values = values;
+      this.errors = errors;
+      this.set = null;
+    }
+
+    private Column(Term.Set set) {
+      this.type = SET;
+      this.values = null;
+      this.errors = null;
+      this.set = set;
+    }
+
+    public static Column integers(long[] values) {
+      return new Column(INTEGER, values, null);
+    }
+
+    public static Column dates(long[] values) {
+      return new Column(DATE, values, null);
+    }
+
+    /** Booleans are stored as 0 or 1 */
+    public static Column booleans(long[] values) {
+      return new Column(BOOL, values, null);
+    }
+
+    /** Strings are stored as symbol ids */
+    public static Column strings(long[] values) {
+      return new Column(STR, values, null);
+    }
+
+    /**
+     * Column with the same value on every row
+     *
+     * @return empty if the term has no batch form
+     */
+    public static Optional<Column> constant(Term term, int rows) {
+      if (term instanceof Term.Set) {
+        return Optional.of(new Column((Term.Set) term));
+      }
+      final int type = type(term);
+      if (type < 0) {
+        return Optional.empty();
+      }
+      final long[] values = new long[rows];
+      Arrays.fill(values, value(term));
+      return Optional.of(new Column(type, values, null));
+    }
+
+    private static int type(Term term) {
+      if (term instanceof Term.Integer) {
+        return INTEGER;
+      } else if (term instanceof Term.Date) {
+        return DATE;
+      } else if (term instanceof Term.Bool) {
+        return BOOL;
+      } else if (term instanceof Term.Str) {
+        return STR;
+      } else {
+        return -1;
+      }
+    }
+
+    private static long value(Term term) {
+      if (term instanceof Term.Integer) {
+        return ((Term.Integer) term).value();
+      } else if (term instanceof Term.Date) {
+        return ((Term.Date) term).value();
+      } else if (term instanceof Term.Bool) {
+        return ((Term.Bool) term).value() ? 1 : 0;
+      } else {
+        return ((Term.Str) term).value();
+      }
+    }
+  }
+
+  // builds the tree of nodes of a list of ops, null if an operation has no batch form
+  private static Node compile(List<Op> ops) {
+    final Deque<Node> stack = new ArrayDeque<>();
+    for (Op op : ops) {
+      if (op instanceof Term.Variable) {
+        stack.push(new Variable(((Term.Variable) op).value()));
+      } else if (op instanceof Term) {
+        if (!(op instanceof Term.Set) && Column.type((Term) op) < 0) {
+          return null;
+        }
+        stack.push(new Constant((Term) op));
+      } else if (op instanceof Op.Closure) {
+        final Op.Closure closure = (Op.Closure) op;
+        final Node body = closure.arity() == 0 ? compile(closure.ops()) : null;
+        if (body == null) {
+          return null;
+        }
+        stack.push(new Thunk(body));
+      } else if (op instanceof Op.Unary) {
+        if (stack.isEmpty()) {
+          return null;
+        }
+        final Node value = unary((Op.Unary) op, stack.pop());
+        if (value == null) {
+          return null;
+        }
+        stack.push(value);
+      } else if (op instanceof Op.Binary) {
+        if (stack.size() < 2) {
+          return null;
+        }
+        final Node right = stack.pop();
+        final Node left = stack.pop();
+        final Node value = binary((Op.Binary) op, left, right);
+        if (value == null) {
+          return null;
+        }
+        stack.push(value);
+      } else {
+        return null;
+      }
+    }
+    return stack.size() == 1 ? stack.pop() : null;
+  }
+
+  private static Node unary(Op.Unary op, Node value) {
+    if (value instanceof Thunk) {
+      return null;
+    }
+    switch (op.getOp()) {
+      case Negate:
+        return new Negate(value);
+      case Parens:
+        return value;
+      default:
+        return null;
+    }
+  }
+
+  private static Node binary(Op.Binary op, Node left, Node right) {
+    if (left instanceof Thunk) {
+      return null;
+    }
+    switch (op.getOp()) {
+      case LazyAnd:
+      case LazyOr:
+        return right instanceof Thunk
+            ? new LazyLogic(op.getOp(), left, ((Thunk) right).body)
+            : null;
+      default:
+        break;
+    }
+    if (right instanceof Thunk) {
+      return null;
+    }
+    switch (op.getOp()) {
+      case LessThan:
+      case GreaterThan:
+      case LessOrEqual:
+      case GreaterOrEqual:
+        return new Compare(op.getOp(), left, right);
+      case Equal:
+      case NotEqual:
+      case HeterogeneousEqual:
+      case HeterogeneousNotEqual:
+        return new Equal(op.getOp(), left, right);
+      case Add:
+      case Sub:
+      case Mul:
+        return new Arithmetic(op.getOp(), left, right);
+      case And:
+      case Or:
+        return new Logic(op.getOp(), left, right);
+      case Contains:
+      case Prefix:
+      case Suffix:
+        return new Contains(op.getOp(), left, right);
+      default:
+        return null;
+    }
+  }
+
+  private static boolean[] errors(Column left, Column right) {
+    if (left.errors == null) {
+      return right.errors;
+    }
+    if (right.errors == null) {
+      return left.errors;
+    }
+    final boolean[] errors = new boolean[left.errors.length];
+    for (int i = 0; i < errors.length; i++) {
+      errors[i] = left.errors[i] || right.errors[i];
+    }
+    return errors;
+  }
+
+  /** A node of the expression tree, evaluating to a column, or null if the types do not match */
+  private abstract static class Node {
+    abstract Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable);
+  }
+
+  private static final class Constant extends Node {
+    private final Term value;
+
+    Constant(Term value) {
+      this.value = value;
+    }
+
+    @Override
+    Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+      return Column.constant(value, rows).orElse(null);
+    }
+  }
+
+  private static final class Variable extends Node {
+    private final long id;
+
+    Variable(long id) {
+      this.id = id;
+    }
+
+    @Override
+    Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+      return columns.get(id);
+    }
+  }
+
+  /** Closure without parameters, only used as the right side of a lazy boolean operation */
+  private static final class Thunk extends Node {
+    private final Node body;
+
+    Thunk(Node body) {
+      this.body = body;
+    }
+
+    @Override
+    Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+      return null;
+    }
+  }
+
+  private static final class Negate extends Node {
+    private final Node value;
+
+    Negate(Node value) {
+      this.value = value;
+    }
+
+    @Override
+    Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+      final Column v = value.evaluate(rows, columns, temporarySymbolTable);
+      if (v == null || v.type != BOOL) {
+        return null;
+      }
+      final long[] result = new long[rows];
+      for (int i = 0; i < rows; i++) {
+        result[i] = v.values[i] ^ 1;
+      }
+      return new Column(BOOL, result, v.errors);
+    }
+  }
+
+  private static final class Compare extends Node {
+    private final Op.BinaryOp op;
+    private final Node left;
+    private final Node right;
+
+    Compare(Op.BinaryOp op, Node left, Node right) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+      final Column l = left.evaluate(rows, columns, temporarySymbolTable);
+      final Column r = right.evaluate(rows, columns, temporarySymbolTable);
+      if (l == null || r == null || l.type != r.type || (l.type != INTEGER && l.type != DATE)) {
+        return null;
+      }
+      final long[] a = l.values;
+      final long[] b = r.values;
+      final long[] result = new long[rows];
+      switch (op) {
+        case LessThan:
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] < b[i] ? 1 : 0;
+          }
+          break;
+        case GreaterThan:
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] > b[i] ? 1 : 0;
+          }
+          break;
+        case LessOrEqual:
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] <= b[i] ? 1 : 0;
+          }
+          break;
+        default:
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] >= b[i] ? 1 : 0;
+          }
+          break;
+      }
+      return new Column(BOOL, result, errors(l, r));
+    }
+  }
+
+  private static final class Equal extends Node {
+    private final Op.BinaryOp op;
+    private final Node left;
+    private final Node right;
+
+    Equal(Op.BinaryOp op, Node left, Node right) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+      final Column l = left.evaluate(rows, columns, temporarySymbolTable);
+      final Column r = right.evaluate(rows, columns, temporarySymbolTable);
+      if (l == null || r == null || l.type == SET || r.type == SET) {
+        return null;
+      }
+      final boolean heterogeneous =
+          op == Op.BinaryOp.HeterogeneousEqual || op == Op.BinaryOp.HeterogeneousNotEqual;
+      // comparing different types is an error, apart from the heterogeneous operations
+      if (l.type != r.type && !heterogeneous) {
+        return null;
+      }
+      final long equal = op == Op.BinaryOp.Equal || op == Op.BinaryOp.HeterogeneousEqual ? 1 : 0;
+      final long[] result = new long[rows];
+      if (l.type != r.type) {
+        Arrays.fill(result, equal ^ 1);
+      } else {
+        final long[] a = l.values;
+        final long[] b = r.values;
+        for (int i = 0; i < rows; i++) {
+          result[i] = a[i] == b[i] ? equal : equal ^ 1;
+        }
+      }
+      return new Column(BOOL, result, errors(l, r));
+    }
+  }
+
+  private static final class Arithmetic extends Node {
+    private final Op.BinaryOp op;
+    private final Node left;
+    private final Node right;
+
+    Arithmetic(Op.BinaryOp op, Node left, Node right) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+      final Column l = left.evaluate(rows, columns, temporarySymbolTable);
+      final Column r = right.evaluate(rows, columns, temporarySymbolTable);
+      if (l == null || r == null || l.type != INTEGER || r.type != INTEGER) {
+        return null;
+      }
+      final long[] a = l.values;
+      final long[] b = r.values;
+      final long[] result = new long[rows];
+      // overflows are errors, as with the exact operations of the interpreter
+      final boolean[] overflows = new boolean[rows];
+      boolean overflow = false;
+      switch (op) {
+        case Add:
+          for (int i = 0; i < rows; i++) {
+            final long v = a[i] + b[i];
+            result[i] = v;
+            overflows[i] = ((a[i] ^ v) & (b[i] ^ v)) < 0;
+            overflow |= overflows[i];
+          }
+          break;
+        case Sub:
+          for (int i = 0; i < rows; i++) {
+            final long v = a[i] - b[i];
+            result[i] = v;
+            overflows[i] = ((a[i] ^ b[i]) & (a[i] ^ v)) < 0;
+            overflow |= overflows[i];
+          }
+          break;
+        default:
+          for (int i = 0; i < rows; i++) {
+            final long v = a[i] * b[i];
+            result[i] = v;
+            overflows[i] = Math.multiplyHigh(a[i], b[i]) != (v >> 63);
+            overflow |= overflows[i];
+          }
+          break;
+      }
+      final boolean[] errors = errors(l, r);
+      if (!overflow) {
+        return new Column(INTEGER, result, errors);
+      }
+      if (errors != null) {
+        for (int i = 0; i < rows; i++) {
+          overflows[i] |= errors[i];
+        }
+      }
+      return new Column(INTEGER, result, overflows);
+    }
+  }
+
+  private static final class Logic extends Node {
+    private final Op.BinaryOp op;
+    private final Node left;
+    private final Node right;
+
+    Logic(Op.BinaryOp op, Node left, Node right) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+      final Column l = left.evaluate(rows, columns, temporarySymbolTable);
+      final Column r = right.evaluate(rows, columns, temporarySymbolTable);
+      if (l == null || r == null || l.type != BOOL || r.type != BOOL) {
+        return null;
+      }
+      final long[] a = l.values;
+      final long[] b = r.values;
+      final long[] result = new long[rows];
+      if (op == Op.BinaryOp.And) {
+        for (int i = 0; i < rows; i++) {
+          result[i] = a[i] & b[i];
+        }
+      } else {
+        for (int i = 0; i < rows; i++) {
+          result[i] = a[i] | b[i];
+        }
+      }
+      return new Column(BOOL, result, errors(l, r));
+    }
+  }
+
+  /**
+   * Lazy boolean operation: both sides are evaluated for every row, but the errors of the right
+   * side are only kept for the rows where the interpreter would evaluate it
+   */
+  private static final class LazyLogic extends Node {
+    private final Op.BinaryOp op;
+    private final Node left;
+    private final Node right;
+
+    LazyLogic(Op.BinaryOp op, Node left, Node right) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+      final Column l = left.evaluate(rows, columns, temporarySymbolTable);
+      final Column r = right.evaluate(rows, columns, temporarySymbolTable);
+      if (l == null || r == null || l.type != BOOL || r.type != BOOL) {
+        return null;
+      }
+      // the right side is evaluated when the left side is true for and, false for or
+      final long evaluated = op == Op.BinaryOp.LazyAnd ? 1 : 0;
+      final long[] a = l.values;
+      final long[] b = r.values;
+      final long[] result = new long[rows];
+      for (int i = 0; i < rows; i++) {
+        result[i] = a[i] == evaluated ? b[i] : a[i];
+      }
+      if (r.errors == null) {
+        return new Column(BOOL, result, l.errors);
+      }
+      final boolean[] errors = new boolean[rows];
+      for (int i = 0; i < rows; i++) {
+        errors[i] = (l.errors != null && l.errors[i]) || (a[i] == evaluated && r.errors[i]);
+      }
+      return new Column(BOOL, result, errors);
+    }
+  }
+
+  /** {@code contains} on a set, and the string operations */
+  private static final class Contains extends Node {
+    private final Op.BinaryOp op;
+    private final Node left;
+    private final Node right;
+
+    Contains(Op.BinaryOp op, Node left, Node right) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Column evaluate(
+        int rows, Map<Long, Column> columns, TemporarySymbolTable temporarySymbolTable) {
+      final Column l = left.evaluate(rows, columns, temporarySymbolTable);
+      final Column r = right.evaluate(rows, columns, temporarySymbolTable);
+      if (l == null || r == null) {
+        return null;
+      }
+      if (op == Op.BinaryOp.Contains && l.type == SET && r.type != SET) {
+        return setContains(rows, l.set, r);
+      }
+      if (l.type == STR && r.type == STR) {
+        return strings(rows, l, r, temporarySymbolTable);
+      }
+      return null;
+    }
+
+    private static Column setContains(int rows, Term.Set set, Column r) {
+      final Class<? extends Term> type =
+          r.type == INTEGER
+              ? Term.Integer.class
+              : r.type == DATE ? Term.Date.class : r.type == STR ? Term.Str.class : Term.Bool.class;
+      final long[] result = new long[rows];
+      for (int i = 0; i < rows; i++) {
+        result[i] = set.contains(type, r.values[i]) ? 1 : 0;
+      }
+      return new Column(BOOL, result, r.errors);
+    }
+
+    private Column strings(
+        int rows, Column l, Column r, TemporarySymbolTable temporarySymbolTable) {
+      final long[] result = new long[rows];
+      final boolean[] errors = new boolean[rows];
+      for (int i = 0; i < rows; i++) {
+        final Optional<String> a = temporarySymbolTable.getSymbol((int) l.values[i]);
+        final Optional<String> b = temporarySymbolTable.getSymbol((int) r.values[i]);
+        if (a.isEmpty() || b.isEmpty()) {
+          errors[i] = true;
+          continue;
+        }
+        final boolean matches;
+        switch (op) {
+          case Contains:
+            matches = a.get().contains(b.get());
+            break;
+          case Prefix:
+            matches = a.get().startsWith(b.get());
+            break;
+          default:
+            matches = a.get().endsWith(b.get());
+            break;
+        }
+        result[i] = matches ? 1 : 0;
+      }
+      final boolean[] inputErrors = errors(l, r);
+      if (inputErrors != null) {
+        for (int i = 0; i < rows; i++) {
+          errors[i] |= inputErrors[i];
+        }
+      }
+      return new Column(BOOL, result, errors);
+    }
+  }
+}
@@ -9,9 +9,12 @@ import biscuit.format.schema.Schema;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import org.eclipse.biscuit.datalog.SymbolTable;
 import org.eclipse.biscuit.datalog.TemporarySymbolTable;
 import org.eclipse.biscuit.datalog.Term;
@@ -20,6 +23,10 @@ import org.eclipse.biscuit.error.Result;
 
 public final class Expression {
   private final ArrayList<Op> ops;
+  // evaluator tree, built by compile when the expression is loaded in a rule, or on the first
+  // evaluation otherwise. Compiled is immutable, threads racing on the first evaluation each build
+  // an equivalent tree
+  private Compiled compiled;
 
   public Expression(ArrayList<Op> ops) {
     this.ops = ops;
@@ -29,9 +36,54 @@ public final class Expression {
     return ops;
   }
 
+  /**
+   * Builds the evaluator tree, done when rules are loaded (see {@link
+   * org.eclipse.biscuit.datalog.Rule#optimizeExpressions(SymbolTable)}) so that evaluations do not
+   * have to
+   */
+  public void compile() {
+    this.compiled = new Compiled(this.ops);
+  }
+
   // FIXME: should return a Result<Term, error::Expression>
   public Term evaluate(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
       throws Error.Execution {
+    Compiled c = this.compiled;
+    if (c == null) {
+      // built outside of a rule load
+      c = new Compiled(this.ops);
+      this.compiled = c;
+    }
+
+    if (c.root != null) {
+      // closure parameters that were not set before, they must be removed if the expression
+      // is interpreted after a partial evaluation
+      final boolean[] present = new boolean[c.params.size()];
+      for (int i = 0; i < present.length; i++) {
+        present[i] = variables.containsKey(c.params.get(i));
+      }
+
+      try {
+        Op op = c.root.evaluate(variables, temporarySymbolTable);
+        if (op instanceof Term) {
+          return (Term) op;
+        } else {
+          throw new Error.Execution(this, "expression evaluated to closure");
+        }
+      } catch (Node.Fallback e) {
+        for (int i = 0; i < present.length; i++) {
+          if (!present[i]) {
+            variables.remove(c.params.get(i));
+          }
+        }
+      }
+    }
+
+    return interpret(variables, temporarySymbolTable);
+  }
+
+  private Term interpret(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+      throws Error.Execution {
     Deque<Op> stack = new ArrayDeque<Op>(16); // Default value
     for (Op op : ops) {
       op.evaluate(stack, variables, temporarySymbolTable);
@@ -48,6 +100,66 @@ public final class Expression {
     }
   }
 
+  /**
+   * Returns an equivalent expression where the constant sub-expressions are replaced by their
+   * value
+   *
+   * @param symbolTable the symbol table the expression will be evaluated with
+   */
+  public Expression simplify(SymbolTable symbolTable) {
+    return new Expression(Folder.fold(this.ops, symbolTable));
+  }
+
+  /** Returns the variables the expression reads, apart from the parameters of its closures */
+  public Set<Long> variables() {
+    final Set<Long> variables = new HashSet<>();
+    for (Op op : this.ops) {
+      variables.addAll(Folder.freeVariables(op));
+    }
+    return variables;
+  }
+
+  /** Returns the parameters of the closures of the expression, including nested closures */
+  public Set<Long> closureParameters() {
+    final Set<Long> parameters = new HashSet<>();
+    for (Op op : this.ops) {
+      Folder.closureParameters(op, parameters);
+    }
+    return parameters;
+  }
+
+  /**
+   * Compiles the literal patterns of the {@code matches} operations of this expression into the
+   * shared regex cache
+   *
+   * @param symbolTable the symbol table the expression will be evaluated with
+   */
+  public void precompileRegexes(SymbolTable symbolTable) {
+    precompileRegexes(this.ops, symbolTable);
+  }
+
+  private static void precompileRegexes(List<Op> ops, SymbolTable symbolTable) {
+    for (int i = 0; i < ops.size(); i++) {
+      final Op op = ops.get(i);
+      if (op instanceof Op.Closure) {
+        precompileRegexes(((Op.Closure) op).ops(), symbolTable);
+      } else if (i > 0
+          && op instanceof Op.Binary
+          && ((Op.Binary) op).getOp() == Op.BinaryOp.Regex
+          && ops.get(i - 1) instanceof Term.Str) {
+        final Optional<String> regex =
+            symbolTable.getSymbol((int) ((Term.Str) ops.get(i - 1)).value());
+        if (regex.isPresent()) {
+          try {
+            RegexCache.shared().get(regex.get());
+          } catch (RuntimeException e) {
+            // invalid patterns fail at evaluation, as they did before
+          }
+        }
+      }
+    }
+  }
+
   public Optional<String> print(SymbolTable symbolTable) {
     Deque<String> stack = new ArrayDeque<>();
     for (Op op : ops) {
@@ -109,4 +221,32 @@ public final class Expression {
   public String toString() {
     return "Expression{ops=" + ops + '}';
   }
+
+  /** Evaluator tree of an expression */
+  private static final class Compiled {
+    // null if the expression must be interpreted
+    private final Node root;
+    // parameters of all the closures in the expression
+    private final List<Long> params;
+
+    Compiled(List<Op> ops) {
+      this.root = Node.compile(ops);
+      this.params = new ArrayList<>();
+      collectParams(ops, this.params);
+    }
+
+    private static void collectParams(List<Op> ops, List<Long> params) {
+      for (Op op : ops) {
+        if (op instanceof Op.Closure) {
+          Op.Closure closure = (Op.Closure) op;
+          for (Long param : closure.params()) {
+            if (!params.contains(param)) {
+              params.add(param);
+            }
+          }
+          collectParams(closure.ops(), params);
+        }
+      }
+    }
+  }
 }
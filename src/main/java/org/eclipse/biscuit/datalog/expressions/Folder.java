@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog.expressions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.biscuit.datalog.MapKey;
+import org.eclipse.biscuit.datalog.SymbolTable;
+import org.eclipse.biscuit.datalog.TemporarySymbolTable;
+import org.eclipse.biscuit.datalog.Term;
+import org.eclipse.biscuit.error.Error;
+
+/**
+ * Replaces the constant sub-expressions of a list of ops by their value
+ *
+ * <p>a sub-expression is constant if it does not use variables, apart from the parameters of the
+ * closures it contains. It is evaluated with the interpreter, and only replaced if the evaluation
+ * succeeds, so errors, and their handling by {@code try_or}, happen at the same place as before.
+ * Values holding strings that are not in the symbol table (as an example a concatenation) are not
+ * folded, since they only exist in the temporary symbol table of the evaluation
+ *
+ * <p>a {@code &&} or {@code ||} with a constant boolean operand is reduced to the other operand, or
+ * to the constant when it short-circuits. The other operand is kept as is if it always evaluates to
+ * a boolean, otherwise it is compared to {@code true}, so that a non boolean value is still an error
+ */
+final class Folder {
+  private final SymbolTable symbolTable;
+
+  private Folder(SymbolTable symbolTable) {
+    this.symbolTable = symbolTable;
+  }
+
+  static ArrayList<Op> fold(List<Op> ops, SymbolTable symbolTable) {
+    return new Folder(symbolTable).foldOps(ops);
+  }
+
+  private ArrayList<Op> foldOps(List<Op> ops) {
+    final Deque<Span> stack = new ArrayDeque<>();
+    for (Op op : ops) {
+      if (op instanceof Term) {
+        stack.push(new Span(op, Collections.emptyList(), !(op instanceof Term.Variable)));
+      } else if (op instanceof Op.Closure) {
+        stack.push(new Span(op, Collections.emptyList(), freeVariables(op).isEmpty()));
+      } else if (op instanceof Op.Unary) {
+        if (stack.isEmpty()) {
+          return new ArrayList<>(ops);
+        }
+        final Span value = stack.pop();
+        stack.push(new Span(op, List.of(value), value.constant));
+      } else if (op instanceof Op.Binary) {
+        if (stack.size() < 2) {
+          return new ArrayList<>(ops);
+        }
+        final Span right = stack.pop();
+        final Span left = stack.pop();
+        stack.push(new Span(op, List.of(left, right), left.constant && right.constant));
+      } else {
+        return new ArrayList<>(ops);
+      }
+    }
+    if (stack.size() != 1) {
+      return new ArrayList<>(ops);
+    }
+
+    final ArrayList<Op> folded = new ArrayList<>();
+    emit(stack.pop(), folded);
+    return folded;
+  }
+
+  private void emit(Span span, List<Op> out) {
+    if (span.constant && !span.children.isEmpty()) {
+      final Term value = evaluate(span);
+      if (value != null) {
+        out.add(value);
+        return;
+      }
+    }
+
+    if (isLazy(span.op)) {
+      emitLazy(span, out);
+      return;
+    }
+
+    for (Span child : span.children) {
+      emit(child, out);
+    }
+    if (span.op instanceof Op.Closure) {
+      final Op.Closure closure = (Op.Closure) span.op;
+      out.add(new Op.Closure(new ArrayList<>(closure.params()), foldOps(closure.ops())));
+    } else {
+      out.add(span.op);
+    }
+  }
+
+  private void emitLazy(Span span, List<Op> out) {
+    final boolean and = ((Op.Binary) span.op).getOp() == Op.BinaryOp.LazyAnd;
+    final ArrayList<Op> left = new ArrayList<>();
+    emit(span.children.get(0), left);
+    final Op right = span.children.get(1).op;
+    if (!(right instanceof Op.Closure) || !((Op.Closure) right).params().isEmpty()) {
+      out.addAll(left);
+      emit(span.children.get(1), out);
+      out.add(span.op);
+      return;
+    }
+    final ArrayList<Op> body = foldOps(((Op.Closure) right).ops());
+
+    // false && x, true || x
+    if (isBool(left, !and)) {
+      out.addAll(left);
+      return;
+    }
+    // true && x, false || x
+    if (isBool(left, and)) {
+      emitBool(body, out);
+      return;
+    }
+    // x && true, x || false. x && false and x || true still have to evaluate x
+    if (isBool(body, and)) {
+      emitBool(left, out);
+      return;
+    }
+
+    out.addAll(left);
+    out.add(new Op.Closure(new ArrayList<>(), body));
+    out.add(span.op);
+  }
+
+  private static void emitBool(List<Op> ops, List<Op> out) {
+    out.addAll(ops);
+    if (!alwaysBool(ops)) {
+      out.add(Term.Bool.of(true));
+      out.add(new Op.Binary(Op.BinaryOp.Equal));
+    }
+  }
+
+  private static boolean isLazy(Op op) {
+    return op instanceof Op.Binary
+        && (((Op.Binary) op).getOp() == Op.BinaryOp.LazyAnd
+            || ((Op.Binary) op).getOp() == Op.BinaryOp.LazyOr);
+  }
+
+  private static boolean isBool(List<Op> ops, boolean value) {
+    return ops.size() == 1 && ops.get(0).equals(Term.Bool.of(value));
+  }
+
+  // true if the ops either evaluate to a boolean or fail
+  private static boolean alwaysBool(List<Op> ops) {
+    if (ops.isEmpty()) {
+      return false;
+    }
+    final Op last = ops.get(ops.size() - 1);
+    if (last instanceof Term.Bool) {
+      return true;
+    } else if (last instanceof Op.Unary) {
+      switch (((Op.Unary) last).getOp()) {
+        case Negate:
+          return true;
+        case Parens:
+          return alwaysBool(ops.subList(0, ops.size() - 1));
+        default:
+          return false;
+      }
+    } else if (last instanceof Op.Binary) {
+      switch (((Op.Binary) last).getOp()) {
+        case Equal:
+        case NotEqual:
+        case HeterogeneousEqual:
+        case HeterogeneousNotEqual:
+          return true;
+        default:
+          return false;
+      }
+    }
+    return false;
+  }
+
+  // returns null if the sub-expression cannot be replaced by its value
+  private Term evaluate(Span span) {
+    final ArrayList<Op> ops = new ArrayList<>();
+    span.collect(ops);
+    final Term value;
+    try {
+      value = new Expression(ops).evaluate(new HashMap<>(), new TemporarySymbolTable(symbolTable));
+    } catch (Error.Execution | RuntimeException e) {
+      return null;
+    }
+    return hasTemporarySymbols(value) ? null : value;
+  }
+
+  private boolean hasTemporarySymbols(Term term) {
+    if (term instanceof Term.Str) {
+      return symbolTable.getSymbol((int) ((Term.Str) term).value()).isEmpty();
+    } else if (term instanceof Term.Set) {
+      for (Term t : ((Term.Set) term).value()) {
+        if (hasTemporarySymbols(t)) {
+          return true;
+        }
+      }
+    } else if (term instanceof Term.Array) {
+      for (Term t : ((Term.Array) term).value()) {
+        if (hasTemporarySymbols(t)) {
+          return true;
+        }
+      }
+    } else if (term instanceof Term.Map) {
+      for (Map.Entry<MapKey, Term> entry : ((Term.Map) term).value().entrySet()) {
+        if (hasTemporarySymbols(entry.getKey()) || hasTemporarySymbols(entry.getValue())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // variables used in a closure that are not parameters of the closure or of a nested closure
+  static Set<Long> freeVariables(Op op) {
+    final Set<Long> variables = new HashSet<>();
+    if (op instanceof Term.Variable) {
+      variables.add(((Term.Variable) op).value());
+    } else if (op instanceof Op.Closure) {
+      final Op.Closure closure = (Op.Closure) op;
+      for (Op o : closure.ops()) {
+        variables.addAll(freeVariables(o));
+      }
+      variables.removeAll(closure.params());
+    }
+    return variables;
+  }
+
+  static void closureParameters(Op op, Set<Long> parameters) {
+    if (op instanceof Op.Closure) {
+      final Op.Closure closure = (Op.Closure) op;
+      parameters.addAll(closure.params());
+      for (Op o : closure.ops()) {
+        closureParameters(o, parameters);
+      }
+    }
+  }
+
+  /** An op and the sub-expressions it applies to */
+  private static final class Span {
+    private final Op op;
+    private final List<Span> children;
+    private final boolean constant;
+
+    Span(Op op, List<Span> children, boolean constant) {
+      this.op = op;
+      this.children = children;
+      this.constant = constant;
+    }
+
+    void collect(List<Op> ops) {
+      for (Span child : children) {
+        child.collect(ops);
+      }
+      ops.add(op);
+    }
+  }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog.expressions;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.biscuit.datalog.TemporarySymbolTable;
+import org.eclipse.biscuit.datalog.Term;
+import org.eclipse.biscuit.error.Error;
+
+/**
+ * Evaluator tree compiled from the ops of an expression
+ *
+ * <p>each node evaluates its operands then applies its operation, the common cases (comparisons,
+ * arithmetic and boolean operations on their expected types) are done directly on the operand
+ * values, the other cases are delegated to {@link Op#evaluate}, so errors are the same as with the
+ * interpreter. When an operation does not produce a value (as an example when comparing an integer
+ * with a string), the interpreter's stack gets out of shape, this is not represented in a tree:
+ * evaluation stops with {@link Fallback} and the expression must be interpreted instead
+ */
+abstract class Node {
+  abstract Op evaluate(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+      throws Error.Execution;
+
+  /** Thrown when an operation does not produce a value */
+  static final class Fallback extends RuntimeException {
+    static final Fallback INSTANCE = new Fallback();
+
+    private Fallback() {
+      super(null, null, false, false);
+    }
+  }
+
+  /**
+   * Compiles a list of ops
+   *
+   * @return null if the ops do not build a single tree
+   */
+  static Node compile(List<Op> ops) {
+    final Deque<Node> stack = new ArrayDeque<>();
+    for (Op op : ops) {
+      if (op instanceof Term.Variable) {
+        stack.push(new Variable((Term.Variable) op));
+      } else if (op instanceof Term) {
+        stack.push(new Constant((Term) op));
+      } else if (op instanceof Op.Closure) {
+        final Op.Closure closure = (Op.Closure) op;
+        stack.push(new Closure(closure, compile(closure.ops())));
+      } else if (op instanceof Op.Unary) {
+        if (stack.isEmpty()) {
+          return null;
+        }
+        stack.push(unary((Op.Unary) op, stack.pop()));
+      } else if (op instanceof Op.Binary) {
+        if (stack.size() < 2) {
+          return null;
+        }
+        final Node right = stack.pop();
+        final Node left = stack.pop();
+        stack.push(binary((Op.Binary) op, left, right));
+      } else {
+        return null;
+      }
+    }
+    return stack.size() == 1 ? stack.pop() : null;
+  }
+
+  private static Node unary(Op.Unary op, Node value) {
+    switch (op.getOp()) {
+      case Negate:
+        return new Negate(value);
+      case Parens:
+        return value;
+      default:
+        return new GenericUnary(op, value);
+    }
+  }
+
+  private static Node binary(Op.Binary op, Node left, Node right) {
+    switch (op.getOp()) {
+      case LessThan:
+      case GreaterThan:
+      case LessOrEqual:
+      case GreaterOrEqual:
+        return new Compare(op, left, right);
+      case Equal:
+      case NotEqual:
+      case HeterogeneousEqual:
+      case HeterogeneousNotEqual:
+        return new Equal(op, left, right);
+      case Add:
+      case Sub:
+      case Mul:
+        return new Arithmetic(op, left, right);
+      case And:
+      case Or:
+        return new Logic(op, left, right);
+      case LazyAnd:
+      case LazyOr:
+        if (right instanceof Closure && ((Closure) right).isCompiledThunk()) {
+          return new LazyLogic(op, left, (Closure) right);
+        }
+        return new GenericBinary(op, left, right);
+      case Contains:
+        return new Contains(op, left, right);
+      default:
+        return new GenericBinary(op, left, right);
+    }
+  }
+
+  // applies an op to values with the interpreter
+  static Op apply(
+      Op op, Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable, Op... values)
+      throws Error.Execution {
+    final Deque<Op> stack = new ArrayDeque<>(values.length);
+    for (Op value : values) {
+      stack.push(value);
+    }
+    op.evaluate(stack, variables, temporarySymbolTable);
+    if (stack.size() != 1) {
+      throw Fallback.INSTANCE;
+    }
+    return stack.pop();
+  }
+
+  static final class Constant extends Node {
+    private final Term value;
+
+    Constant(Term value) {
+      this.value = value;
+    }
+
+    Term value() {
+      return value;
+    }
+
+    @Override
+    Op evaluate(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable) {
+      return value;
+    }
+  }
+
+  static final class Variable extends Node {
+    private final Term.Variable variable;
+
+    Variable(Term.Variable variable) {
+      this.variable = variable;
+    }
+
+    @Override
+    Op evaluate(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution {
+      final Term value = variables.get(variable.value());
+      if (value == null) {
+        throw new Error.Execution("cannot find a variable for index " + variable);
+      }
+      return value;
+    }
+  }
+
+  static final class Closure extends Node {
+    private final Op.Closure closure;
+    // null if the closure body could not be compiled
+    private final Node body;
+
+    Closure(Op.Closure closure, Node body) {
+      this.closure = closure;
+      this.body = body;
+    }
+
+    // a closure without parameters, that can be called without the interpreter
+    boolean isCompiledThunk() {
+      return body != null && closure.arity() == 0;
+    }
+
+    // same as Op.Closure.call
+    Term call(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution {
+      final Op result = body.evaluate(variables, temporarySymbolTable);
+      if (!(result instanceof Term)) {
+        throw Fallback.INSTANCE;
+      }
+      return (Term) result;
+    }
+
+    @Override
+    Op evaluate(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable) {
+      return closure;
+    }
+  }
+
+  private static final class Negate extends Node {
+    private final Node value;
+
+    Negate(Node value) {
+      this.value = value;
+    }
+
+    @Override
+    Op evaluate(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution {
+      final Op v = value.evaluate(variables, temporarySymbolTable);
+      if (v instanceof Term.Bool) {
+        return Term.Bool.of(!((Term.Bool) v).value());
+      }
+      throw new Error.Execution("invalid type for negate op, expected boolean");
+    }
+  }
+
+  private static final class GenericUnary extends Node {
+    private final Op.Unary op;
+    private final Node value;
+
+    GenericUnary(Op.Unary op, Node value) {
+      this.op = op;
+      this.value = value;
+    }
+
+    @Override
+    Op evaluate(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution {
+      return apply(
+          op, variables, temporarySymbolTable, value.evaluate(variables, temporarySymbolTable));
+    }
+  }
+
+  private abstract static class BinaryNode extends Node {
+    final Op.Binary op;
+    final Node left;
+    final Node right;
+
+    BinaryNode(Op.Binary op, Node left, Node right) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    final Op evaluate(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution {
+      final Op l = left.evaluate(variables, temporarySymbolTable);
+      final Op r = right.evaluate(variables, temporarySymbolTable);
+      return evaluate(l, r, variables, temporarySymbolTable);
+    }
+
+    abstract Op evaluate(
+        Op l, Op r, Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution;
+  }
+
+  private static final class GenericBinary extends BinaryNode {
+    GenericBinary(Op.Binary op, Node left, Node right) {
+      super(op, left, right);
+    }
+
+    @Override
+    Op evaluate(Op l, Op r, Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution {
+      return apply(op, variables, temporarySymbolTable, l, r);
+    }
+  }
+
+  // integer and date comparisons
+  private static final class Compare extends BinaryNode {
+    Compare(Op.Binary op, Node left, Node right) {
+      super(op, left, right);
+    }
+
+    @Override
+    Op evaluate(Op l, Op r, Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable) {
+      final long lv;
+      final long rv;
+      if (l instanceof Term.Integer && r instanceof Term.Integer) {
+        lv = ((Term.Integer) l).value();
+        rv = ((Term.Integer) r).value();
+      } else if (l instanceof Term.Date && r instanceof Term.Date) {
+        lv = ((Term.Date) l).value();
+        rv = ((Term.Date) r).value();
+      } else {
+        throw Fallback.INSTANCE;
+      }
+
+      switch (op.getOp()) {
+        case LessThan:
+          return Term.Bool.of(lv < rv);
+        case GreaterThan:
+          return Term.Bool.of(lv > rv);
+        case LessOrEqual:
+          return Term.Bool.of(lv <= rv);
+        default:
+          return Term.Bool.of(lv >= rv);
+      }
+    }
+  }
+
+  private static final class Equal extends BinaryNode {
+    private final boolean negated;
+    private final boolean heterogeneous;
+
+    Equal(Op.Binary op, Node left, Node right) {
+      super(op, left, right);
+      this.negated =
+          op.getOp() == Op.BinaryOp.NotEqual || op.getOp() == Op.BinaryOp.HeterogeneousNotEqual;
+      this.heterogeneous =
+          op.getOp() == Op.BinaryOp.HeterogeneousEqual
+              || op.getOp() == Op.BinaryOp.HeterogeneousNotEqual;
+    }
+
+    @Override
+    Op evaluate(Op l, Op r, Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution {
+      if (!(l instanceof Term) || !(r instanceof Term)) {
+        throw new Error.Execution(Error.Execution.Kind.InvalidType, "cannot compare closures");
+      }
+      if (!heterogeneous && l.getClass() != r.getClass()) {
+        throw new Error.Execution(
+            Error.Execution.Kind.InvalidType, "cannot compare disparate types");
+      }
+      return Term.Bool.of(l.equals(r) != negated);
+    }
+  }
+
+  // integer arithmetic, string concatenation is left to the interpreter
+  private static final class Arithmetic extends BinaryNode {
+    Arithmetic(Op.Binary op, Node left, Node right) {
+      super(op, left, right);
+    }
+
+    @Override
+    Op evaluate(Op l, Op r, Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution {
+      if (!(l instanceof Term.Integer) || !(r instanceof Term.Integer)) {
+        return apply(op, variables, temporarySymbolTable, l, r);
+      }
+
+      final long lv = ((Term.Integer) l).value();
+      final long rv = ((Term.Integer) r).value();
+      try {
+        switch (op.getOp()) {
+          case Add:
+            return Term.Integer.of(Math.addExact(lv, rv));
+          case Sub:
+            return Term.Integer.of(Math.subtractExact(lv, rv));
+          default:
+            return Term.Integer.of(Math.multiplyExact(lv, rv));
+        }
+      } catch (ArithmeticException e) {
+        throw new Error.Execution(Error.Execution.Kind.Overflow, "overflow");
+      }
+    }
+  }
+
+  private static final class Logic extends BinaryNode {
+    Logic(Op.Binary op, Node left, Node right) {
+      super(op, left, right);
+    }
+
+    @Override
+    Op evaluate(Op l, Op r, Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable) {
+      if (!(l instanceof Term.Bool) || !(r instanceof Term.Bool)) {
+        throw Fallback.INSTANCE;
+      }
+      final boolean lv = ((Term.Bool) l).value();
+      final boolean rv = ((Term.Bool) r).value();
+      return Term.Bool.of(op.getOp() == Op.BinaryOp.And ? lv && rv : lv || rv);
+    }
+  }
+
+  // short circuiting operations, the closure body is only evaluated if needed
+  private static final class LazyLogic extends Node {
+    private final boolean and;
+    private final Node left;
+    private final Closure right;
+
+    LazyLogic(Op.Binary op, Node left, Closure right) {
+      this.and = op.getOp() == Op.BinaryOp.LazyAnd;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Op evaluate(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution {
+      final Op l = left.evaluate(variables, temporarySymbolTable);
+      if (!(l instanceof Term.Bool)) {
+        throw Fallback.INSTANCE;
+      }
+      if (((Term.Bool) l).value() != and) {
+        return Term.Bool.of(!and);
+      }
+
+      final Term result = right.call(variables, temporarySymbolTable);
+      if (!(result instanceof Term.Bool)) {
+        throw Fallback.INSTANCE;
+      }
+      return result;
+    }
+  }
+
+  // set membership, the other cases are left to the interpreter
+  private static final class Contains extends BinaryNode {
+    Contains(Op.Binary op, Node left, Node right) {
+      super(op, left, right);
+    }
+
+    @Override
+    Op evaluate(Op l, Op r, Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
+        throws Error.Execution {
+      if (l instanceof Term.Set
+          && (r instanceof Term.Integer
+              || r instanceof Term.Str
+              || r instanceof Term.Bytes
+              || r instanceof Term.Date
+              || r instanceof Term.Bool)) {
+        return Term.Bool.of(((Term.Set) l).contains((Term) r));
+      }
+      return apply(op, variables, temporarySymbolTable, l, r);
+    }
+  }
+}
@@ -12,8 +12,6 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -77,7 +75,7 @@ public abstract class Op {
         case Negate:
           if (value instanceof Term.Bool) {
             Term.Bool b = (Term.Bool) value;
-            stack.push(new Term.Bool(!b.value()));
+            stack.push(Term.Bool.of(!b.value()));
           } else {
             throw new Error.Execution("invalid type for negate op, expected boolean");
           }
@@ -92,19 +90,19 @@ public abstract class Op {
               throw new Error.Execution("string not found in symbols for id" + value);
             } else {
               try {
-                stack.push(new Term.Integer(s.get().getBytes("UTF-8").length));
+                stack.push(Term.Integer.of(s.get().getBytes("UTF-8").length));
               } catch (UnsupportedEncodingException e) {
                 throw new Error.Execution("cannot calculate string length: " + e.toString());
               }
             }
           } else if (value instanceof Term.Bytes) {
-            stack.push(new Term.Integer(((Term.Bytes) value).value().length));
+            stack.push(Term.Integer.of(((Term.Bytes) value).value().length));
           } else if (value instanceof Term.Set) {
-            stack.push(new Term.Integer(((Term.Set) value).value().size()));
+            stack.push(Term.Integer.of(((Term.Set) value).value().size()));
           } else if (value instanceof Term.Array) {
-            stack.push(new Term.Integer(((Term.Array) value).value().size()));
+            stack.push(Term.Integer.of(((Term.Array) value).value().size()));
           } else if (value instanceof Term.Map) {
-            stack.push(new Term.Integer(((Term.Map) value).value().size()));
+            stack.push(Term.Integer.of(((Term.Map) value).value().size()));
           } else {
             throw new Error.Execution("invalid type for length op");
           }
@@ -266,43 +264,43 @@ public abstract class Op {
         case LessThan:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             stack.push(
-                new Term.Bool(((Term.Integer) left).value() < ((Term.Integer) right).value()));
+                Term.Bool.of(((Term.Integer) left).value() < ((Term.Integer) right).value()));
           }
           if (right instanceof Term.Date && left instanceof Term.Date) {
-            stack.push(new Term.Bool(((Term.Date) left).value() < ((Term.Date) right).value()));
+            stack.push(Term.Bool.of(((Term.Date) left).value() < ((Term.Date) right).value()));
           }
           break;
         case GreaterThan:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             stack.push(
-                new Term.Bool(((Term.Integer) left).value() > ((Term.Integer) right).value()));
+                Term.Bool.of(((Term.Integer) left).value() > ((Term.Integer) right).value()));
           }
           if (right instanceof Term.Date && left instanceof Term.Date) {
-            stack.push(new Term.Bool(((Term.Date) left).value() > ((Term.Date) right).value()));
+            stack.push(Term.Bool.of(((Term.Date) left).value() > ((Term.Date) right).value()));
           }
           break;
         case LessOrEqual:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             stack.push(
-                new Term.Bool(((Term.Integer) left).value() <= ((Term.Integer) right).value()));
+                Term.Bool.of(((Term.Integer) left).value() <= ((Term.Integer) right).value()));
           }
           if (right instanceof Term.Date && left instanceof Term.Date) {
-            stack.push(new Term.Bool(((Term.Date) left).value() <= ((Term.Date) right).value()));
+            stack.push(Term.Bool.of(((Term.Date) left).value() <= ((Term.Date) right).value()));
           }
           break;
         case GreaterOrEqual:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             stack.push(
-                new Term.Bool(((Term.Integer) left).value() >= ((Term.Integer) right).value()));
+                Term.Bool.of(((Term.Integer) left).value() >= ((Term.Integer) right).value()));
           }
           if (right instanceof Term.Date && left instanceof Term.Date) {
-            stack.push(new Term.Bool(((Term.Date) left).value() >= ((Term.Date) right).value()));
+            stack.push(Term.Bool.of(((Term.Date) left).value() >= ((Term.Date) right).value()));
           }
           break;
         case Equal:
           if (left instanceof Term && right instanceof Term) {
             if (left.getClass() == right.getClass()) {
-              stack.push(new Term.Bool(left.equals(right)));
+              stack.push(Term.Bool.of(left.equals(right)));
             } else {
               throw new Error.Execution(
                   Error.Execution.Kind.InvalidType, "cannot compare disparate types");
@@ -314,7 +312,7 @@ public abstract class Op {
         case NotEqual:
           if (left instanceof Term && right instanceof Term) {
             if (left.getClass() == right.getClass()) {
-              stack.push(new Term.Bool(!left.equals(right)));
+              stack.push(Term.Bool.of(!left.equals(right)));
             } else {
               throw new Error.Execution(
                   Error.Execution.Kind.InvalidType, "cannot compare disparate types");
@@ -325,14 +323,14 @@ public abstract class Op {
           break;
         case HeterogeneousEqual:
           if (left instanceof Term && right instanceof Term) {
-            stack.push(new Term.Bool(left.equals(right)));
+            stack.push(Term.Bool.of(left.equals(right)));
           } else {
             throw new Error.Execution(Error.Execution.Kind.InvalidType, "cannot compare closures");
           }
           break;
         case HeterogeneousNotEqual:
           if (left instanceof Term && right instanceof Term) {
-            stack.push(new Term.Bool(!left.equals(right)));
+            stack.push(Term.Bool.of(!left.equals(right)));
           } else {
             throw new Error.Execution(Error.Execution.Kind.InvalidType, "cannot compare closures");
           }
@@ -345,12 +343,10 @@ public abstract class Op {
                   || right instanceof Term.Date
                   || right instanceof Term.Bool)) {
 
-            stack.push(new Term.Bool(((Term.Set) left).value().contains(right)));
+            stack.push(Term.Bool.of(((Term.Set) left).contains((Term) right)));
           }
           if (right instanceof Term.Set && left instanceof Term.Set) {
-            Set<Term> leftSet = ((Term.Set) left).value();
-            Set<Term> rightSet = ((Term.Set) right).value();
-            stack.push(new Term.Bool(leftSet.containsAll(rightSet)));
+            stack.push(Term.Bool.of(((Term.Set) left).containsAll((Term.Set) right)));
           }
           if (left instanceof Term.Str && right instanceof Term.Str) {
             Optional<String> leftS =
@@ -367,19 +363,19 @@ public abstract class Op {
                   "cannot find string in symbols for index " + ((Term.Str) right).value());
             }
 
-            stack.push(new Term.Bool(leftS.get().contains(rightS.get())));
+            stack.push(Term.Bool.of(leftS.get().contains(rightS.get())));
           }
           if (left instanceof Term.Array) {
             List<Term> array = ((Term.Array) left).value();
-            stack.push(new Term.Bool(array.contains(right)));
+            stack.push(Term.Bool.of(array.contains(right)));
           }
           if (left instanceof Term.Map) {
-            HashMap<MapKey, Term> map = ((Term.Map) left).value();
+            Map<MapKey, Term> map = ((Term.Map) left).value();
             if (right instanceof MapKey) {
               MapKey key = (MapKey) right;
-              stack.push(new Term.Bool(map.containsKey(key)));
+              stack.push(Term.Bool.of(map.containsKey(key)));
             } else {
-              stack.push(new Term.Bool(false));
+              stack.push(Term.Bool.FALSE);
             }
           }
           break;
@@ -398,15 +394,15 @@ public abstract class Op {
                   "cannot find string in symbols for index " + ((Term.Str) right).value());
             }
 
-            stack.push(new Term.Bool(leftS.get().startsWith(rightS.get())));
+            stack.push(Term.Bool.of(leftS.get().startsWith(rightS.get())));
           }
           if (left instanceof Term.Array && right instanceof Term.Array) {
             List<Term> leftArray = ((Term.Array) left).value();
             List<Term> rightArray = ((Term.Array) right).value();
             if (leftArray.size() < rightArray.size()) {
-              stack.push(new Term.Bool(false));
+              stack.push(Term.Bool.FALSE);
             } else {
-              stack.push(new Term.Bool(leftArray.subList(0, rightArray.size()).equals(rightArray)));
+              stack.push(Term.Bool.of(leftArray.subList(0, rightArray.size()).equals(rightArray)));
             }
           }
           break;
@@ -424,16 +420,16 @@ public abstract class Op {
               throw new Error.Execution(
                   "cannot find string in symbols for index " + ((Term.Str) right).value());
             }
-            stack.push(new Term.Bool(leftS.get().endsWith(rightS.get())));
+            stack.push(Term.Bool.of(leftS.get().endsWith(rightS.get())));
           }
           if (left instanceof Term.Array && right instanceof Term.Array) {
             List<Term> leftArray = ((Term.Array) left).value();
             List<Term> rightArray = ((Term.Array) right).value();
             if (leftArray.size() < rightArray.size()) {
-              stack.push(new Term.Bool(false));
+              stack.push(Term.Bool.FALSE);
             } else {
               stack.push(
-                  new Term.Bool(
+                  Term.Bool.of(
                       leftArray
                           .subList(leftArray.size() - rightArray.size(), leftArray.size())
                           .equals(rightArray)));
@@ -455,16 +451,16 @@ public abstract class Op {
                   "cannot find string in symbols for index " + ((Term.Str) right).value());
             }
 
-            Pattern p = Pattern.compile(rightS.get());
+            Pattern p = RegexCache.shared().get(rightS.get());
             Matcher m = p.matcher(leftS.get());
-            stack.push(new Term.Bool(m.find()));
+            stack.push(Term.Bool.of(m.find()));
           }
           break;
         case Add:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             try {
               stack.push(
-                  new Term.Integer(
+                  Term.Integer.of(
                       Math.addExact(
                           ((Term.Integer) left).value(), ((Term.Integer) right).value())));
             } catch (ArithmeticException e) {
@@ -495,7 +491,7 @@ public abstract class Op {
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             try {
               stack.push(
-                  new Term.Integer(
+                  Term.Integer.of(
                       Math.subtractExact(
                           ((Term.Integer) left).value(), ((Term.Integer) right).value())));
             } catch (ArithmeticException e) {
@@ -507,7 +503,7 @@ public abstract class Op {
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             try {
               stack.push(
-                  new Term.Integer(
+                  Term.Integer.of(
                       Math.multiplyExact(
                           ((Term.Integer) left).value(), ((Term.Integer) right).value())));
             } catch (ArithmeticException e) {
@@ -519,18 +515,18 @@ public abstract class Op {
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             long rl = ((Term.Integer) right).value();
             if (rl != 0) {
-              stack.push(new Term.Integer(((Term.Integer) left).value() / rl));
+              stack.push(Term.Integer.of(((Term.Integer) left).value() / rl));
             }
           }
           break;
         case And:
           if (right instanceof Term.Bool && left instanceof Term.Bool) {
-            stack.push(new Term.Bool(((Term.Bool) left).value() && ((Term.Bool) right).value()));
+            stack.push(Term.Bool.of(((Term.Bool) left).value() && ((Term.Bool) right).value()));
           }
           break;
         case Or:
           if (right instanceof Term.Bool && left instanceof Term.Bool) {
-            stack.push(new Term.Bool(((Term.Bool) left).value() || ((Term.Bool) right).value()));
+            stack.push(Term.Bool.of(((Term.Bool) left).value() || ((Term.Bool) right).value()));
           }
           break;
         case LazyAnd:
@@ -542,14 +538,14 @@ public abstract class Op {
                 stack.push((Term.Bool) result);
               }
             } else {
-              stack.push(new Term.Bool(false));
+              stack.push(Term.Bool.FALSE);
             }
           }
           break;
         case LazyOr:
           if (left instanceof Term.Bool && right instanceof Closure) {
             if (((Term.Bool) left).value()) {
-              stack.push(new Term.Bool(true));
+              stack.push(Term.Bool.TRUE);
             } else {
               Closure closure = (Closure) right;
               Term result = closure.call(variables, temporarySymbolTable);
@@ -561,46 +557,33 @@ public abstract class Op {
           break;
         case Intersection:
           if (right instanceof Term.Set && left instanceof Term.Set) {
-            HashSet<Term> intersec = new HashSet<Term>();
-            HashSet<Term> setRight = ((Term.Set) right).value();
-            HashSet<Term> setLeft = ((Term.Set) left).value();
-            for (Term locId : setRight) {
-              if (setLeft.contains(locId)) {
-                intersec.add(locId);
-              }
-            }
-            stack.push(new Term.Set(intersec));
+            stack.push(((Term.Set) left).intersection((Term.Set) right));
           }
           break;
         case Union:
           if (right instanceof Term.Set && left instanceof Term.Set) {
-            HashSet<Term> union = new HashSet<Term>();
-            HashSet<Term> setRight = ((Term.Set) right).value();
-            HashSet<Term> setLeft = ((Term.Set) left).value();
-            union.addAll(setRight);
-            union.addAll(setLeft);
-            stack.push(new Term.Set(union));
+            stack.push(((Term.Set) left).union((Term.Set) right));
           }
           break;
         case BitwiseAnd:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             long r = ((Term.Integer) right).value();
             long l = ((Term.Integer) left).value();
-            stack.push(new Term.Integer(r & l));
+            stack.push(Term.Integer.of(r & l));
           }
           break;
         case BitwiseOr:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             long r = ((Term.Integer) right).value();
             long l = ((Term.Integer) left).value();
-            stack.push(new Term.Integer(r | l));
+            stack.push(Term.Integer.of(r | l));
           }
           break;
         case BitwiseXor:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             long r = ((Term.Integer) right).value();
             long l = ((Term.Integer) left).value();
-            stack.push(new Term.Integer(r ^ l));
+            stack.push(Term.Integer.of(r ^ l));
           }
           break;
         case Get:
@@ -608,24 +591,24 @@ public abstract class Op {
             int index = (int) ((Term.Integer) right).value();
             List<Term> array = ((Term.Array) left).value();
             if (index >= array.size() || index < 0) {
-              stack.push(new Term.Null());
+              stack.push(Term.Null.INSTANCE);
             } else {
               Term element = array.get(index);
               if (element != null) {
                 stack.push(element);
               } else {
-                stack.push(new Term.Null());
+                stack.push(Term.Null.INSTANCE);
               }
             }
           }
           if (right instanceof MapKey && left instanceof Term.Map) {
             MapKey key = (MapKey) right;
-            HashMap<MapKey, Term> map = ((Term.Map) left).value();
+            Map<MapKey, Term> map = ((Term.Map) left).value();
             Term value = map.get(key);
             if (value != null) {
               stack.push(value);
             } else {
-              stack.push(new Term.Null());
+              stack.push(Term.Null.INSTANCE);
             }
           }
           break;
@@ -646,7 +629,7 @@ public abstract class Op {
                 }
               }
             } else if (left instanceof Term.Set) {
-              HashSet<Term> set = ((Term.Set) left).value();
+              Set<Term> set = ((Term.Set) left).value();
               for (Term elem : set) {
                 Term returnValue = closure.call(elem, variables, temporarySymbolTable);
                 if (!(returnValue instanceof Term.Bool)) {
@@ -658,7 +641,7 @@ public abstract class Op {
                 }
               }
             } else if (left instanceof Term.Map) {
-              HashMap<MapKey, Term> map = ((Term.Map) left).value();
+              Map<MapKey, Term> map = ((Term.Map) left).value();
               for (Map.Entry<MapKey, Term> entry : map.entrySet()) {
                 List<Term> params = new ArrayList<>(List.of(entry.getKey(), entry.getValue()));
                 Term returnValue =
@@ -674,7 +657,7 @@ public abstract class Op {
             } else {
               throw new Error.Execution("left operand of any op is not a collection");
             }
-            stack.push(new Term.Bool(result));
+            stack.push(Term.Bool.of(result));
           } else {
             throw new Error.Execution("right operand of any op is not a closure");
           }
@@ -696,7 +679,7 @@ public abstract class Op {
                 }
               }
             } else if (left instanceof Term.Set) {
-              HashSet<Term> set = ((Term.Set) left).value();
+              Set<Term> set = ((Term.Set) left).value();
               for (Term elem : set) {
                 Term returnValue = closure.call(elem, variables, temporarySymbolTable);
                 if (!(returnValue instanceof Term.Bool)) {
@@ -708,7 +691,7 @@ public abstract class Op {
                 }
               }
             } else if (left instanceof Term.Map) {
-              HashMap<MapKey, Term> map = ((Term.Map) left).value();
+              Map<MapKey, Term> map = ((Term.Map) left).value();
               for (Map.Entry<MapKey, Term> entry : map.entrySet()) {
                 ArrayList<Term> params = new ArrayList<>(List.of(entry.getKey(), entry.getValue()));
                 Term returnValue =
@@ -724,7 +707,7 @@ public abstract class Op {
             } else {
               throw new Error.Execution("left operand of all op is not a collection");
             }
-            stack.push(new Term.Bool(result));
+            stack.push(Term.Bool.of(result));
           } else {
             throw new Error.Execution("right operand of all op is not a closure");
           }
@@ -1086,6 +1069,14 @@ public abstract class Op {
       return params.size();
     }
 
+    List<Long> params() {
+      return params;
+    }
+
+    List<Op> ops() {
+      return ops;
+    }
+
     Term call(Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
         throws Error.Execution {
       if (arity() != 0) {
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.datalog.expressions;
+
+import com.google.re2j.Pattern;
+import com.google.re2j.PatternSyntaxException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of compiled regular expressions, used by the {@code matches} operator
+ *
+ * <p>patterns are keyed by their string, invalid patterns are cached with their syntax error. Once
+ * the cache is full, arbitrary entries are evicted to make room, so the size can go slightly over
+ * the capacity while several threads insert. Lookups do not lock, the cache can be shared between
+ * threads
+ */
+public final class RegexCache {
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private static final RegexCache SHARED = new RegexCache(DEFAULT_CAPACITY);
+
+  private final int capacity;
+  // a Pattern, or the PatternSyntaxException of an invalid pattern
+  private final ConcurrentHashMap<String, Object> patterns;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public RegexCache(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.patterns = new ConcurrentHashMap<>();
+  }
+
+  /** The cache used by the expression evaluation */
+  public static RegexCache shared() {
+    return SHARED;
+  }
+
+  /**
+   * Returns the compiled pattern, compiling it if it is not in the cache
+   *
+   * @throws PatternSyntaxException if the pattern is invalid
+   */
+  public Pattern get(String regex) {
+    Object compiled = patterns.get(regex);
+    if (compiled != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      try {
+        compiled = Pattern.compile(regex);
+      } catch (PatternSyntaxException e) {
+        compiled = e;
+      }
+      if (patterns.size() >= capacity) {
+        evict();
+      }
+      final Object previous = patterns.putIfAbsent(regex, compiled);
+      if (previous != null) {
+        compiled = previous;
+      }
+    }
+
+    if (compiled instanceof PatternSyntaxException) {
+      final PatternSyntaxException error = (PatternSyntaxException) compiled;
+      throw new PatternSyntaxException(error.getDescription(), error.getPattern());
+    }
+    return (Pattern) compiled;
+  }
+
+  private void evict() {
+    final Iterator<String> keys = patterns.keySet().iterator();
+    while (patterns.size() >= capacity && keys.hasNext()) {
+      keys.next();
+      keys.remove();
+    }
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public int size() {
+    return patterns.size();
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  public void clear() {
+    patterns.clear();
+    hits.set(0);
+    misses.set(0);
+  }
+}
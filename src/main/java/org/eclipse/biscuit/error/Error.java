@@ -672,6 +672,22 @@ public abstract class Error extends Exception {
     }
   }
 
+  /** The estimated memory used by the facts reached the limit */
+  public static final class TooMuchMemory extends Error {
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      return o != null && getClass() == o.getClass();
+    }
+
+    @Override
+    public JsonNode toJson() {
+      return TextNode.valueOf("TooMuchMemory");
+    }
+  }
+
   public static final class TooManyIterations extends Error {
     @Override
     public boolean equals(Object o) {
@@ -702,6 +718,22 @@ public abstract class Error extends Exception {
     }
   }
 
+  /** The evaluation was cancelled through its cancellation token, or its thread was interrupted */
+  public static final class Cancelled extends Error {
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      return o != null && getClass() == o.getClass();
+    }
+
+    @Override
+    public JsonNode toJson() {
+      return TextNode.valueOf("Cancelled");
+    }
+  }
+
   public static final class Execution extends Error {
     public enum Kind {
       Execution,
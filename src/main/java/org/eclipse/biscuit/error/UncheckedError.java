@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) 2019 Geoffroy Couprie <contact@geoffroycouprie.com> and Contributors to the Eclipse Foundation.
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.eclipse.biscuit.error;
+
+/** Wraps an {@link Error} raised where checked exceptions cannot be thrown, as in a stream */
+public final class UncheckedError extends RuntimeException {
+  public UncheckedError(Error cause) {
+    super(cause);
+  }
+
+  @Override
+  public synchronized Error getCause() {
+    return (Error) super.getCause();
+  }
+}
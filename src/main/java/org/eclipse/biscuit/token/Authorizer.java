@@ -7,7 +7,6 @@ package org.eclipse.biscuit.token;
 
 import static org.eclipse.biscuit.datalog.Check.Kind.REJECT;
 
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -19,8 +18,11 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.eclipse.biscuit.crypto.PublicKey;
+import org.eclipse.biscuit.datalog.Deadline;
 import org.eclipse.biscuit.datalog.FactSet;
+import org.eclipse.biscuit.datalog.MappedFactBase;
 import org.eclipse.biscuit.datalog.Origin;
 import org.eclipse.biscuit.datalog.Pair;
 import org.eclipse.biscuit.datalog.RuleSet;
@@ -33,6 +35,7 @@ import org.eclipse.biscuit.error.Error;
 import org.eclipse.biscuit.error.FailedCheck;
 import org.eclipse.biscuit.error.LogicError;
 import org.eclipse.biscuit.error.Result;
+import org.eclipse.biscuit.error.UncheckedError;
 import org.eclipse.biscuit.token.builder.Check;
 import org.eclipse.biscuit.token.builder.Fact;
 import org.eclipse.biscuit.token.builder.Rule;
@@ -45,6 +48,12 @@ public final class Authorizer {
   private Biscuit token;
   private final List<Check> checks;
   private final List<Policy> policies;
+  // datalog form of the checks and policy queries, converted and simplified once when they are
+  // loaded
+  private final List<org.eclipse.biscuit.datalog.Check> authorizerChecks;
+  private final List<List<org.eclipse.biscuit.datalog.Rule>> policyQueries;
+  private final List<org.eclipse.biscuit.datalog.Check> authorityChecks;
+  private final List<List<org.eclipse.biscuit.datalog.Check>> blockChecks;
   private final List<Scope> scopes;
   private final HashMap<Long, List<Long>> publicKeyToBlockId;
   private final World world;
@@ -56,6 +65,10 @@ public final class Authorizer {
     this.symbolTable = new SymbolTable(this.token.symbolTable);
     this.checks = new ArrayList<>();
     this.policies = new ArrayList<>();
+    this.authorizerChecks = new ArrayList<>();
+    this.policyQueries = new ArrayList<>();
+    this.authorityChecks = new ArrayList<>();
+    this.blockChecks = new ArrayList<>();
     this.scopes = new ArrayList<>();
     this.publicKeyToBlockId = new HashMap<>();
     updateOnToken();
@@ -72,6 +85,10 @@ public final class Authorizer {
     this.symbolTable = Biscuit.defaultSymbolTable();
     this.checks = new ArrayList<>();
     this.policies = new ArrayList<>();
+    this.authorizerChecks = new ArrayList<>();
+    this.policyQueries = new ArrayList<>();
+    this.authorityChecks = new ArrayList<>();
+    this.blockChecks = new ArrayList<>();
     this.scopes = new ArrayList<>();
     this.publicKeyToBlockId = new HashMap<>();
   }
@@ -80,11 +97,19 @@ public final class Authorizer {
       Biscuit token,
       List<Check> checks,
       List<Policy> policies,
+      List<org.eclipse.biscuit.datalog.Check> authorizerChecks,
+      List<List<org.eclipse.biscuit.datalog.Rule>> policyQueries,
+      List<org.eclipse.biscuit.datalog.Check> authorityChecks,
+      List<List<org.eclipse.biscuit.datalog.Check>> blockChecks,
       World world,
       SymbolTable symbolTable) {
     this.token = token;
     this.checks = checks;
     this.policies = policies;
+    this.authorizerChecks = authorizerChecks;
+    this.policyQueries = policyQueries;
+    this.authorityChecks = authorityChecks;
+    this.blockChecks = blockChecks;
     this.world = world;
     this.symbolTable = symbolTable;
     this.scopes = new ArrayList<>();
@@ -108,12 +133,18 @@ public final class Authorizer {
         this.token,
         new ArrayList<>(this.checks),
         new ArrayList<>(this.policies),
+        new ArrayList<>(this.authorizerChecks),
+        new ArrayList<>(this.policyQueries),
+        new ArrayList<>(this.authorityChecks),
+        new ArrayList<>(this.blockChecks),
         new World(this.world),
         new SymbolTable(this.symbolTable));
   }
 
   public void updateOnToken() throws Error.FailedLogic {
     if (token != null) {
+      this.authorityChecks.clear();
+      this.blockChecks.clear();
       for (long i = 0; i < token.blocks.size(); i++) {
         Block block = token.blocks.get((int) i);
 
@@ -154,8 +185,12 @@ public final class Authorizer {
         TrustedOrigins ruleTrustedOrigins =
             TrustedOrigins.fromScopes(
                 convertedRule.scopes(), authorityTrustedOrigins, 0, this.publicKeyToBlockId);
+        convertedRule.optimizeExpressions(this.symbolTable);
         world.addRule((long) 0, ruleTrustedOrigins, convertedRule);
       }
+      for (org.eclipse.biscuit.datalog.Check check : token.authority.getChecks()) {
+        this.authorityChecks.add(convertCheck(Check.convertFrom(check, token.symbolTable)));
+      }
 
       for (long i = 0; i < token.blocks.size(); i++) {
         Block block = token.blocks.get((int) i);
@@ -187,8 +222,15 @@ public final class Authorizer {
           TrustedOrigins ruleTrustedOrigins =
               TrustedOrigins.fromScopes(
                   convertedRule.scopes(), blockTrustedOrigins, i + 1, this.publicKeyToBlockId);
+          convertedRule.optimizeExpressions(this.symbolTable);
           world.addRule((long) i + 1, ruleTrustedOrigins, convertedRule);
         }
+
+        List<org.eclipse.biscuit.datalog.Check> checks = new ArrayList<>();
+        for (org.eclipse.biscuit.datalog.Check check : block.getChecks()) {
+          checks.add(convertCheck(Check.convertFrom(check, blockSymbolTable)));
+        }
+        this.blockChecks.add(checks);
       }
     }
   }
@@ -240,6 +282,17 @@ public final class Authorizer {
     return this;
   }
 
+  /**
+   * Adds the facts of a mapped fact base, with the authorizer origin
+   *
+   * <p>the facts stay in the file and are shared by the clones of this authorizer, see {@link
+   * World#addFacts(Origin, MappedFactBase, SymbolTable)}
+   */
+  public Authorizer addFacts(MappedFactBase base) {
+    world.addFacts(Origin.authorizer(), base, symbolTable);
+    return this;
+  }
+
   public Authorizer addFact(String s) throws Error.Parser {
     var res = Parser.fact(s);
     if (res.isErr()) {
@@ -253,6 +306,7 @@ public final class Authorizer {
     TrustedOrigins ruleTrustedOrigins =
         TrustedOrigins.fromScopes(
             r.scopes(), this.authorizerTrustedOrigins(), Long.MAX_VALUE, this.publicKeyToBlockId);
+    r.optimizeExpressions(symbolTable);
     world.addRule(Long.MAX_VALUE, ruleTrustedOrigins, r);
     return this;
   }
@@ -272,9 +326,17 @@ public final class Authorizer {
 
   public Authorizer addCheck(Check check) {
     this.checks.add(check);
+    this.authorizerChecks.add(convertCheck(check));
     return this;
   }
 
+  // converts a check to the authorizer's symbol table, and simplifies its expressions
+  private org.eclipse.biscuit.datalog.Check convertCheck(Check check) {
+    org.eclipse.biscuit.datalog.Check c = check.convert(symbolTable);
+    c.optimizeExpressions(symbolTable);
+    return c;
+  }
+
   public Authorizer addCheck(String s) throws Error.Parser {
     var res = Parser.check(s);
     if (res.isErr()) {
@@ -321,8 +383,7 @@ public final class Authorizer {
         Utils.constrainedRule(
             "allow", new ArrayList<>(), new ArrayList<>(), List.of(new Term.Bool(true))));
 
-    this.policies.add(new Policy(q, Policy.Kind.ALLOW));
-    return this;
+    return addPolicy(new Policy(q, Policy.Kind.ALLOW));
   }
 
   public Authorizer deny() {
@@ -332,8 +393,7 @@ public final class Authorizer {
         Utils.constrainedRule(
             "deny", new ArrayList<>(), new ArrayList<>(), List.of(new Term.Bool(true))));
 
-    this.policies.add(new Policy(q, Policy.Kind.DENY));
-    return this;
+    return addPolicy(new Policy(q, Policy.Kind.DENY));
   }
 
   public Authorizer addPolicy(String s) throws Error.Parser {
@@ -341,12 +401,18 @@ public final class Authorizer {
     if (res.isErr()) {
       throw new Error.Parser(res.getErr());
     }
-    this.policies.add(res.getOk()._2);
-    return this;
+    return addPolicy(res.getOk()._2);
   }
 
   public Authorizer addPolicy(Policy p) {
     this.policies.add(p);
+    List<org.eclipse.biscuit.datalog.Rule> queries = new ArrayList<>();
+    for (Rule query : p.queries()) {
+      org.eclipse.biscuit.datalog.Rule q = query.convert(symbolTable);
+      q.optimizeExpressions(symbolTable);
+      queries.add(q);
+    }
+    this.policyQueries.add(queries);
     return this;
   }
 
@@ -355,6 +421,18 @@ public final class Authorizer {
     return this;
   }
 
+  /**
+   * Compiles the rules loaded in the authorizer into specialized evaluators, see {@link
+   * org.eclipse.biscuit.datalog.Rule#compile()}
+   *
+   * <p>useful for long lived authorizers evaluated many times. Rules added afterwards are
+   * interpreted until this is called again. Clones share the compiled rules
+   */
+  public Authorizer compileRules() {
+    this.world.getRules().stream().forEach(org.eclipse.biscuit.datalog.Rule::compile);
+    return this;
+  }
+
   public Set<Fact> query(Rule query) throws Error {
     return this.query(query, new RunLimits());
   }
@@ -368,15 +446,8 @@ public final class Authorizer {
   }
 
   public Set<Fact> query(Rule query, RunLimits limits) throws Error {
-    world.run(limits, symbolTable);
-
     org.eclipse.biscuit.datalog.Rule rule = query.convert(symbolTable);
-    TrustedOrigins ruleTrustedorigins =
-        TrustedOrigins.fromScopes(
-            rule.scopes(),
-            TrustedOrigins.defaultOrigins(),
-            Long.MAX_VALUE,
-            this.publicKeyToBlockId);
+    TrustedOrigins ruleTrustedorigins = prepareQuery(rule, limits);
 
     FactSet facts = world.queryRule(rule, Long.MAX_VALUE, ruleTrustedorigins, symbolTable);
     Set<Fact> s = new HashSet<>();
@@ -399,20 +470,94 @@ public final class Authorizer {
     return query(res.getOk()._2, limits);
   }
 
+  /**
+   * Runs the rules, then returns the facts generated by the query as they are found
+   *
+   * <p>the query is only evaluated as the stream is consumed: limiting the stream, or not reading
+   * all of it, stops the evaluation early. Each fact is returned once. The authorizer must not be
+   * modified until the stream is no longer used
+   *
+   * <p>the query is evaluated as the stream is consumed, an error it raises then is thrown by the
+   * terminal operation of the stream, wrapped in an {@link UncheckedError}
+   *
+   * @throws Error if the rules fail, or if a variable of the query head is not in its body
+   */
+  public Stream<Fact> queryStream(Rule query, RunLimits limits) throws Error {
+    return queryFacts(query, limits).map(f -> Fact.convertFrom(f, symbolTable));
+  }
+
+  public Stream<Fact> queryStream(String s, RunLimits limits) throws Error {
+    var res = Parser.rule(s);
+    if (res.isErr()) {
+      throw new Error.Parser(res.getErr());
+    }
+    return queryStream(res.getOk()._2, limits);
+  }
+
+  /**
+   * Same as {@link #queryStream(Rule, RunLimits)}, returning the terms of each fact without
+   * converting them
+   *
+   * <p>strings are symbol ids of {@link #getSymbolTable()}. Errors raised by the query as the
+   * stream is consumed are thrown wrapped in an {@link UncheckedError}
+   */
+  public Stream<List<org.eclipse.biscuit.datalog.Term>> queryTerms(Rule query, RunLimits limits)
+      throws Error {
+    return queryFacts(query, limits).map(f -> f.predicate().terms());
+  }
+
+  private Stream<org.eclipse.biscuit.datalog.Fact> queryFacts(Rule query, RunLimits limits)
+      throws Error {
+    // the facts are built lazily, the head must be checked first
+    if (query.validateVariables().isErr()) {
+      throw new Error.InternalError();
+    }
+    org.eclipse.biscuit.datalog.Rule rule = query.convert(symbolTable);
+    TrustedOrigins ruleTrustedorigins = prepareQuery(rule, limits);
+
+    return world
+        .queryRuleStream(rule, Long.MAX_VALUE, ruleTrustedorigins, symbolTable)
+        .map(
+            result -> {
+              if (result.isErr()) {
+                throw new UncheckedError(result.getErr());
+              }
+              return result.getOk()._2;
+            })
+        .distinct();
+  }
+
+  // runs the rules needed by the query, and returns the origins it trusts
+  private TrustedOrigins prepareQuery(org.eclipse.biscuit.datalog.Rule rule, RunLimits limits)
+      throws Error {
+    if (limits.isDemandDriven()) {
+      world.run(limits, symbolTable, rule.body());
+    } else {
+      world.run(limits, symbolTable);
+    }
+
+    return TrustedOrigins.fromScopes(
+        rule.scopes(), TrustedOrigins.defaultOrigins(), Long.MAX_VALUE, this.publicKeyToBlockId);
+  }
+
   public Long authorize() throws Error {
     return this.authorize(new RunLimits());
   }
 
   public Long authorize(RunLimits limits) throws Error {
-    Instant timeLimit = Instant.now().plus(limits.getMaxTime());
+    Deadline deadline = Deadline.of(limits);
     List<FailedCheck> errors = new LinkedList<>();
 
     TrustedOrigins authorizerTrustedOrigins = this.authorizerTrustedOrigins();
 
-    world.run(limits, symbolTable);
+    if (limits.isDemandDriven()) {
+      world.run(limits, symbolTable, queriedPredicates());
+    } else {
+      world.run(limits, symbolTable);
+    }
 
-    for (int i = 0; i < this.checks.size(); i++) {
-      org.eclipse.biscuit.datalog.Check c = this.checks.get(i).convert(symbolTable);
+    for (int i = 0; i < this.authorizerChecks.size(); i++) {
+      org.eclipse.biscuit.datalog.Check c = this.authorizerChecks.get(i);
       boolean successful = false;
 
       for (int j = 0; j < c.queries().size(); j++) {
@@ -434,9 +579,7 @@ public final class Authorizer {
             throw new RuntimeException("unmapped kind");
         }
 
-        if (Instant.now().compareTo(timeLimit) >= 0) {
-          throw new Error.Timeout();
-        }
+        deadline.checkNow();
 
         if (successful) {
           break;
@@ -456,11 +599,10 @@ public final class Authorizer {
               0,
               this.publicKeyToBlockId);
 
-      for (int j = 0; j < token.authority.getChecks().size(); j++) {
+      for (int j = 0; j < this.authorityChecks.size(); j++) {
         boolean successful = false;
 
-        Check c = Check.convertFrom(token.authority.getChecks().get(j), token.symbolTable);
-        org.eclipse.biscuit.datalog.Check check = c.convert(symbolTable);
+        org.eclipse.biscuit.datalog.Check check = this.authorityChecks.get(j);
 
         for (int k = 0; k < check.queries().size(); k++) {
           org.eclipse.biscuit.datalog.Rule query = check.queries().get(k);
@@ -481,16 +623,14 @@ public final class Authorizer {
               throw new RuntimeException("unmapped kind");
           }
 
-          if (Instant.now().compareTo(timeLimit) >= 0) {
-            throw new Error.Timeout();
-          }
+          deadline.checkNow();
 
           if (successful) {
             break;
           }
         }
 
-        if (successful == (c.kind() == REJECT)) {
+        if (successful == (check.kind() == REJECT)) {
           errors.add(new FailedCheck.FailedBlock(0, j, symbolTable.formatCheck(check)));
         }
       }
@@ -499,18 +639,16 @@ public final class Authorizer {
     Optional<Result<Integer, Integer>> policyResult = Optional.empty();
     policies_test:
     for (int i = 0; i < this.policies.size(); i++) {
-      Policy policy = this.policies.get(i);
+      List<org.eclipse.biscuit.datalog.Rule> queries = this.policyQueries.get(i);
 
-      for (int j = 0; j < policy.queries().size(); j++) {
-        org.eclipse.biscuit.datalog.Rule query = policy.queries().get(j).convert(symbolTable);
+      for (int j = 0; j < queries.size(); j++) {
+        org.eclipse.biscuit.datalog.Rule query = queries.get(j);
         TrustedOrigins policyTrustedOrigins =
             TrustedOrigins.fromScopes(
                 query.scopes(), authorizerTrustedOrigins, Long.MAX_VALUE, this.publicKeyToBlockId);
         boolean res = world.queryMatch(query, Long.MAX_VALUE, policyTrustedOrigins, symbolTable);
 
-        if (Instant.now().compareTo(timeLimit) >= 0) {
-          throw new Error.Timeout();
-        }
+        deadline.checkNow();
 
         if (res) {
           if (this.policies.get(i).kind() == Policy.Kind.ALLOW) {
@@ -529,16 +667,12 @@ public final class Authorizer {
         TrustedOrigins blockTrustedOrigins =
             TrustedOrigins.fromScopes(
                 b.getScopes(), TrustedOrigins.defaultOrigins(), i + 1, this.publicKeyToBlockId);
-        SymbolTable blockSymbolTable = token.symbolTable;
-        if (b.getExternalKey().isPresent()) {
-          blockSymbolTable = new SymbolTable(b.getSymbolTable(), b.getPublicKeys());
-        }
+        List<org.eclipse.biscuit.datalog.Check> checks = this.blockChecks.get(i);
 
-        for (int j = 0; j < b.getChecks().size(); j++) {
+        for (int j = 0; j < checks.size(); j++) {
           boolean successful = false;
 
-          Check c = Check.convertFrom(b.getChecks().get(j), blockSymbolTable);
-          org.eclipse.biscuit.datalog.Check check = c.convert(symbolTable);
+          org.eclipse.biscuit.datalog.Check check = checks.get(j);
 
           for (int k = 0; k < check.queries().size(); k++) {
             org.eclipse.biscuit.datalog.Rule query = check.queries().get(k);
@@ -559,9 +693,7 @@ public final class Authorizer {
                 throw new RuntimeException("unmapped kind");
             }
 
-            if (Instant.now().compareTo(timeLimit) >= 0) {
-              throw new Error.Timeout();
-            }
+            deadline.checkNow();
 
             if (successful) {
               break;
@@ -593,9 +725,31 @@ public final class Authorizer {
     }
   }
 
+  // body predicates of the checks and policies, the facts authorize looks up
+  private List<org.eclipse.biscuit.datalog.Predicate> queriedPredicates() {
+    List<org.eclipse.biscuit.datalog.Check> checks = new ArrayList<>(this.authorizerChecks);
+    checks.addAll(this.authorityChecks);
+    for (List<org.eclipse.biscuit.datalog.Check> b : this.blockChecks) {
+      checks.addAll(b);
+    }
+
+    List<org.eclipse.biscuit.datalog.Predicate> predicates = new ArrayList<>();
+    for (org.eclipse.biscuit.datalog.Check check : checks) {
+      for (org.eclipse.biscuit.datalog.Rule query : check.queries()) {
+        predicates.addAll(query.body());
+      }
+    }
+    for (List<org.eclipse.biscuit.datalog.Rule> queries : this.policyQueries) {
+      for (org.eclipse.biscuit.datalog.Rule query : queries) {
+        predicates.addAll(query.body());
+      }
+    }
+    return predicates;
+  }
+
   public String formatWorld() {
     StringBuilder facts = new StringBuilder();
-    for (Map.Entry<Origin, HashSet<org.eclipse.biscuit.datalog.Fact>> entry :
+    for (Map.Entry<Origin, Set<org.eclipse.biscuit.datalog.Fact>> entry :
         this.world.getFacts().facts().entrySet()) {
       facts.append("\n\t\t" + entry.getKey() + ":");
       for (org.eclipse.biscuit.datalog.Fact f : entry.getValue()) {
@@ -254,6 +254,13 @@ public final class Biscuit extends UnverifiedBiscuit {
   static Biscuit fromSerializedBiscuit(SerializedBiscuit ser, SymbolTable symbolTable)
       throws Error {
     Pair<Block, List<Block>> t = ser.extractBlocks(symbolTable);
+    // the signatures were checked, the patterns of the token can go in the shared regex cache
+    t._1.precompileRegexes(symbolTable);
+    for (Block block : t._2) {
+      // blocks with external signatures keep their own symbol table
+      block.precompileRegexes(
+          block.getExternalKey().isPresent() ? block.getSymbolTable() : symbolTable);
+    }
     return new Biscuit(t._1, t._2, symbolTable, ser);
   }
 
@@ -186,6 +186,20 @@ public final class Block {
     return s.toString();
   }
 
+  /**
+   * Compiles the literal regex patterns of the rules and checks into the shared regex cache
+   *
+   * @param symbolTable the symbol table the block will be evaluated with
+   */
+  public void precompileRegexes(SymbolTable symbolTable) {
+    for (Rule rule : this.rules) {
+      rule.precompileRegexes(symbolTable);
+    }
+    for (Check check : this.checks) {
+      check.precompileRegexes(symbolTable);
+    }
+  }
+
   /**
    * Serializes a Block to its Protobuf representation
    *
@@ -6,13 +6,26 @@
 package org.eclipse.biscuit.datalog;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import biscuit.format.schema.Schema;
+import com.google.re2j.PatternSyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import org.eclipse.biscuit.datalog.expressions.BatchExpression;
 import org.eclipse.biscuit.datalog.expressions.Expression;
 import org.eclipse.biscuit.datalog.expressions.Op;
+import org.eclipse.biscuit.datalog.expressions.RegexCache;
 import org.eclipse.biscuit.error.Error;
 import org.junit.jupiter.api.Test;
 
@@ -128,4 +141,459 @@ public class ExpressionTest {
     assertEquals(
         new Term.Bool(true), e.evaluate(new HashMap<>(), new TemporarySymbolTable(symbolTable)));
   }
+
+  @Test
+  public void testCompiledEvaluation() throws Error.Execution {
+    SymbolTable symbolTable = new SymbolTable();
+    symbolTable.add("a");
+    long time = SymbolTable.DEFAULT_SYMBOLS_OFFSET + 1;
+    symbolTable.add("time");
+    HashMap<Long, Term> variables = new HashMap<>();
+    variables.put(time, new Term.Date(1000));
+
+    // $time < 2000 && $time > 500
+    Expression dates =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Variable(time),
+                    new Term.Date(2000),
+                    new Op.Binary(Op.BinaryOp.LessThan),
+                    new Op.Closure(
+                        new ArrayList<>(),
+                        new ArrayList<Op>(
+                            Arrays.asList(
+                                new Term.Variable(time),
+                                new Term.Date(500),
+                                new Op.Binary(Op.BinaryOp.GreaterThan)))),
+                    new Op.Binary(Op.BinaryOp.LazyAnd))));
+    assertEquals(
+        new Term.Bool(true), dates.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+    variables.put(time, new Term.Date(3000));
+    assertEquals(
+        new Term.Bool(false), dates.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+    // the variable has the wrong type, the comparison does not produce a value and the
+    // interpreter's stack is emptied
+    variables.put(time, new Term.Integer(1000));
+    assertThrows(
+        NoSuchElementException.class,
+        () -> dates.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+    variables.clear();
+    assertThrows(
+        Error.Execution.class,
+        () -> dates.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+
+    // (1 < "a") == true: the interpreter's stack is emptied by the comparison
+    Expression emptied =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Integer(1),
+                    new Term.Str(SymbolTable.DEFAULT_SYMBOLS_OFFSET),
+                    new Op.Binary(Op.BinaryOp.LessThan),
+                    new Term.Bool(true),
+                    new Op.Binary(Op.BinaryOp.Equal))));
+    assertThrows(
+        NoSuchElementException.class,
+        () -> emptied.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+
+    // (1 == "a").try_or(true) with a closure parameter
+    Expression tryOr =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Op.Closure(
+                        new ArrayList<>(),
+                        new ArrayList<Op>(
+                            Arrays.asList(
+                                new Term.Integer(1),
+                                new Term.Str(SymbolTable.DEFAULT_SYMBOLS_OFFSET),
+                                new Op.Binary(Op.BinaryOp.Equal)))),
+                    new Term.Bool(true),
+                    new Op.Binary(Op.BinaryOp.TryOr))));
+    assertEquals(
+        new Term.Bool(true), tryOr.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+
+    Expression overflow =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Integer(Long.MAX_VALUE),
+                    new Term.Integer(1),
+                    new Op.Binary(Op.BinaryOp.Add))));
+    assertThrows(
+        Error.Execution.class,
+        () -> overflow.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+  }
+
+  @Test
+  public void testSimplify() throws Error.Execution {
+    SymbolTable symbolTable = new SymbolTable();
+    symbolTable.add("a");
+    symbolTable.add("b");
+    long var = SymbolTable.DEFAULT_SYMBOLS_OFFSET + 2;
+    symbolTable.add("var");
+
+    // 1 + 2 < $var
+    Expression e =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Integer(1),
+                    new Term.Integer(2),
+                    new Op.Binary(Op.BinaryOp.Add),
+                    new Term.Variable(var),
+                    new Op.Binary(Op.BinaryOp.LessThan))));
+    Expression simplified = e.simplify(symbolTable);
+    assertEquals(
+        Arrays.asList(
+            new Term.Integer(3), new Term.Variable(var), new Op.Binary(Op.BinaryOp.LessThan)),
+        simplified.getOps());
+    HashMap<Long, Term> variables = new HashMap<>();
+    variables.put(var, new Term.Integer(4));
+    assertEquals(
+        e.evaluate(variables, new TemporarySymbolTable(symbolTable)),
+        simplified.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+
+    // "a" + "b" is not in the symbol table
+    Expression concatenation =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Str(SymbolTable.DEFAULT_SYMBOLS_OFFSET),
+                    new Term.Str(SymbolTable.DEFAULT_SYMBOLS_OFFSET + 1),
+                    new Op.Binary(Op.BinaryOp.Add),
+                    new Term.Variable(var),
+                    new Op.Binary(Op.BinaryOp.Equal))));
+    assertEquals(concatenation.getOps(), concatenation.simplify(symbolTable).getOps());
+
+    // (1 / 0).try_or(true): the error is caught, the whole expression is constant
+    Expression tryOr =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Op.Closure(
+                        new ArrayList<>(),
+                        new ArrayList<Op>(
+                            Arrays.asList(
+                                new Term.Integer(1),
+                                new Term.Integer(0),
+                                new Op.Binary(Op.BinaryOp.Div)))),
+                    new Term.Bool(true),
+                    new Op.Binary(Op.BinaryOp.TryOr))));
+    assertEquals(Arrays.asList(new Term.Bool(true)), tryOr.simplify(symbolTable).getOps());
+
+    // 1 / 0 == $var: the division fails, it is left for the evaluation
+    Expression failing =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Integer(1),
+                    new Term.Integer(0),
+                    new Op.Binary(Op.BinaryOp.Div),
+                    new Term.Variable(var),
+                    new Op.Binary(Op.BinaryOp.Equal))));
+    assertEquals(failing.getOps(), failing.simplify(symbolTable).getOps());
+
+    // [1, 2].any($p -> $p == $var) uses a variable from outside of the closure
+    Expression closure =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Array(Arrays.asList(new Term.Integer(1), new Term.Integer(2))),
+                    new Op.Closure(
+                        new ArrayList<>(Arrays.asList(var + 1)),
+                        new ArrayList<Op>(
+                            Arrays.asList(
+                                new Term.Variable(var + 1),
+                                new Term.Variable(var),
+                                new Op.Binary(Op.BinaryOp.Equal)))),
+                    new Op.Binary(Op.BinaryOp.Any))));
+    assertEquals(3, closure.simplify(symbolTable).getOps().size());
+    assertEquals(
+        new Term.Bool(false),
+        closure.simplify(symbolTable).evaluate(variables, new TemporarySymbolTable(symbolTable)));
+
+    List<Op> varEqualsOne =
+        Arrays.asList(
+            new Term.Variable(var), new Term.Integer(1), new Op.Binary(Op.BinaryOp.Equal));
+
+    // true && $var == 1
+    Expression trueAnd = lazy(new Term.Bool(true), varEqualsOne, Op.BinaryOp.LazyAnd);
+    assertEquals(varEqualsOne, trueAnd.simplify(symbolTable).getOps());
+    assertEquals(
+        trueAnd.evaluate(variables, new TemporarySymbolTable(symbolTable)),
+        trueAnd.simplify(symbolTable).evaluate(variables, new TemporarySymbolTable(symbolTable)));
+
+    // $var == 1 && true
+    Expression andTrue = lazy(varEqualsOne, new Term.Bool(true), Op.BinaryOp.LazyAnd);
+    assertEquals(varEqualsOne, andTrue.simplify(symbolTable).getOps());
+
+    // false && $var == 1
+    Expression falseAnd = lazy(new Term.Bool(false), varEqualsOne, Op.BinaryOp.LazyAnd);
+    assertEquals(Arrays.asList(new Term.Bool(false)), falseAnd.simplify(symbolTable).getOps());
+
+    // true || $var
+    Expression trueOr = lazy(new Term.Bool(true), new Term.Variable(var), Op.BinaryOp.LazyOr);
+    assertEquals(Arrays.asList(new Term.Bool(true)), trueOr.simplify(symbolTable).getOps());
+
+    // true && $var: $var may not be a boolean, it is compared to true to keep the type error
+    Expression trueAndVar = lazy(new Term.Bool(true), new Term.Variable(var), Op.BinaryOp.LazyAnd);
+    Expression checked = trueAndVar.simplify(symbolTable);
+    assertEquals(
+        Arrays.asList(
+            new Term.Variable(var), new Term.Bool(true), new Op.Binary(Op.BinaryOp.Equal)),
+        checked.getOps());
+    assertThrows(
+        Error.Execution.class,
+        () -> checked.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+    variables.put(var, new Term.Bool(true));
+    assertEquals(
+        trueAndVar.evaluate(variables, new TemporarySymbolTable(symbolTable)),
+        checked.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+
+    // $var && false still evaluates $var
+    Expression andFalse = lazy(new Term.Variable(var), new Term.Bool(false), Op.BinaryOp.LazyAnd);
+    assertEquals(andFalse.print(symbolTable), andFalse.simplify(symbolTable).print(symbolTable));
+  }
+
+  private static Expression lazy(Op left, Op right, Op.BinaryOp op) {
+    return lazy(Arrays.asList(left), Arrays.asList(right), op);
+  }
+
+  private static Expression lazy(Op left, List<Op> right, Op.BinaryOp op) {
+    return lazy(Arrays.asList(left), right, op);
+  }
+
+  private static Expression lazy(List<Op> left, Op right, Op.BinaryOp op) {
+    return lazy(left, Arrays.asList(right), op);
+  }
+
+  // left op (right), the right side being a closure without parameters
+  private static Expression lazy(List<Op> left, List<Op> right, Op.BinaryOp op) {
+    ArrayList<Op> ops = new ArrayList<>(left);
+    ops.add(new Op.Closure(new ArrayList<>(), new ArrayList<>(right)));
+    ops.add(new Op.Binary(op));
+    return new Expression(ops);
+  }
+
+  @Test
+  public void testRegexCache() throws Error.Execution {
+    RegexCache cache = new RegexCache(2);
+    assertSame(cache.get("^a"), cache.get("^a"));
+    cache.get("^b");
+    cache.get("^a");
+    cache.get("^c");
+    assertEquals(2, cache.size());
+    assertEquals(2, cache.hits());
+    assertEquals(3, cache.misses());
+    cache.get("^d");
+    assertEquals(2, cache.size());
+
+    // invalid patterns are compiled once, and fail on every lookup
+    cache.clear();
+    assertThrows(PatternSyntaxException.class, () -> cache.get("(a"));
+    assertThrows(PatternSyntaxException.class, () -> cache.get("(a"));
+    assertEquals(1, cache.misses());
+    assertEquals(1, cache.hits());
+
+    SymbolTable symbolTable = new SymbolTable();
+    long path = symbolTable.insert("/api/v12/users");
+    long pattern = symbolTable.insert("^/api/v[0-9]+/precompiled$|^/api/v[0-9]+/");
+    Expression e =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Str(path), new Term.Str(pattern), new Op.Binary(Op.BinaryOp.Regex))));
+    e.precompileRegexes(symbolTable);
+    long hits = RegexCache.shared().hits();
+    long misses = RegexCache.shared().misses();
+    assertEquals(
+        new Term.Bool(true), e.evaluate(new HashMap<>(), new TemporarySymbolTable(symbolTable)));
+    assertEquals(hits + 1, RegexCache.shared().hits());
+    assertEquals(misses, RegexCache.shared().misses());
+  }
+
+  @Test
+  public void testBatchEvaluation() throws Error.Execution {
+    SymbolTable symbolTable = new SymbolTable();
+    long ab = symbolTable.insert("ab");
+    long abc = symbolTable.insert("abc");
+    long bcd = symbolTable.insert("bcd");
+    long x = symbolTable.insert("x");
+    long s = symbolTable.insert("s");
+
+    long[] integers = {0, 1, 5, 10, 20, 29, 30, 31, Long.MAX_VALUE, Long.MIN_VALUE};
+    long[] strings = {ab, abc, bcd, ab, abc, bcd, ab, abc, bcd, 12345};
+    Map<Long, BatchExpression.Column> columns = new HashMap<>();
+    columns.put(x, BatchExpression.Column.integers(integers));
+    columns.put(s, BatchExpression.Column.strings(strings));
+
+    // $x >= 10 && $x * 2 < 60, the multiplication overflows for the last values
+    Expression range =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Variable(x),
+                    new Term.Integer(10),
+                    new Op.Binary(Op.BinaryOp.GreaterOrEqual),
+                    new Op.Closure(
+                        new ArrayList<>(),
+                        new ArrayList<Op>(
+                            Arrays.asList(
+                                new Term.Variable(x),
+                                new Term.Integer(2),
+                                new Op.Binary(Op.BinaryOp.Mul),
+                                new Term.Integer(60),
+                                new Op.Binary(Op.BinaryOp.LessThan)))),
+                    new Op.Binary(Op.BinaryOp.LazyAnd))));
+    // [1, 5, 20].contains($x) || $s.starts_with("ab"), the last string is unknown
+    Expression contains =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Set(
+                        new HashSet<>(
+                            Arrays.asList(
+                                new Term.Integer(1), new Term.Integer(5), new Term.Integer(20)))),
+                    new Term.Variable(x),
+                    new Op.Binary(Op.BinaryOp.Contains),
+                    new Op.Closure(
+                        new ArrayList<>(),
+                        new ArrayList<Op>(
+                            Arrays.asList(
+                                new Term.Variable(s),
+                                new Term.Str(ab),
+                                new Op.Binary(Op.BinaryOp.Prefix)))),
+                    new Op.Binary(Op.BinaryOp.LazyOr))));
+    // !($s == "abc") && $x - 1 !== "abc"
+    Expression equality =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Variable(s),
+                    new Term.Str(abc),
+                    new Op.Binary(Op.BinaryOp.Equal),
+                    new Op.Unary(Op.UnaryOp.Parens),
+                    new Op.Unary(Op.UnaryOp.Negate),
+                    new Term.Variable(x),
+                    new Term.Integer(1),
+                    new Op.Binary(Op.BinaryOp.Sub),
+                    new Term.Str(abc),
+                    new Op.Binary(Op.BinaryOp.HeterogeneousNotEqual),
+                    new Op.Binary(Op.BinaryOp.And))));
+
+    // the batch evaluation returns the same results as the interpreter
+    for (Expression e : Arrays.asList(range, contains, equality)) {
+      boolean[] results =
+          BatchExpression.of(e)
+              .get()
+              .evaluate(integers.length, columns, new TemporarySymbolTable(symbolTable));
+      for (int i = 0; i < integers.length; i++) {
+        HashMap<Long, Term> variables = new HashMap<>();
+        variables.put(x, new Term.Integer(integers[i]));
+        variables.put(s, new Term.Str(strings[i]));
+        boolean expected;
+        try {
+          expected =
+              new Term.Bool(true)
+                  .equals(e.evaluate(variables, new TemporarySymbolTable(symbolTable)));
+        } catch (Error.Execution error) {
+          expected = false;
+        }
+        assertEquals(expected, results[i], e + " for row " + i);
+      }
+    }
+
+    // dates cannot be compared to integers, the expression must be evaluated for each binding
+    columns.put(x, BatchExpression.Column.dates(integers));
+    assertNull(
+        BatchExpression.of(range)
+            .get()
+            .evaluate(integers.length, columns, new TemporarySymbolTable(symbolTable)));
+    // regular expressions have no batch form
+    Expression regex =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Term.Variable(s), new Term.Str(ab), new Op.Binary(Op.BinaryOp.Regex))));
+    assertFalse(BatchExpression.of(regex).isPresent());
+  }
+
+  @Test
+  public void testSortedSets() throws Error.Execution {
+    Random random = new Random(42);
+
+    // sets of integers, strings and dates, and sets mixing them
+    List<HashSet<Term>> sets = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      HashSet<Term> set = new HashSet<>();
+      int size = random.nextInt(30);
+      for (int j = 0; j < size; j++) {
+        long value = random.nextInt(40) - 5;
+        switch (i % 4) {
+          case 0:
+            set.add(new Term.Integer(value));
+            break;
+          case 1:
+            set.add(new Term.Str(value + 10));
+            break;
+          case 2:
+            set.add(new Term.Date(value + 5));
+            break;
+          default:
+            set.add(j % 2 == 0 ? new Term.Integer(value) : new Term.Str(value + 10));
+        }
+      }
+      sets.add(set);
+    }
+
+    for (HashSet<Term> a : sets) {
+      Term.Set left = new Term.Set(a);
+      assertEquals(a, left.value());
+      assertEquals(a.hashCode(), left.hashCode());
+      assertEquals(a.size(), left.size());
+
+      // deserialized without creating the terms, duplicates are removed
+      Schema.TermV2 serialized = left.serializeTerm();
+      Schema.TermV2 duplicated =
+          Schema.TermV2.newBuilder()
+              .setSet(serialized.getSet().toBuilder().addAllSet(serialized.getSet().getSetList()))
+              .build();
+      Term deserialized = Term.deserializeEnumV2(duplicated).getOk();
+      assertEquals(left, deserialized);
+      assertEquals(left.hashCode(), deserialized.hashCode());
+      assertEquals(left.isSorted(), ((Term.Set) deserialized).isSorted());
+
+      for (HashSet<Term> b : sets) {
+        Term.Set right = new Term.Set(b);
+        HashSet<Term> intersection = new HashSet<>(a);
+        intersection.retainAll(b);
+        HashSet<Term> union = new HashSet<>(a);
+        union.addAll(b);
+
+        assertEquals(new Term.Set(intersection), binary(left, right, Op.BinaryOp.Intersection));
+        assertEquals(new Term.Set(union), binary(left, right, Op.BinaryOp.Union));
+        assertEquals(Term.Bool.of(a.containsAll(b)), binary(left, right, Op.BinaryOp.Contains));
+        assertEquals(a.equals(b), left.equals(right));
+      }
+      for (Term element : sets.get(3)) {
+        assertEquals(
+            Term.Bool.of(a.contains(element)), binary(left, element, Op.BinaryOp.Contains));
+      }
+    }
+
+    assertTrue(new Term.Set(sets.get(4)).isSorted());
+    assertTrue(new Term.Set(sets.get(5)).isSorted());
+    assertTrue(new Term.Set(sets.get(6)).isSorted());
+    assertFalse(new Term.Set(sets.get(7)).isSorted());
+    // an integer and a date with the same value are different elements
+    assertFalse(
+        new Term.Set(new HashSet<>(Arrays.asList(new Term.Integer(1)))).contains(new Term.Date(1)));
+  }
+
+  private static Term binary(Term left, Term right, Op.BinaryOp op) throws Error.Execution {
+    return new Expression(new ArrayList<Op>(Arrays.asList(left, right, new Op.Binary(op))))
+        .evaluate(new HashMap<>(), new TemporarySymbolTable(new SymbolTable()));
+  }
 }
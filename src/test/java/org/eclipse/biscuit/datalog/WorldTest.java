@@ -5,19 +5,37 @@
 
 package org.eclipse.biscuit.datalog;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.eclipse.biscuit.datalog.expressions.Expression;
 import org.eclipse.biscuit.datalog.expressions.Op;
 import org.eclipse.biscuit.error.Error;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class WorldTest {
 
@@ -762,4 +780,1513 @@ public class WorldTest {
     }
     assertTrue(res.size() == 0);
   }
+
+  @Test
+  public void testTransitiveClosure() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+
+    final int nodes = 30;
+    final FactSet edges = new FactSet();
+    for (int i = 0; i < nodes - 1; i++) {
+      edges.add(
+          new Origin(0),
+          new Fact(
+              new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+    }
+
+    final RuleSet rules = new RuleSet();
+    // path($x, $y) <- edge($x, $y)
+    rules.add(
+        (long) 0,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    // path($x, $z) <- path($x, $y), edge($y, $z)
+    rules.add(
+        (long) 0,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>()));
+
+    final World w = new World(edges, rules);
+    w.run(new RunLimits(1000, 100, Duration.ofSeconds(10)), syms);
+
+    HashSet<Fact> expected = new HashSet<>();
+    for (int i = 0; i < nodes; i++) {
+      for (int j = i + 1; j < nodes; j++) {
+        expected.add(
+            new Fact(new Predicate(path, Arrays.asList(new Term.Integer(i), new Term.Integer(j)))));
+      }
+    }
+    HashSet<Fact> paths =
+        w.getFacts().stream()
+            .filter(f -> f.predicate().name() == path)
+            .collect(Collectors.toCollection(HashSet::new));
+    assertEquals(expected, paths);
+    assertEquals(expected.size() + nodes - 1, w.getFacts().size());
+
+    // the longest path needs one iteration per edge
+    assertThrows(
+        Error.TooManyIterations.class,
+        () ->
+            new World(edges, rules)
+                .run(new RunLimits(1000, nodes / 2, Duration.ofSeconds(10)), syms));
+  }
+
+  @Test
+  public void testRuleComponents() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final Term x = new Term.Variable(syms.insert("x"));
+
+    // step_i($x) <- step_{i-1}($x), added in reverse order
+    final int steps = 10;
+    final RuleSet rules = new RuleSet();
+    for (int i = steps; i > 0; i--) {
+      rules.add(
+          (long) 0,
+          new TrustedOrigins(0),
+          new Rule(
+              new Predicate(syms.insert("step" + i), Arrays.asList(x)),
+              Arrays.asList(new Predicate(syms.insert("step" + (i - 1)), Arrays.asList(x))),
+              new ArrayList<>()));
+    }
+    // loop($x) <- loop($x), step10($x)
+    final long loop = syms.insert("loop");
+    rules.add(
+        (long) 0,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(loop, Arrays.asList(x)),
+            Arrays.asList(
+                new Predicate(loop, Arrays.asList(x)),
+                new Predicate(syms.insert("step" + steps), Arrays.asList(x))),
+            new ArrayList<>()));
+
+    List<RuleGraph.Component> components = RuleGraph.components(rules);
+    assertEquals(steps + 1, components.size());
+    for (int i = 0; i < steps; i++) {
+      assertEquals(1, components.get(i).rules.size());
+      assertEquals(
+          syms.insert("step" + (i + 1)), components.get(i).rules.get(0).rule.head().name());
+      assertFalse(components.get(i).recursive);
+    }
+    assertEquals(loop, components.get(steps).rules.get(0).rule.head().name());
+    assertTrue(components.get(steps).recursive);
+
+    // non recursive rules are applied once each, whatever the iteration limit
+    final FactSet facts = new FactSet();
+    facts.add(
+        new Origin(0),
+        new Fact(new Predicate(syms.insert("step0"), Arrays.asList(new Term.Integer(1)))));
+    final World w = new World(facts, rules);
+    w.run(new RunLimits(1000, 2, Duration.ofSeconds(10)), syms);
+    assertEquals(steps + 1, w.getFacts().size());
+    assertTrue(
+        w.getFacts().stream().anyMatch(f -> f.predicate().name() == syms.insert("step" + steps)));
+  }
+
+  @Test
+  public void testFactSetPredicateIndex() {
+    final SymbolTable syms = new SymbolTable();
+    final long resource = syms.insert("resource");
+    final long operation = syms.insert("operation");
+    final Term file1 = syms.add("file1");
+    final Term file2 = syms.add("file2");
+    final Term read = syms.add("read");
+
+    final FactSet facts = new FactSet();
+    facts.add(new Origin(0), new Fact(new Predicate(resource, Arrays.asList(file1))));
+    facts.add(new Origin(1), new Fact(new Predicate(resource, Arrays.asList(file2))));
+    facts.add(new Origin(0), new Fact(new Predicate(resource, Arrays.asList(file1, read))));
+    facts.add(new Origin(0), new Fact(new Predicate(operation, Arrays.asList(read))));
+    assertFalse(facts.add(new Origin(0), new Fact(new Predicate(operation, Arrays.asList(read)))));
+
+    assertEquals(4, facts.size());
+    final Predicate query = new Predicate(resource, Arrays.asList(new Term.Variable(0)));
+    assertEquals(2, facts.size(query));
+    assertEquals(
+        new HashSet<>(
+            Arrays.asList(
+                new Pair<>(
+                    new Origin(0), new Fact(new Predicate(resource, Arrays.asList(file1)))))),
+        facts.stream(new TrustedOrigins(0), query).collect(Collectors.toSet()));
+    assertEquals(2, facts.facts().size());
+    assertEquals(3, facts.facts().get(new Origin(0)).size());
+  }
+
+  @Test
+  public void testIndexedJoin() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long resource = syms.insert("resource");
+    final long operation = syms.insert("operation");
+    final long acl = syms.insert("acl");
+    final long right = syms.insert("right");
+    final Term user = new Term.Variable(syms.insert("user"));
+    final Term res = new Term.Variable(syms.insert("res"));
+    final Term op = new Term.Variable(syms.insert("op"));
+    final Term read = syms.add("read");
+    final Term write = syms.add("write");
+
+    final FactSet facts = new FactSet();
+    for (int i = 0; i < 100; i++) {
+      facts.add(
+          new Origin(0), new Fact(new Predicate(resource, Arrays.asList(new Term.Integer(i)))));
+      facts.add(
+          new Origin(0),
+          new Fact(
+              new Predicate(acl, Arrays.asList(syms.add("user" + i), new Term.Integer(i), read))));
+    }
+    facts.add(new Origin(0), new Fact(new Predicate(operation, Arrays.asList(read))));
+
+    // right($res, $op) <- resource($res), operation($op), acl($user, $res, $op)
+    final Rule r =
+        new Rule(
+            new Predicate(right, Arrays.asList(res, op)),
+            Arrays.asList(
+                new Predicate(resource, Arrays.asList(res)),
+                new Predicate(operation, Arrays.asList(op)),
+                new Predicate(acl, Arrays.asList(user, res, op))),
+            new ArrayList<>());
+
+    final World w = new World(facts);
+    assertEquals(100, w.queryRule(r, (long) 0, new TrustedOrigins(0), syms).size());
+
+    // facts added after the index was created are visible to the next lookups
+    w.addFact(new Origin(0), new Fact(new Predicate(operation, Arrays.asList(write))));
+    w.addFact(
+        new Origin(0),
+        new Fact(new Predicate(acl, Arrays.asList(syms.add("user0"), new Term.Integer(0), write))));
+    final FactSet result = w.queryRule(r, (long) 0, new TrustedOrigins(0), syms);
+    assertEquals(101, result.size());
+    assertTrue(
+        result.stream()
+            .anyMatch(
+                f ->
+                    f.equals(
+                        new Fact(
+                            new Predicate(right, Arrays.asList(new Term.Integer(0), write))))));
+
+    // facts from untrusted origins are not returned by the index
+    w.addFact(
+        new Origin(1),
+        new Fact(new Predicate(acl, Arrays.asList(syms.add("user1"), new Term.Integer(1), write))));
+    assertEquals(101, w.queryRule(r, (long) 0, new TrustedOrigins(0), syms).size());
+  }
+
+  @Test
+  public void testIndexedJoinOnSetValues() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long tagged = syms.insert("tagged");
+    final long holder = syms.insert("holder");
+    final long out = syms.insert("out");
+    final Term s = new Term.Variable(syms.insert("s"));
+    final Term n = new Term.Variable(syms.insert("n"));
+
+    final FactSet facts = new FactSet();
+    for (int i = 0; i < 10; i++) {
+      final Term set =
+          new Term.Set(new HashSet<>(Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1))));
+      if (i % 2 == 0) {
+        facts.add(new Origin(0), new Fact(new Predicate(tagged, Arrays.asList(set))));
+      }
+      facts.add(
+          new Origin(0),
+          new Fact(new Predicate(holder, Arrays.asList(set, new Term.Integer(i)))));
+    }
+    final World w = new World(facts);
+
+    // out($n) <- tagged($s), holder($s, $n): holder is looked up with the set bound to $s
+    final Function<Boolean, Rule> rule =
+        (compile) -> {
+          final Rule r =
+              new Rule(
+                  new Predicate(out, Arrays.asList(n)),
+                  Arrays.asList(
+                      new Predicate(tagged, Arrays.asList(s)),
+                      new Predicate(holder, Arrays.asList(s, n))),
+                  new ArrayList<>());
+          if (compile) {
+            assertTrue(r.compile());
+          }
+          return r;
+        };
+
+    final Set<Fact> expected = new HashSet<>();
+    for (int i = 0; i < 10; i += 2) {
+      expected.add(new Fact(new Predicate(out, Arrays.asList(new Term.Integer(i)))));
+    }
+    for (boolean compile : new boolean[] {false, true}) {
+      assertEquals(
+          expected,
+          w.queryRule(rule.apply(compile), 0L, new TrustedOrigins(0), syms).stream()
+              .collect(Collectors.toSet()));
+    }
+  }
+
+  @Test
+  public void testIndexedJoinWithVariableInFact() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long start = syms.insert("start");
+    final long allowed = syms.insert("allowed");
+    final long out = syms.insert("out");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term write = syms.add("write");
+
+    // allowed(1, $any) matches any operation, as Term.match would
+    final FactSet facts = new FactSet();
+    facts.add(new Origin(0), new Fact(new Predicate(start, Arrays.asList(new Term.Integer(1)))));
+    facts.add(new Origin(0), new Fact(new Predicate(start, Arrays.asList(new Term.Integer(2)))));
+    facts.add(
+        new Origin(0),
+        new Fact(
+            new Predicate(
+                allowed,
+                Arrays.asList(new Term.Integer(1), new Term.Variable(syms.insert("any"))))));
+    facts.add(
+        new Origin(0),
+        new Fact(new Predicate(allowed, Arrays.asList(new Term.Integer(2), syms.add("read")))));
+    final World w = new World(facts);
+
+    // out($x) <- start($x), allowed($x, "write"), allowed is looked up in an index
+    final Function<Boolean, Rule> rule =
+        (compile) -> {
+          final Rule r =
+              new Rule(
+                  new Predicate(out, Arrays.asList(x)),
+                  Arrays.asList(
+                      new Predicate(start, Arrays.asList(x)),
+                      new Predicate(allowed, Arrays.asList(x, write))),
+                  new ArrayList<>());
+          if (compile) {
+            assertTrue(r.compile());
+          }
+          return r;
+        };
+
+    final FactSet expected = new FactSet();
+    expected.add(
+        new Origin(0), new Fact(new Predicate(out, Arrays.asList(new Term.Integer(1)))));
+    assertEquals(
+        expected.stream().collect(Collectors.toSet()),
+        w.queryRule(rule.apply(false), 0L, new TrustedOrigins(0), syms).stream()
+            .collect(Collectors.toSet()));
+    assertEquals(
+        expected.stream().collect(Collectors.toSet()),
+        w.queryRule(rule.apply(true), 0L, new TrustedOrigins(0), syms).stream()
+            .collect(Collectors.toSet()));
+  }
+
+  @Test
+  public void testJoinOrder() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long resource = syms.insert("resource");
+    final long operation = syms.insert("operation");
+    final long acl = syms.insert("acl");
+    final long right = syms.insert("right");
+    final Term user = new Term.Variable(syms.insert("user"));
+    final Term res = new Term.Variable(syms.insert("res"));
+    final Term op = new Term.Variable(syms.insert("op"));
+    final Term read = syms.add("read");
+
+    final List<Predicate> body =
+        Arrays.asList(
+            new Predicate(resource, Arrays.asList(res)),
+            new Predicate(operation, Arrays.asList(op)),
+            new Predicate(acl, Arrays.asList(user, res, op)));
+    assertArrayEquals(new int[] {1, 2, 0}, JoinPlanner.order(body, new int[] {10000, 1, 10000}));
+    assertArrayEquals(new int[] {0, 2, 1}, JoinPlanner.order(body, new int[] {1, 1, 1}));
+
+    final World w = new World();
+    for (int i = 0; i < 50; i++) {
+      w.addFact(
+          new Origin(1), new Fact(new Predicate(resource, Arrays.asList(new Term.Integer(i)))));
+      w.addFact(
+          new Origin(i % 2),
+          new Fact(
+              new Predicate(acl, Arrays.asList(syms.add("user" + i), new Term.Integer(i), read))));
+    }
+    w.addFact(new Origin(2), new Fact(new Predicate(operation, Arrays.asList(read))));
+
+    final Rule r = new Rule(new Predicate(right, Arrays.asList(res, op)), body, new ArrayList<>());
+    final TrustedOrigins scope = new TrustedOrigins(0, 1, 2);
+
+    // the planned join generates the same facts, with the same origins, as the source order
+    final FactSet expected = new FactSet();
+    final List<Function<Predicate, Stream<Pair<Origin, Fact>>>> sources =
+        Collections.nCopies(body.size(), (pattern) -> w.getFacts().stream(scope, pattern));
+    for (var it = r.apply(sources, (long) 0, syms).iterator(); it.hasNext(); ) {
+      Pair<Origin, Fact> t = it.next().getOk();
+      expected.add(t._1, t._2);
+    }
+    assertEquals(50, expected.size());
+    assertEquals(expected, w.queryRule(r, (long) 0, scope, syms));
+  }
+
+  @Test
+  public void testFrameBindings() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long x = syms.insert("x");
+    final long y = syms.insert("y");
+    final long z = syms.insert("z");
+    final Term a = new Term.Integer(1);
+    final Term b = new Term.Integer(2);
+
+    final List<Predicate> body =
+        Arrays.asList(
+            new Predicate(edge, Arrays.asList(new Term.Variable(x), new Term.Variable(y))),
+            new Predicate(edge, Arrays.asList(new Term.Variable(y), new Term.Variable(z))));
+    final Frame frame = new Frame(VariableSlots.of(new ArrayList<>(), body));
+    assertEquals(3, frame.slots().size());
+    assertEquals(1, frame.slots().slot(y));
+    assertEquals(-1, frame.slots().slot(edge));
+
+    final int mark = frame.mark();
+    assertTrue(frame.bind(0, a));
+    assertTrue(frame.bind(0, a));
+    assertFalse(frame.bind(0, b));
+    assertEquals(a, frame.get(x));
+    frame.undo(mark);
+    assertEquals(null, frame.get(x));
+    assertTrue(frame.bind(0, b));
+
+    // closure parameters are stored apart from the rule variables
+    final long param = syms.insert("p");
+    assertEquals(null, frame.putIfAbsent(param, a));
+    assertEquals(b, frame.putIfAbsent(x, a));
+    frame.clearOthers();
+    assertFalse(frame.containsKey(param));
+
+    // edge(1, 2), edge(2, 1), edge(2, 2): the combinator backtracks over the shared frame, but
+    // returns a copy of the variables for each match
+    final FactSet facts = new FactSet();
+    facts.add(new Origin(0), new Fact(new Predicate(edge, Arrays.asList(a, b))));
+    facts.add(new Origin(1), new Fact(new Predicate(edge, Arrays.asList(b, a))));
+    facts.add(new Origin(2), new Fact(new Predicate(edge, Arrays.asList(b, b))));
+    final Combinator combinator =
+        new Combinator(
+            new MatchedVariables(new HashSet<>(Arrays.asList(x, y, z))),
+            body,
+            () -> facts.stream(new TrustedOrigins(0, 1, 2)),
+            syms);
+    final List<Pair<Origin, Map<Long, Term>>> matches = new ArrayList<>();
+    combinator.forEachRemaining(matches::add);
+    // 1->2->1, 1->2->2, 2->1->2, 2->2->1, 2->2->2
+    assertEquals(5, matches.size());
+    final HashSet<Map<Long, Term>> distinct = new HashSet<>();
+    for (Pair<Origin, Map<Long, Term>> match : matches) {
+      assertEquals(3, match._2.size());
+      distinct.add(match._2);
+    }
+    assertEquals(5, distinct.size());
+  }
+
+  @Test
+  public void testOrigins() {
+    final Origin authority = new Origin(0);
+    final Origin authorizer = Origin.authorizer();
+    final Origin union = authority.union(authorizer);
+    assertEquals(new HashSet<>(Arrays.asList(0L, Long.MAX_VALUE)), union.blockIds());
+    assertEquals(union.blockIds().hashCode(), union.hashCode());
+    assertTrue(union.containsAll(authority));
+    assertTrue(union.containsAll(authorizer));
+    assertFalse(authority.containsAll(union));
+
+    // block ids past 62 do not fit in the bit field
+    final Origin large = new Origin(100);
+    large.add(62);
+    large.add(63);
+    assertEquals(new HashSet<>(Arrays.asList(62L, 63L, 100L)), large.blockIds());
+    assertEquals(large.blockIds().hashCode(), large.hashCode());
+    assertFalse(union.containsAll(large));
+    assertFalse(large.containsAll(new Origin(64)));
+    assertTrue(large.union(union).containsAll(large));
+
+    final Origin same = new Origin(63);
+    same.addAll(Arrays.asList(100L, 62L));
+    assertEquals(large, same);
+    assertEquals(large.hashCode(), same.hashCode());
+    assertFalse(same.addAll(Arrays.asList(62L, 100L)));
+
+    final TrustedOrigins trusted = TrustedOrigins.defaultOrigins();
+    assertTrue(trusted.contains(authority));
+    assertTrue(trusted.contains(union));
+    assertFalse(trusted.contains(new Origin(1)));
+    assertFalse(new TrustedOrigins(0, 1).contains(new Origin(100)));
+  }
+
+  @Test
+  public void testScopeViews() {
+    final SymbolTable syms = new SymbolTable();
+    final long right = syms.insert("right");
+    final Term read = syms.add("read");
+    final Term write = syms.add("write");
+    final Predicate pattern =
+        new Predicate(right, Arrays.asList(new Term.Variable(syms.insert("op"))));
+
+    assertEquals(new TrustedOrigins(0, 1), new TrustedOrigins(1, 0));
+    assertEquals(new TrustedOrigins(0, 1).hashCode(), new TrustedOrigins(1, 0).hashCode());
+    assertFalse(new TrustedOrigins(0).equals(new TrustedOrigins(0, 1)));
+
+    // rules with equal scopes are grouped together
+    final RuleSet rules = new RuleSet();
+    final Rule rule = new Rule(pattern, Arrays.asList(pattern), new ArrayList<>());
+    rules.add((long) 0, new TrustedOrigins(0), rule);
+    rules.add((long) 1, new TrustedOrigins(0), rule);
+    assertEquals(1, rules.getRules().size());
+    assertEquals(2, rules.getRules().get(new TrustedOrigins(0)).size());
+
+    // the views are kept up to date as facts are added
+    final FactSet facts = new FactSet();
+    facts.add(new Origin(0), new Fact(new Predicate(right, Arrays.asList(read))));
+    facts.add(new Origin(1), new Fact(new Predicate(right, Arrays.asList(write))));
+    final Predicate readPattern = new Predicate(right, Arrays.asList(read));
+    assertEquals(1, facts.stream(new TrustedOrigins(0), pattern).count());
+    assertEquals(1, facts.stream(new TrustedOrigins(0), readPattern).count());
+    assertEquals(2, facts.stream(new TrustedOrigins(0, 1), pattern).count());
+
+    facts.add(new Origin(0), new Fact(new Predicate(right, Arrays.asList(write))));
+    facts.add(new Origin(2), new Fact(new Predicate(right, Arrays.asList(read))));
+    assertEquals(2, facts.stream(new TrustedOrigins(0), pattern).count());
+    assertEquals(1, facts.stream(new TrustedOrigins(0), readPattern).count());
+    assertEquals(3, facts.stream(new TrustedOrigins(0, 1), pattern).count());
+
+    final FactSet other = new FactSet();
+    other.add(new Origin(0), new Fact(new Predicate(right, Arrays.asList(syms.add("admin")))));
+    facts.merge(other);
+    assertEquals(3, facts.stream(new TrustedOrigins(0), pattern).count());
+    assertEquals(1, facts.stream(new TrustedOrigins(0), readPattern).count());
+  }
+
+  @Test
+  public void testTupleEncoding() {
+    final SymbolTable syms = new SymbolTable();
+    final List<Term> terms =
+        new ArrayList<>(
+            Arrays.asList(
+                new Term.Integer(-1),
+                new Term.Date(1234),
+                new Term.Bool(true),
+                syms.add("file1"),
+                new Term.Null(),
+                new Term.Bytes(new byte[] {1, 2}),
+                new Term.Set(new HashSet<>(Arrays.asList(new Term.Integer(1)))),
+                new Term.Array(Arrays.asList(new Term.Bool(false)))));
+    // more terms than fit in one tag word
+    for (int i = 0; i < 10; i++) {
+      terms.add(new Term.Integer(i));
+    }
+    final Fact fact = new Fact(syms.insert("fact"), terms);
+
+    final Tuple tuple = Tuple.of(fact);
+    assertEquals(terms.size(), tuple.arity());
+    assertEquals(fact, tuple.toFact());
+    assertEquals(tuple, Tuple.of(tuple.toFact()));
+    assertEquals(tuple.hashCode(), Tuple.of(tuple.toFact()).hashCode());
+
+    final List<Term> otherTerms = new ArrayList<>(terms);
+    otherTerms.set(5, new Term.Bytes(new byte[] {1, 3}));
+    assertFalse(tuple.equals(Tuple.of(new Fact(syms.insert("fact"), otherTerms))));
+    otherTerms.set(5, new Term.Bytes(new byte[] {1, 2}));
+    assertEquals(tuple, Tuple.of(new Fact(syms.insert("fact"), otherTerms)));
+    assertFalse(tuple.equals(Tuple.of(new Fact(syms.insert("other"), otherTerms))));
+    // an integer and a date with the same value are different terms
+    assertFalse(
+        Tuple.of(new Fact(syms.insert("fact"), Arrays.asList(new Term.Integer(1))))
+            .equals(Tuple.of(new Fact(syms.insert("fact"), Arrays.asList(new Term.Date(1))))));
+  }
+
+  @Test
+  public void testImmutableTerms() {
+    final SymbolTable syms = new SymbolTable();
+    final HashSet<Term> elements = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      elements.add(syms.add("scope" + i));
+    }
+    final Term.Set set = new Term.Set(elements);
+    final Term.Array array = new Term.Array(new ArrayList<>(elements));
+    final Map<MapKey, Term> entries = Map.of(new Term.Integer(1), set);
+    final Term.Map map = new Term.Map(entries);
+    final int setHash = set.hashCode();
+
+    // the terms copied their elements
+    elements.add(syms.add("other"));
+    assertEquals(1000, set.value().size());
+    assertEquals(setHash, set.hashCode());
+    assertEquals(1000, array.value().size());
+    assertThrows(UnsupportedOperationException.class, () -> set.value().clear());
+    assertThrows(UnsupportedOperationException.class, () -> array.value().clear());
+    assertThrows(UnsupportedOperationException.class, () -> map.value().clear());
+
+    assertEquals(new Term.Set(set.value()), set);
+    assertEquals(new Term.Set(set.value()).hashCode(), setHash);
+    assertFalse(set.equals(new Term.Set(elements)));
+    assertTrue(set.match(new Term.Set(set.value())));
+    assertEquals(new Term.Map(entries), map);
+    assertEquals(new Term.Array(array.value()), array);
+    assertFalse(array.equals(new Term.Array(List.of(set))));
+
+    // facts holding equal sets are deduplicated
+    final FactSet facts = new FactSet();
+    assertTrue(facts.add(new Origin(0), new Fact(syms.insert("scopes"), List.of(set))));
+    assertFalse(
+        facts.add(
+            new Origin(0), new Fact(syms.insert("scopes"), List.of(new Term.Set(set.value())))));
+
+    assertSame(Term.Bool.TRUE, Term.Bool.of(true));
+    assertSame(Term.Bool.FALSE, Term.Bool.of(false));
+    assertSame(Term.Integer.of(42), Term.Integer.of(42));
+    assertSame(Term.Integer.of(-128), Term.Integer.of(-128));
+    assertEquals(Term.Integer.of(1L << 40), new Term.Integer(1L << 40));
+    assertSame(Term.Null.INSTANCE, Term.deserializeEnumV2(new Term.Null().serializeTerm()).getOk());
+    assertSame(Term.Bool.TRUE, Term.deserializeEnumV2(Term.Bool.TRUE.serializeTerm()).getOk());
+  }
+
+  @Test
+  public void testOptimizedExpressions() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long resource = syms.insert("resource");
+    final long valid = syms.insert("valid");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final FactSet facts = new FactSet();
+    facts.add(new Origin(0), new Fact(new Predicate(resource, Arrays.asList(syms.add("file1")))));
+
+    // valid($x) <- resource($x), 1 < 2, 2 < 1
+    final Rule alwaysFalse =
+        new Rule(
+            new Predicate(valid, Arrays.asList(x)),
+            Arrays.asList(new Predicate(resource, Arrays.asList(x))),
+            Arrays.asList(
+                new Expression(
+                    new ArrayList<Op>(
+                        Arrays.asList(
+                            new Term.Integer(1),
+                            new Term.Integer(2),
+                            new Op.Binary(Op.BinaryOp.LessThan)))),
+                new Expression(
+                    new ArrayList<Op>(
+                        Arrays.asList(
+                            new Term.Integer(2),
+                            new Term.Integer(1),
+                            new Op.Binary(Op.BinaryOp.LessThan))))));
+    final World w = new World(facts);
+    assertEquals(0, w.queryRule(alwaysFalse, 0L, new TrustedOrigins(0), syms).size());
+    alwaysFalse.optimizeExpressions(syms);
+    assertEquals(0, w.queryRule(alwaysFalse, 0L, new TrustedOrigins(0), syms).size());
+    assertFalse(w.queryMatch(alwaysFalse, 0L, new TrustedOrigins(0), syms));
+    // the original expressions are kept
+    assertEquals(2, alwaysFalse.expressions().size());
+
+    // valid($x) <- resource($x), 1 < 2
+    final Rule alwaysTrue =
+        new Rule(
+            new Predicate(valid, Arrays.asList(x)),
+            Arrays.asList(new Predicate(resource, Arrays.asList(x))),
+            alwaysFalse.expressions().subList(0, 1));
+    alwaysTrue.optimizeExpressions(syms);
+    assertEquals(1, w.queryRule(alwaysTrue, 0L, new TrustedOrigins(0), syms).size());
+    assertTrue(w.queryMatchAll(alwaysTrue, new TrustedOrigins(0), syms));
+  }
+
+  @Test
+  public void testFilterPushdown() {
+    final SymbolTable syms = new SymbolTable();
+    final long left = syms.insert("left");
+    final long right = syms.insert("right");
+    final long pair = syms.insert("pair");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final FactSet facts = new FactSet();
+    for (int i = 0; i < 10; i++) {
+      facts.add(new Origin(0), new Fact(new Predicate(left, Arrays.asList(new Term.Integer(i)))));
+      facts.add(new Origin(0), new Fact(new Predicate(right, Arrays.asList(new Term.Integer(i)))));
+    }
+
+    // pair($x, $y) <- left($x), right($y), $x < 2, $x + $y == 5
+    final Rule rule =
+        new Rule(
+            new Predicate(pair, Arrays.asList(x, y)),
+            Arrays.asList(
+                new Predicate(left, Arrays.asList(x)), new Predicate(right, Arrays.asList(y))),
+            Arrays.asList(
+                new Expression(
+                    new ArrayList<Op>(
+                        Arrays.asList(
+                            x, new Term.Integer(2), new Op.Binary(Op.BinaryOp.LessThan)))),
+                new Expression(
+                    new ArrayList<Op>(
+                        Arrays.asList(
+                            x,
+                            y,
+                            new Op.Binary(Op.BinaryOp.Add),
+                            new Term.Integer(5),
+                            new Op.Binary(Op.BinaryOp.Equal))))));
+
+    // the right facts are only looked up for the values of $x passing the first expression
+    final int[] lookups = new int[2];
+    final List<Function<Predicate, Stream<Pair<Origin, Fact>>>> sources =
+        Arrays.asList(
+            (pattern) -> {
+              lookups[0]++;
+              return facts.stream(new TrustedOrigins(0), pattern);
+            },
+            (pattern) -> {
+              lookups[1]++;
+              return facts.stream(new TrustedOrigins(0), pattern);
+            });
+    final Set<Fact> generated =
+        rule.apply(sources, 0L, syms).map((r) -> r.getOk()._2).collect(Collectors.toSet());
+
+    assertEquals(
+        new HashSet<>(
+            Arrays.asList(
+                new Fact(
+                    new Predicate(pair, Arrays.asList(new Term.Integer(0), new Term.Integer(5)))),
+                new Fact(
+                    new Predicate(pair, Arrays.asList(new Term.Integer(1), new Term.Integer(4)))))),
+        generated);
+    assertEquals(1, lookups[0]);
+    assertEquals(2, lookups[1]);
+  }
+
+  @Test
+  public void testFilterPushdownShadowedClosureParameter() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long left = syms.insert("left");
+    final long right = syms.insert("right");
+    final long out = syms.insert("out");
+    final long yId = syms.insert("y");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(yId);
+    final FactSet facts = new FactSet();
+    for (int i = 0; i < 3; i++) {
+      facts.add(new Origin(0), new Fact(new Predicate(left, Arrays.asList(new Term.Integer(i)))));
+      facts.add(new Origin(0), new Fact(new Predicate(right, Arrays.asList(new Term.Integer(i)))));
+    }
+    final World w = new World(facts);
+
+    // out($x) <- left($x), right($y), {1, 2}.any($y -> $y == $x)
+    // the closure parameter shadows the body variable $y: the expression fails on every match
+    final Function<Boolean, Rule> rule =
+        (compile) -> {
+          final Rule r =
+              new Rule(
+                  new Predicate(out, Arrays.asList(x)),
+                  Arrays.asList(
+                      new Predicate(left, Arrays.asList(x)),
+                      new Predicate(right, Arrays.asList(y))),
+                  Arrays.asList(
+                      new Expression(
+                          new ArrayList<Op>(
+                              Arrays.asList(
+                                  new Term.Set(
+                                      new HashSet<>(
+                                          Arrays.asList(new Term.Integer(1), new Term.Integer(2)))),
+                                  new Op.Closure(
+                                      new ArrayList<>(Arrays.asList(yId)),
+                                      new ArrayList<Op>(
+                                          Arrays.asList(
+                                              y, x, new Op.Binary(Op.BinaryOp.Equal)))),
+                                  new Op.Binary(Op.BinaryOp.Any))))));
+          if (compile) {
+            assertTrue(r.compile());
+          }
+          return r;
+        };
+
+    assertEquals(0, w.queryRule(rule.apply(false), 0L, new TrustedOrigins(0), syms).size());
+    assertEquals(0, w.queryRule(rule.apply(true), 0L, new TrustedOrigins(0), syms).size());
+  }
+
+  @Test
+  public void testParallelRun() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+
+    final World w = new World();
+    for (int i = 0; i < 20; i++) {
+      w.addFact(
+          new Origin(0),
+          new Fact(
+              new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+    }
+    // path($x, $y) <- edge($x, $y); path($x, $z) <- path($x, $y), edge($y, $z)
+    w.addRule(
+        0L,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    w.addRule(
+        0L,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>()));
+    // independent rules, applied in the same iteration
+    for (int k = 0; k < 8; k++) {
+      w.addRule(
+          0L,
+          new TrustedOrigins(0),
+          new Rule(
+              new Predicate(syms.insert("below" + k), Arrays.asList(x)),
+              Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+              Arrays.asList(
+                  new Expression(
+                      new ArrayList<Op>(
+                          Arrays.asList(
+                              x, new Term.Integer(k), new Op.Binary(Op.BinaryOp.LessThan)))))));
+    }
+
+    final World sequential = new World(w);
+    sequential.run(new RunLimits(1000, 100, Duration.ofSeconds(10)), syms);
+    final World parallel = new World(w);
+    parallel.run(
+        new RunLimits(1000, 100, Duration.ofSeconds(10)).withExecutor(ForkJoinPool.commonPool()),
+        syms);
+    assertEquals(20 + 210 + 28, sequential.getFacts().size());
+    assertEquals(sequential.getFacts(), parallel.getFacts());
+
+    assertThrows(
+        Error.TooManyFacts.class,
+        () ->
+            new World(w)
+                .run(
+                    new RunLimits(100, 100, Duration.ofSeconds(10))
+                        .withExecutor(ForkJoinPool.commonPool()),
+                    syms));
+    assertThrows(
+        Error.Timeout.class,
+        () ->
+            new World(w)
+                .run(
+                    new RunLimits(1000, 100, Duration.ZERO).withExecutor(ForkJoinPool.commonPool()),
+                    syms));
+  }
+
+  @Test
+  public void testDemandDrivenRun() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long resource = syms.insert("resource");
+    final long readable = syms.insert("readable");
+    final long allowed = syms.insert("allowed");
+    final long unrelated = syms.insert("unrelated");
+    final Term x = new Term.Variable(syms.insert("x"));
+
+    final World w = new World();
+    w.addFact(new Origin(0), new Fact(new Predicate(resource, Arrays.asList(syms.add("file1")))));
+    // readable($x) <- resource($x); allowed($x) <- readable($x); unrelated($x) <- resource($x)
+    w.addRule(
+        0L,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(readable, Arrays.asList(x)),
+            Arrays.asList(new Predicate(resource, Arrays.asList(x))),
+            new ArrayList<>()));
+    w.addRule(
+        0L,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(allowed, Arrays.asList(x)),
+            Arrays.asList(new Predicate(readable, Arrays.asList(x))),
+            new ArrayList<>()));
+    w.addRule(
+        0L,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(unrelated, Arrays.asList(x)),
+            Arrays.asList(new Predicate(resource, Arrays.asList(x))),
+            new ArrayList<>()));
+
+    final World full = new World(w);
+    full.run(syms);
+    w.run(new RunLimits(), syms, Arrays.asList(new Predicate(allowed, Arrays.asList(x))));
+
+    assertEquals(4, full.getFacts().size());
+    assertEquals(3, w.getFacts().size());
+    assertEquals(0, w.getFacts().size(new Predicate(unrelated, Arrays.asList(x))));
+    final Rule query =
+        new Rule(
+            new Predicate(allowed, Arrays.asList(x)),
+            Arrays.asList(new Predicate(allowed, Arrays.asList(x))),
+            new ArrayList<>());
+    assertEquals(
+        full.queryRule(query, 0L, new TrustedOrigins(0), syms),
+        w.queryRule(query, 0L, new TrustedOrigins(0), syms));
+  }
+
+  @Test
+  public void testCancellation() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+
+    final World w = new World();
+    for (int i = 0; i < 20; i++) {
+      w.addFact(
+          new Origin(0),
+          new Fact(
+              new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+    }
+    w.addRule(
+        0L,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    w.addRule(
+        0L,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>()));
+
+    final CancellationToken token = new CancellationToken();
+    final RunLimits limits =
+        new RunLimits(1000, 100, Duration.ofSeconds(10)).withCancellationToken(token);
+    new World(w).run(limits, syms);
+
+    token.cancel();
+    assertThrows(Error.Cancelled.class, () -> new World(w).run(limits, syms));
+
+    Thread.currentThread().interrupt();
+    try {
+      assertThrows(
+          Error.Cancelled.class,
+          () -> new World(w).run(new RunLimits(1000, 100, Duration.ofSeconds(10)), syms));
+      // the interrupt flag is kept
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+
+    final Deadline deadline = Deadline.after(Duration.ZERO);
+    assertThrows(Error.Timeout.class, deadline::check);
+    // the clock is only read again after some checks
+    deadline.check();
+    assertThrows(Error.Timeout.class, deadline::checkNow);
+    Deadline.after(ChronoUnit.FOREVER.getDuration()).checkNow();
+  }
+
+  @Test
+  public void testMemoryLimit() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long data = syms.insert("data");
+    final long copy = syms.insert("copy");
+    final Term x = new Term.Variable(syms.insert("x"));
+
+    final FactSet facts = new FactSet();
+    final Fact small = new Fact(new Predicate(data, Arrays.asList(new Term.Integer(1))));
+    facts.add(new Origin(0), small);
+    final long smallSize = facts.memoryBytes();
+    assertTrue(smallSize > 0);
+    facts.add(new Origin(0), small);
+    assertEquals(smallSize, facts.memoryBytes());
+
+    final HashSet<Term> values = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      values.add(new Term.Integer(i));
+    }
+    facts.add(new Origin(0), new Fact(new Predicate(data, Arrays.asList(new Term.Set(values)))));
+    final long largeSize = facts.memoryBytes() - smallSize;
+    // a set of integers is stored as an array of their values
+    assertTrue(largeSize > 1000 * Long.BYTES);
+    assertEquals(facts.memoryBytes(), facts.clone().memoryBytes());
+
+    // copy($x) <- data($x) doubles the memory used
+    final World w = new World(facts);
+    w.addRule(
+        0L,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(copy, Arrays.asList(x)),
+            Arrays.asList(new Predicate(data, Arrays.asList(x))),
+            new ArrayList<>()));
+    final long budget = facts.memoryBytes() + largeSize / 2;
+    assertThrows(
+        Error.TooMuchMemory.class,
+        () ->
+            new World(w)
+                .run(
+                    new RunLimits(1000, 100, Duration.ofSeconds(10)).withMaxMemoryBytes(budget),
+                    syms));
+    new World(w)
+        .run(
+            new RunLimits(1000, 100, Duration.ofSeconds(10))
+                .withMaxMemoryBytes(2 * facts.memoryBytes()),
+            syms);
+  }
+
+  @Test
+  public void testMemoryLimitDuringIteration() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long data = syms.insert("data");
+    final long pair = syms.insert("pair");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+
+    final World w = new World();
+    for (int i = 0; i < 100; i++) {
+      w.addFact(new Origin(0), new Fact(new Predicate(data, Arrays.asList(new Term.Integer(i)))));
+    }
+    // pair($x, $y) <- data($x), data($y) generates 10000 facts in a single iteration
+    w.addRule(
+        0L,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(pair, Arrays.asList(x, y)),
+            Arrays.asList(
+                new Predicate(data, Arrays.asList(x)), new Predicate(data, Arrays.asList(y))),
+            new ArrayList<>()));
+    final long budget = 2 * w.getFacts().memoryBytes();
+
+    // the limit is reached while the facts are generated, before they are merged
+    final World run = new World(w);
+    assertThrows(
+        Error.TooMuchMemory.class,
+        () ->
+            run.run(
+                new RunLimits(100000, 100, Duration.ofSeconds(10)).withMaxMemoryBytes(budget),
+                syms));
+    assertEquals(100, run.getFacts().size());
+  }
+
+  @Test
+  public void testIncrementalRun() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final long start = syms.insert("start");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+
+    final World w = new World();
+    // path($x, $y) <- edge($x, $y); path($x, $z) <- path($x, $y), edge($y, $z);
+    // start($x) <- path($x, $y)
+    w.addRule(
+        0L,
+        new TrustedOrigins(0, 1),
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    w.addRule(
+        0L,
+        new TrustedOrigins(0, 1),
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>()));
+    w.addRule(
+        0L,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(start, Arrays.asList(x)),
+            Arrays.asList(new Predicate(path, Arrays.asList(x, y))),
+            new ArrayList<>()));
+
+    final World full = new World(w);
+    for (int i = 0; i < 5; i++) {
+      final Fact fact =
+          new Fact(
+              new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1))));
+      w.addFact(new Origin(i % 2), fact);
+      w.run(syms);
+      full.addFact(new Origin(i % 2), fact);
+    }
+    // the edge is added before the others
+    final Fact first =
+        new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(-1), new Term.Integer(0))));
+    w.addFact(new Origin(0), first);
+    w.run(syms);
+    full.addFact(new Origin(0), first);
+    full.run(syms);
+    assertEquals(full.getFacts(), w.getFacts());
+
+    // a copy keeps the fixpoint
+    final World copy = new World(w);
+    final Fact last =
+        new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(5), new Term.Integer(6))));
+    copy.addFact(new Origin(0), last);
+    copy.run(syms);
+    full.addFact(new Origin(0), last);
+    full.run(syms);
+    assertEquals(full.getFacts(), copy.getFacts());
+
+    // facts added directly to the fact set make the run start over
+    w.getFacts().add(new Origin(0), last);
+    w.run(syms);
+    assertEquals(full.getFacts(), w.getFacts());
+  }
+
+  @Test
+  public void testFactSink() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long resource = syms.insert("resource");
+    final long valid = syms.insert("valid");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final FactSet facts = new FactSet();
+    for (int i = 0; i < 10; i++) {
+      facts.add(
+          new Origin(1), new Fact(new Predicate(resource, Arrays.asList(new Term.Integer(i)))));
+    }
+    final Rule rule =
+        new Rule(
+            new Predicate(valid, Arrays.asList(x)),
+            Arrays.asList(new Predicate(resource, Arrays.asList(x))),
+            new ArrayList<>());
+
+    final List<Origin> origins = new ArrayList<>();
+    rule.apply(
+        rule.factsSources(facts, new TrustedOrigins(0, 1)),
+        rule.factsSizes(facts),
+        0L,
+        syms,
+        (origin, fact) -> {
+          origins.add(origin);
+          return origins.size() < 3;
+        });
+    // the sink stopped the evaluation
+    assertEquals(3, origins.size());
+    assertEquals(new Origin(1).union(new Origin(0)), origins.get(0));
+
+    // a variable missing from the body fails the evaluation
+    final Rule invalid =
+        new Rule(
+            new Predicate(valid, Arrays.asList(new Term.Variable(syms.insert("y")))),
+            Arrays.asList(new Predicate(resource, Arrays.asList(x))),
+            new ArrayList<>());
+    assertThrows(
+        Error.InternalError.class,
+        () ->
+            invalid.apply(
+                invalid.factsSources(facts, new TrustedOrigins(0, 1)),
+                invalid.factsSizes(facts),
+                0L,
+                syms,
+                (origin, fact) -> true));
+  }
+
+  @Test
+  public void testCompiledRules() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long label = syms.insert("label");
+    final long path = syms.insert("path");
+    final long far = syms.insert("far");
+    final long loop = syms.insert("loop");
+    final long named = syms.insert("named");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+
+    final FactSet facts = new FactSet();
+    for (int i = 0; i < 20; i++) {
+      facts.add(
+          new Origin(i % 3),
+          new Fact(
+              new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+      facts.add(
+          new Origin(0),
+          new Fact(
+              new Predicate(
+                  label, Arrays.asList(new Term.Integer(i), syms.add(i % 5 == 4 ? "b" : "a")))));
+    }
+    facts.add(
+        new Origin(1),
+        new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(5), new Term.Integer(5)))));
+    // a date with the same value as an integer constant does not match it
+    facts.add(
+        new Origin(0),
+        new Fact(new Predicate(label, Arrays.asList(new Term.Date(0), syms.add("c")))));
+
+    final Expression distance =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    y,
+                    x,
+                    new Op.Binary(Op.BinaryOp.Sub),
+                    new Term.Integer(2),
+                    new Op.Binary(Op.BinaryOp.GreaterThan))));
+    final Function<Boolean, RuleSet> rules =
+        (compile) -> {
+          final List<Rule> list =
+              Arrays.asList(
+                  // path($x, $y) <- edge($x, $y)
+                  new Rule(
+                      new Predicate(path, Arrays.asList(x, y)),
+                      Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+                      new ArrayList<>()),
+                  // path($x, $z) <- path($x, $y), edge($y, $z), label($z, "a")
+                  new Rule(
+                      new Predicate(path, Arrays.asList(x, z)),
+                      Arrays.asList(
+                          new Predicate(path, Arrays.asList(x, y)),
+                          new Predicate(edge, Arrays.asList(y, z)),
+                          new Predicate(label, Arrays.asList(z, syms.add("a")))),
+                      new ArrayList<>()),
+                  // far($x, $y) <- path($x, $y), $y - $x > 2
+                  new Rule(
+                      new Predicate(far, Arrays.asList(x, y)),
+                      Arrays.asList(new Predicate(path, Arrays.asList(x, y))),
+                      Arrays.asList(distance)),
+                  // loop($x, true) <- edge($x, $x)
+                  new Rule(
+                      new Predicate(loop, Arrays.asList(x, new Term.Bool(true))),
+                      Arrays.asList(new Predicate(edge, Arrays.asList(x, x))),
+                      new ArrayList<>()),
+                  // named($y, $z) <- edge(0, $y), label(0, $z)
+                  new Rule(
+                      new Predicate(named, Arrays.asList(y, z)),
+                      Arrays.asList(
+                          new Predicate(edge, Arrays.asList(new Term.Integer(0), y)),
+                          new Predicate(label, Arrays.asList(new Term.Integer(0), z))),
+                      new ArrayList<>()));
+          final RuleSet ruleSet = new RuleSet();
+          for (int i = 0; i < list.size(); i++) {
+            if (compile) {
+              assertTrue(list.get(i).compile());
+            }
+            ruleSet.add(
+                (long) 0,
+                i == 3 ? new TrustedOrigins(0, 1) : new TrustedOrigins(0, 1, 2),
+                list.get(i));
+          }
+          return ruleSet;
+        };
+
+    // the interpreter is the reference
+    final World interpreted = new World(facts.clone(), rules.apply(false));
+    interpreted.run(new RunLimits(10000, 100, Duration.ofSeconds(10)), syms);
+    final World compiled = new World(facts.clone(), rules.apply(true));
+    compiled.run(new RunLimits(10000, 100, Duration.ofSeconds(10)), syms);
+    assertTrue(interpreted.getFacts().size() > facts.size());
+    assertEquals(interpreted.getFacts(), compiled.getFacts());
+
+    // queries
+    final Rule query =
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(
+                new Predicate(far, Arrays.asList(x, y)),
+                new Predicate(label, Arrays.asList(x, syms.add("b")))),
+            new ArrayList<>());
+    final TrustedOrigins scope = new TrustedOrigins(0, 1, 2);
+    final FactSet expected = interpreted.queryRule(query, 0L, scope, syms);
+    assertTrue(expected.size() > 0);
+    assertTrue(query.compile());
+    assertTrue(query.isCompiled());
+    assertEquals(expected, interpreted.queryRule(query, 0L, scope, syms));
+    assertTrue(interpreted.queryMatch(query, 0L, scope, syms));
+    assertFalse(interpreted.queryMatch(query, 0L, new TrustedOrigins(0), syms));
+
+    // rules matching bytes are interpreted
+    final Rule bytes =
+        new Rule(
+            new Predicate(path, Arrays.asList(x)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, new Term.Bytes(new byte[] {0})))),
+            new ArrayList<>());
+    assertFalse(bytes.compile());
+    assertEquals(0, interpreted.queryRule(bytes, 0L, new TrustedOrigins(0), syms).size());
+  }
+
+  @Test
+  public void testBatchExpressions() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long measure = syms.insert("measure");
+    final long limit = syms.insert("limit");
+    final long alert = syms.insert("alert");
+    final Term t = new Term.Variable(syms.insert("t"));
+    final Term v = new Term.Variable(syms.insert("v"));
+    final Term max = new Term.Variable(syms.insert("max"));
+
+    final FactSet facts = new FactSet();
+    for (int i = 0; i < 200; i++) {
+      facts.add(
+          new Origin(i % 2),
+          new Fact(
+              new Predicate(
+                  measure, Arrays.asList(new Term.Integer(i), new Term.Integer(i * 7 % 100)))));
+    }
+    facts.add(new Origin(0), new Fact(new Predicate(limit, Arrays.asList(new Term.Integer(90)))));
+    facts.add(new Origin(1), new Fact(new Predicate(limit, Arrays.asList(new Term.Integer(95)))));
+    final World w = new World(facts);
+    final TrustedOrigins scope = new TrustedOrigins(0, 1);
+
+    // alert($t, $max) <- measure($t, $v), limit($max), $v > $max, $t >= 10 && $t < 150
+    final Function<Boolean, Rule> rule =
+        (compile) -> {
+          final Rule r =
+              new Rule(
+                  new Predicate(alert, Arrays.asList(t, max)),
+                  Arrays.asList(
+                      new Predicate(measure, Arrays.asList(t, v)),
+                      new Predicate(limit, Arrays.asList(max))),
+                  Arrays.asList(
+                      new Expression(
+                          new ArrayList<Op>(
+                              Arrays.asList(v, max, new Op.Binary(Op.BinaryOp.GreaterThan)))),
+                      new Expression(
+                          new ArrayList<Op>(
+                              Arrays.asList(
+                                  t,
+                                  new Term.Integer(10),
+                                  new Op.Binary(Op.BinaryOp.GreaterOrEqual),
+                                  new Op.Closure(
+                                      new ArrayList<>(),
+                                      new ArrayList<Op>(
+                                          Arrays.asList(
+                                              t,
+                                              new Term.Integer(150),
+                                              new Op.Binary(Op.BinaryOp.LessThan)))),
+                                  new Op.Binary(Op.BinaryOp.LazyAnd))))));
+          if (compile) {
+            assertTrue(r.compile());
+          }
+          return r;
+        };
+
+    final FactSet expected = w.queryRule(rule.apply(false), 0L, scope, syms);
+    assertTrue(expected.size() > 0);
+    assertEquals(expected, w.queryRule(rule.apply(true), 0L, scope, syms));
+
+    // with a date among the values, the expressions are evaluated for each binding
+    w.addFact(
+        new Origin(0),
+        new Fact(new Predicate(measure, Arrays.asList(new Term.Integer(20), new Term.Date(99)))));
+    assertEquals(
+        w.queryRule(rule.apply(false), 0L, scope, syms),
+        w.queryRule(rule.apply(true), 0L, scope, syms));
+  }
+
+  @Test
+  public void testMappedFacts(@TempDir Path dir) throws Error, IOException {
+    final SymbolTable fileSyms = new SymbolTable();
+    final long member = fileSyms.insert("member");
+    final long role = fileSyms.insert("role");
+    final long flag = fileSyms.insert("flag");
+    final MappedFactBase.Builder builder = MappedFactBase.builder();
+    final List<Fact> facts = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      facts.add(
+          new Fact(
+              new Predicate(
+                  member,
+                  Arrays.asList(fileSyms.add("user" + i), fileSyms.add("group" + (i % 10))))));
+    }
+    facts.add(
+        new Fact(
+            new Predicate(role, Arrays.asList(fileSyms.add("group3"), fileSyms.add("admin")))));
+    facts.add(
+        new Fact(
+            new Predicate(
+                flag,
+                Arrays.asList(
+                    new Term.Bool(true),
+                    new Term.Null(),
+                    new Term.Date(10),
+                    new Term.Integer(-5)))));
+    for (Fact fact : facts) {
+      builder.add(fact, fileSyms);
+    }
+    builder.add(
+        org.eclipse.biscuit.token.builder.Utils.fact(
+            "role",
+            List.of(
+                org.eclipse.biscuit.token.builder.Utils.string("group4"),
+                org.eclipse.biscuit.token.builder.Utils.string("reader"))));
+    final Path path = dir.resolve("facts.bin");
+    builder.write(path);
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            builder.add(
+                new Fact(new Predicate(flag, Arrays.asList(new Term.Bytes(new byte[0])))),
+                fileSyms));
+
+    final MappedFactBase base = MappedFactBase.open(path);
+    assertEquals(1003, base.size());
+
+    // the world only knows the symbols of its rules, the strings of the file are read from it
+    final SymbolTable syms = new SymbolTable();
+    final long can = syms.insert("can");
+    final Term u = new Term.Variable(syms.insert("u"));
+    final Term g = new Term.Variable(syms.insert("g"));
+    final Term r = new Term.Variable(syms.insert("r"));
+    final World w = new World();
+    w.addFacts(new Origin(0), base, syms);
+    // can($u, $r) <- member($u, $g), role($g, $r)
+    w.addRule(
+        0L,
+        new TrustedOrigins(0, 1),
+        new Rule(
+            new Predicate(can, Arrays.asList(u, r)),
+            Arrays.asList(
+                new Predicate(syms.insert("member"), Arrays.asList(u, g)),
+                new Predicate(syms.insert("role"), Arrays.asList(g, r))),
+            new ArrayList<>()));
+    // already in the file
+    w.addFact(
+        new Origin(0),
+        new Fact(
+            new Predicate(
+                syms.insert("role"), Arrays.asList(syms.add("group3"), syms.add("admin")))));
+    // only on the heap
+    w.addFact(
+        new Origin(1),
+        new Fact(
+            new Predicate(
+                syms.insert("role"), Arrays.asList(syms.add("group5"), syms.add("admin")))));
+    assertEquals(1, w.getFacts().size());
+    // the facts of the file are not counted by the limit
+    w.run(new RunLimits(1000, 10, Duration.ofSeconds(10)), syms);
+    assertEquals(301, w.getFacts().size());
+
+    // lookups by a prefix, and by other terms
+    final Rule user42 =
+        new Rule(
+            new Predicate(can, Arrays.asList(g)),
+            Arrays.asList(
+                new Predicate(syms.insert("member"), Arrays.asList(syms.add("user42"), g))),
+            new ArrayList<>());
+    final FactSet groups = w.queryRule(user42, 0L, new TrustedOrigins(0), syms);
+    assertEquals(
+        Set.of("can(\"group2\")"),
+        groups.stream().map(syms::formatFact).collect(Collectors.toSet()));
+    final Rule group7 =
+        new Rule(
+            new Predicate(can, Arrays.asList(u)),
+            Arrays.asList(
+                new Predicate(syms.insert("member"), Arrays.asList(u, syms.add("group7")))),
+            new ArrayList<>());
+    assertEquals(100, w.queryRule(group7, 0L, new TrustedOrigins(0), syms).size());
+    assertEquals(0, w.queryRule(group7, 0L, new TrustedOrigins(1), syms).size());
+    final Rule admins =
+        new Rule(
+            new Predicate(can, Arrays.asList(u)),
+            Arrays.asList(new Predicate(can, Arrays.asList(u, syms.add("admin")))),
+            new ArrayList<>());
+    assertEquals(100, w.queryRule(admins, 0L, new TrustedOrigins(0), syms).size());
+    assertEquals(200, w.queryRule(admins, 0L, new TrustedOrigins(0, 1), syms).size());
+    final Rule flags =
+        new Rule(
+            new Predicate(can, Arrays.asList(u)),
+            Arrays.asList(
+                new Predicate(
+                    syms.insert("flag"),
+                    Arrays.asList(new Term.Bool(true), new Term.Null(), u, new Term.Integer(-5)))),
+            new ArrayList<>());
+    assertEquals(
+        Set.of("can(1970-01-01T00:00:10Z)"),
+        w.queryRule(flags, 0L, new TrustedOrigins(0), syms).stream()
+            .map(syms::formatFact)
+            .collect(Collectors.toSet()));
+
+    // same facts as a world holding them on the heap
+    final World heap = new World(new FactSet(), w.getRules());
+    for (Fact fact : facts) {
+      final List<Term> terms = new ArrayList<>();
+      for (Term term : fact.predicate().terms()) {
+        terms.add(
+            term instanceof Term.Str
+                ? syms.add(fileSyms.getSymbol((int) ((Term.Str) term).value()).get())
+                : term);
+      }
+      final long name = syms.insert(fileSyms.getSymbol((int) fact.predicate().name()).get());
+      heap.addFact(new Origin(0), new Fact(new Predicate(name, terms)));
+    }
+    heap.addFact(
+        new Origin(0),
+        new Fact(
+            new Predicate(
+                syms.insert("role"), Arrays.asList(syms.add("group4"), syms.add("reader")))));
+    heap.addFact(
+        new Origin(1),
+        new Fact(
+            new Predicate(
+                syms.insert("role"), Arrays.asList(syms.add("group5"), syms.add("admin")))));
+    heap.run(new RunLimits(10000, 10, Duration.ofSeconds(10)), syms);
+    assertEquals(heap.getFacts().facts(), w.getFacts().facts());
+    for (Rule rule : List.of(user42, group7, admins, flags)) {
+      assertEquals(
+          heap.queryRule(rule, 0L, new TrustedOrigins(0, 1), syms),
+          w.queryRule(rule, 0L, new TrustedOrigins(0, 1), syms));
+    }
+
+    // the strings of the file are not copied in the symbol table
+    assertFalse(syms.symbols().contains("user42"));
+    assertFalse(syms.symbols().contains("group3"));
+    assertEquals("user42", syms.getSymbol(syms.get("user42").get().intValue()).get());
+
+    // a copy for a copy of the symbol table keeps the facts
+    final SymbolTable copySyms = new SymbolTable(syms);
+    final World copy = new World(w);
+    final Rule user999 =
+        new Rule(
+            new Predicate(can, Arrays.asList(g)),
+            Arrays.asList(
+                new Predicate(
+                    copySyms.insert("member"), Arrays.asList(copySyms.add("user999"), g))),
+            new ArrayList<>());
+    assertEquals(
+        Set.of("can(\"group9\")"),
+        copy.queryRule(user999, 0L, new TrustedOrigins(0), copySyms).stream()
+            .map(copySyms::formatFact)
+            .collect(Collectors.toSet()));
+  }
+
+  @Test
+  public void testMappedFactsCorrupted(@TempDir Path dir) throws Error, IOException {
+    final Path path = dir.resolve("facts.bin");
+    MappedFactBase.builder()
+        .add(
+            org.eclipse.biscuit.token.builder.Utils.fact(
+                "member",
+                List.of(
+                    org.eclipse.biscuit.token.builder.Utils.string("alice"),
+                    org.eclipse.biscuit.token.builder.Utils.string("admins"))))
+        .write(path);
+    final byte[] bytes = Files.readAllBytes(path);
+    assertEquals(1, MappedFactBase.open(path).size());
+
+    // every truncation is detected when the file is opened
+    final Path truncated = dir.resolve("truncated.bin");
+    for (int length = 0; length < bytes.length; length++) {
+      Files.write(truncated, Arrays.copyOf(bytes, length));
+      assertThrows(IOException.class, () -> MappedFactBase.open(truncated));
+    }
+
+    // the second string ends before it starts
+    final Path corrupted = dir.resolve("corrupted.bin");
+    final byte[] inverted = bytes.clone();
+    ByteBuffer.wrap(inverted).putInt(16 + Integer.BYTES, -1);
+    Files.write(corrupted, inverted);
+    assertThrows(IOException.class, () -> MappedFactBase.open(corrupted));
+  }
 }
@@ -6,8 +6,13 @@
 package org.eclipse.biscuit.token;
 
 import static org.eclipse.biscuit.token.builder.Utils.constrainedRule;
+import static org.eclipse.biscuit.token.builder.Utils.pred;
+import static org.eclipse.biscuit.token.builder.Utils.rule;
+import static org.eclipse.biscuit.token.builder.Utils.var;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import biscuit.format.schema.Schema;
 import java.security.SecureRandom;
@@ -16,10 +21,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 import org.eclipse.biscuit.crypto.KeyPair;
 import org.eclipse.biscuit.datalog.RunLimits;
 import org.eclipse.biscuit.error.Error;
 import org.eclipse.biscuit.error.Error.Parser;
+import org.eclipse.biscuit.error.FailedCheck;
+import org.eclipse.biscuit.error.LogicError;
 import org.eclipse.biscuit.token.builder.Term;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -118,6 +126,83 @@ public class AuthorizerTest {
     assertEquals("bob@example.com", ((Term.Str) emailTerm).getValue());
   }
 
+  @Test
+  public void testConstantChecksAndPolicies() throws Exception {
+    KeyPair keypair = KeyPair.generate(Schema.PublicKey.Algorithm.Ed25519, rng);
+
+    Biscuit authority =
+        Biscuit.builder(keypair)
+            .addAuthorityFact("id(123)")
+            .addAuthorityCheck("check if id($i), $i > 100 + 20")
+            .build();
+    org.eclipse.biscuit.token.builder.Block block = authority.createBlock();
+    block.addCheck("check if 1 + 2 == 3 || false");
+    Biscuit token =
+        authority.attenuate(rng, KeyPair.generate(Schema.PublicKey.Algorithm.Ed25519, rng), block);
+
+    Authorizer authorizer = token.authorizer();
+    authorizer.addCheck("check if 2 * 3 == 6");
+    authorizer.addPolicy("deny if 1 == 2");
+    authorizer.addPolicy("allow if id($i), $i == 120 + 3");
+    assertEquals(1L, authorizer.authorize(runLimits));
+    // the checks and policies are converted once, authorizing again gives the same result
+    assertEquals(1L, authorizer.authorize(runLimits));
+
+    // failed checks are reported with their original expressions
+    Authorizer failing = token.authorizer();
+    failing.addCheck("check if 1 + 1 == 3");
+    failing.allow();
+    Error.FailedLogic error =
+        assertThrows(Error.FailedLogic.class, () -> failing.authorize(runLimits));
+    assertEquals(
+        new Error.FailedLogic(
+            new LogicError.Unauthorized(
+                new LogicError.MatchedPolicy.Allow(0),
+                Arrays.asList(new FailedCheck.FailedAuthorizer(0, "check if 1 + 1 == 3")))),
+        error);
+  }
+
+  @Test
+  public void testQueryStream() throws Error {
+    Authorizer authorizer = new Authorizer();
+    for (int i = 0; i < 200; i++) {
+      authorizer.addFact("resource(\"doc" + i + "\")");
+      if (i % 2 == 0) {
+        authorizer.addFact("owner(\"alice\", \"doc" + i + "\")");
+      }
+    }
+    String query = "accessible($r) <- owner(\"alice\", $r), resource($r)";
+
+    Set<org.eclipse.biscuit.token.builder.Fact> all = authorizer.query(query, runLimits);
+    assertEquals(100, all.size());
+    assertEquals(all, authorizer.queryStream(query, runLimits).collect(Collectors.toSet()));
+    List<org.eclipse.biscuit.token.builder.Fact> page =
+        authorizer.queryStream(query, runLimits).skip(10).limit(5).collect(Collectors.toList());
+    assertEquals(5, page.size());
+    assertTrue(all.containsAll(page));
+
+    // each fact is returned once
+    assertEquals(1, authorizer.queryStream("user($u) <- owner($u, $r)", runLimits).count());
+
+    // the terms are not converted
+    List<List<org.eclipse.biscuit.datalog.Term>> terms =
+        authorizer
+            .queryTerms(
+                org.eclipse.biscuit.token.builder.parser.Parser.rule(query).getOk()._2, runLimits)
+            .limit(3)
+            .collect(Collectors.toList());
+    assertEquals(3, terms.size());
+    for (List<org.eclipse.biscuit.datalog.Term> t : terms) {
+      assertEquals(1, t.size());
+      assertTrue(authorizer.getSymbolTable().formatTerm(t.get(0)).startsWith("\"doc"));
+    }
+
+    // missing($x) <- resource($r)
+    org.eclipse.biscuit.token.builder.Rule missing =
+        rule("missing", List.of(var("x")), List.of(pred("resource", List.of(var("r")))));
+    assertThrows(Error.InternalError.class, () -> authorizer.queryStream(missing, runLimits));
+  }
+
   private static Term queryFirstResult(Authorizer authorizer, String query) throws Error {
     return authorizer.query(query).iterator().next().terms().get(0);
   }
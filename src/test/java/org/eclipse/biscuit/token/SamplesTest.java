@@ -8,6 +8,7 @@ package org.eclipse.biscuit.token;
 import static org.eclipse.biscuit.token.Block.fromBytes;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import biscuit.format.schema.Schema;
 import com.fasterxml.jackson.annotation.JsonCreator;
@@ -49,6 +50,8 @@ import org.junit.jupiter.api.TestFactory;
 
 class SamplesTest {
   final RunLimits runLimits = new RunLimits(500, 100, Duration.ofMillis(500));
+  final RunLimits demandDrivenRunLimits =
+      new RunLimits(500, 100, Duration.ofMillis(500)).withDemandDriven(true);
 
   @TestFactory
   Stream<DynamicTest> jsonTest() throws Error.FormatError, IOException {
@@ -207,28 +210,18 @@ class SamplesTest {
 
               // TODO Add check of the token
 
-              Authorizer authorizer = token.authorizer();
+              Authorizer authorizer = authorizer(token, authorizerFacts);
               System.out.println(token.print());
-              for (String f : authorizerFacts) {
-                f = f.trim();
-                if (!f.isEmpty()) {
-                  if (f.startsWith("check if")
-                      || f.startsWith("check all")
-                      || f.startsWith("reject if")) {
-                    authorizer.addCheck(f);
-                  } else if (f.startsWith("allow if") || f.startsWith("deny if")) {
-                    authorizer.addPolicy(f);
-                  } else if (f.startsWith("revocation_id")) {
-                    // do nothing
-                  } else {
-                    authorizer.addFact(f);
-                  }
-                }
-              }
               System.out.println(authorizer.formatWorld());
+              Authorizer demandDrivenAuthorizer = authorizer(token, authorizerFacts);
+              Authorizer compiledAuthorizer = authorizer(token, authorizerFacts).compileRules();
 
               try {
                 Long authorizeResult = authorizer.authorize(runLimits);
+                assertEquals(
+                    authorizeResult, demandDrivenAuthorizer.authorize(demandDrivenRunLimits));
+                assertEquals(authorizeResult, compiledAuthorizer.authorize(runLimits));
+                assertEquals(authorizer.getFacts(), compiledAuthorizer.getFacts());
 
                 if (validation.hasNonNull("world")) {
                   World world =
@@ -255,6 +248,16 @@ class SamplesTest {
                   assertEquals(world.policies, authorizerWorld.policies);
                 }
 
+                if (e instanceof Error) {
+                  Error demandDrivenError =
+                      assertThrows(
+                          Error.class,
+                          () -> demandDrivenAuthorizer.authorize(demandDrivenRunLimits));
+                  assertEquals(((Error) e).toJson(), demandDrivenError.toJson());
+                  Error compiledError =
+                      assertThrows(Error.class, () -> compiledAuthorizer.authorize(runLimits));
+                  assertEquals(((Error) e).toJson(), compiledError.toJson());
+                }
                 throw e;
               }
             } catch (Exception e) {
@@ -300,6 +303,25 @@ class SamplesTest {
         });
   }
 
+  private static Authorizer authorizer(Biscuit token, String[] authorizerFacts) throws Error {
+    Authorizer authorizer = token.authorizer();
+    for (String f : authorizerFacts) {
+      f = f.trim();
+      if (!f.isEmpty()) {
+        if (f.startsWith("check if") || f.startsWith("check all") || f.startsWith("reject if")) {
+          authorizer.addCheck(f);
+        } else if (f.startsWith("allow if") || f.startsWith("deny if")) {
+          authorizer.addPolicy(f);
+        } else if (f.startsWith("revocation_id")) {
+          // do nothing
+        } else {
+          authorizer.addFact(f);
+        }
+      }
+    }
+    return authorizer;
+  }
+
   static class Block {
     @JsonProperty List<String> symbols;
     @JsonProperty String code;
@@ -18,6 +18,7 @@ import java.util.Arrays;
 import java.util.List;
 import org.eclipse.biscuit.crypto.KeyPair;
 import org.eclipse.biscuit.datalog.RunLimits;
+import org.eclipse.biscuit.datalog.expressions.RegexCache;
 import org.eclipse.biscuit.error.Error;
 import org.eclipse.biscuit.error.FailedCheck;
 import org.eclipse.biscuit.error.LogicError;
@@ -161,4 +162,22 @@ public class UnverifiedBiscuitTest {
           e);
     }
   }
+
+  @Test
+  public void testRegexesCachedAfterVerification()
+      throws Error, NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+    KeyPair root = KeyPair.generate(Schema.PublicKey.Algorithm.Ed25519, rng);
+    String data =
+        Biscuit.builder(rng, root)
+            .addAuthorityCheck("check if resource($r), $r.matches(\"^/unverified/[0-9]+$\")")
+            .build()
+            .serializeBase64Url();
+
+    RegexCache.shared().clear();
+    UnverifiedBiscuit unverified = UnverifiedBiscuit.fromBase64Url(data);
+    assertEquals(0, RegexCache.shared().size());
+
+    unverified.verify(root.getPublicKey());
+    assertEquals(1, RegexCache.shared().size());
+  }
 }